@@ -0,0 +1,87 @@
+package benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import core.Json;
+import core.ScimEventNotification;
+import core.Subscriber;
+import core.Subscription;
+import core.SubscriptionModeEnum;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Generated scim event notifications and subscribers of the JMH benchmarks.
+ * Each generated sen has its own resource, so no two sens are equal.
+ * The payload size is given by the number of the attributes in the values of the sen.
+ *
+ * @author Jiri Mauritz
+ */
+final class BenchmarkData {
+
+    static final String FEED = "https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Serialized sen of the feed.
+     *
+     * @param resource   number of the resource, distinguishes the sens
+     * @param attributes number of the attributes in the values
+     * @return sen in json, UTF-8 encoded
+     */
+    static byte[] json(int resource, int attributes) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < attributes; i++) {
+            names.add("attribute" + i);
+            values.put("attribute" + i, "value of the attribute " + i + " of the resource " + resource);
+        }
+        Map<String, Object> sen = new LinkedHashMap<>();
+        sen.put("schemas", Collections.singletonList("urn:ietf:params:scim:schemas:notify:2.0:Event"));
+        sen.put("publisherUri", "https://perun.cesnet.cz");
+        sen.put("feedUris", Collections.singletonList(FEED));
+        sen.put("resourceUris", Collections.singletonList("https://perun.cesnet.cz/api/v2/Users/" + resource));
+        sen.put("type", "MODIFY");
+        sen.put("attributes", names);
+        sen.put("values", values);
+        try {
+            return Json.WRITER.writeValueAsBytes(sen);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parsed sens of the feed, as the hub parses them.
+     *
+     * @param count      number of the sens
+     * @param attributes number of the attributes in the values of each sen
+     * @return distinct sens
+     */
+    static List<ScimEventNotification> sens(int count, int attributes) {
+        List<ScimEventNotification> sens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                sens.add(Json.SEN_READER.<ScimEventNotification>readValue(json(i, attributes)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return sens;
+    }
+
+    /**
+     * Subscriber of the feed.
+     *
+     * @param number of the subscriber
+     * @param mode   of the subscription
+     * @return subscriber with the subscription to the feed
+     */
+    static Subscriber subscriber(int number, SubscriptionModeEnum mode) {
+        Subscriber subscriber = new Subscriber("subscriber" + number);
+        subscriber.addSubscription(new Subscription(FEED, mode, "https://subscriber" + number + ".example.com/events"));
+        return subscriber;
+    }
+}
@@ -0,0 +1,247 @@
+package benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import core.CallbackOutboxEntry;
+import core.CallbackOutboxRelay;
+import core.CallbackRetry;
+import core.Json;
+import core.Metrics;
+import core.ScimEventNotification;
+import core.VirtualThreads;
+import dao.CallbackOutboxDao;
+import dao.CallbackRetryDao;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.mock.env.MockEnvironment;
+import rest.CallbackRetryQueue;
+import rest.RestClientController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JMH benchmark of the webCallback delivery with platform and virtual threads.
+ * A local stub subscriber answers every callback after a fixed latency, the operation is the delivery
+ * of one event to all the event uris. The lower bound is the latency times subscribers / maxConcurrency.
+ * On JDK older than 21 the virtual mode falls back to the platform threads.
+ *
+ * @author Jiri Mauritz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallbackDispatchBenchmark {
+
+    @Param({"false", "true"})
+    private boolean virtual;
+
+    @Param({"1000"})
+    private int subscribers;
+
+    @Param({"200"})
+    private long latencyMillis;
+
+    @Param({"1000"})
+    private int maxConcurrency;
+
+    private ScimEventNotification sen;
+    private Set<String> eventUris;
+    private StubSubscriber stub;
+    private AnnotationConfigApplicationContext context;
+    private RestClientController client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (virtual && !VirtualThreads.isAvailable()) {
+            System.out.println("Virtual threads require JDK 21+, the platform threads are measured.");
+        }
+        sen = Json.SEN_READER.readValue(Files.readAllBytes(Paths.get(ClassLoader.getSystemResource("sen1.json").toURI())));
+        stub = new StubSubscriber(latencyMillis, subscribers);
+        eventUris = new HashSet<>();
+        for (int i = 0; i < subscribers; i++) {
+            eventUris.add("http://127.0.0.1:" + stub.getPort() + "/Events/" + i);
+        }
+        context = createContext(virtual, maxConcurrency);
+        client = context.getBean(RestClientController.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        stub.stop();
+    }
+
+    @Benchmark
+    public long dispatch() throws Exception {
+        stub.expect(eventUris.size());
+        client.dispatch(eventUris, sen);
+        stub.await();
+        return stub.getPeakConcurrency();
+    }
+
+    private static AnnotationConfigApplicationContext createContext(boolean virtual, int maxConcurrency) {
+        MockEnvironment env = new MockEnvironment();
+        env.setProperty("executor.virtualThreads", String.valueOf(virtual));
+        env.setProperty("callback.maxConcurrency", String.valueOf(maxConcurrency));
+        // all the event uris share one host
+        env.setProperty("callback.maxPerDestination", String.valueOf(maxConcurrency));
+        env.setProperty("callback.readTimeoutMillis", "30000");
+        env.setProperty("callback.totalTimeoutMillis", "60000");
+        env.setProperty("callback.queueSize", "1000000");
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.setEnvironment(env);
+        context.register(RestClientController.class, CallbackRetryQueue.class, NoRetryDao.class, CallbackOutboxRelay.class,
+                NoOutboxDao.class, Metrics.class);
+        context.refresh();
+        return context;
+    }
+
+    // local subscriber answering after the latency
+    private static final class StubSubscriber {
+        private final HttpServer server;
+        private final ExecutorService executor;
+        private final AtomicLong concurrency = new AtomicLong();
+        private final AtomicLong peakConcurrency = new AtomicLong();
+        private volatile CountDownLatch latch = new CountDownLatch(0);
+
+        private StubSubscriber(final long latencyMillis, int subscribers) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), subscribers);
+            executor = Executors.newCachedThreadPool();
+            server.setExecutor(executor);
+            server.createContext("/Events", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    long current = concurrency.incrementAndGet();
+                    if (current > peakConcurrency.get()) peakConcurrency.set(current);
+                    try (InputStream body = exchange.getRequestBody()) {
+                        byte[] buffer = new byte[8192];
+                        while (body.read(buffer) >= 0) {
+                            // drain
+                        }
+                        Thread.sleep(latencyMillis);
+                        exchange.sendResponseHeaders(204, -1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        exchange.close();
+                        concurrency.decrementAndGet();
+                        latch.countDown();
+                    }
+                }
+            });
+            server.start();
+        }
+
+        private int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        private void expect(int requests) {
+            peakConcurrency.set(0);
+            latch = new CountDownLatch(requests);
+        }
+
+        private void await() throws InterruptedException {
+            if (!latch.await(10, TimeUnit.MINUTES)) throw new IllegalStateException("Deliveries did not finish.");
+        }
+
+        private long getPeakConcurrency() {
+            return peakConcurrency.get();
+        }
+
+        private void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Retries are not measured.
+     */
+    public static class NoRetryDao implements CallbackRetryDao {
+        @Override
+        public void create(CallbackRetry retry, String owner) {
+        }
+
+        @Override
+        public void create(CallbackRetry retry, List<CallbackOutboxEntry> entries, String owner) {
+        }
+
+        @Override
+        public boolean update(CallbackRetry retry, String owner) {
+            return true;
+        }
+
+        @Override
+        public List<CallbackRetry> claim(int limit, String owner, long leaseMillis) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int renew(String owner) {
+            return 0;
+        }
+
+        @Override
+        public int release(String owner) {
+            return 0;
+        }
+
+        @Override
+        public void markDead(CallbackRetry retry) {
+        }
+
+        @Override
+        public void remove(Long id) {
+        }
+
+        @Override
+        public List<CallbackRetry> getAllPending() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int count(boolean dead) {
+            return 0;
+        }
+    }
+
+    /**
+     * The outbox is disabled.
+     */
+    public static class NoOutboxDao implements CallbackOutboxDao {
+        @Override
+        public void create(List<CallbackOutboxEntry> entries) {
+        }
+
+        @Override
+        public List<CallbackOutboxEntry> claim(int limit, String owner, long leaseMillis) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int release(String owner) {
+            return 0;
+        }
+
+        @Override
+        public void remove(List<CallbackOutboxEntry> entries) {
+        }
+
+        @Override
+        public int count() {
+            return 0;
+        }
+    }
+}
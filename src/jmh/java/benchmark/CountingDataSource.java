@@ -0,0 +1,84 @@
+package benchmark;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Data source counting the statements prepared on its connections and the rows they touched:
+ * the rows read from the result sets and the rows changed by the updates.
+ * The counters are not synchronized, the DAO benchmarks run on a single thread.
+ *
+ * @author Jiri Mauritz
+ */
+public class CountingDataSource extends DelegatingDataSource {
+
+    private long statements;
+    private long rows;
+
+    public CountingDataSource(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return (Connection) counting(super.getConnection(), Connection.class);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return (Connection) counting(super.getConnection(username, password), Connection.class);
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    // proxy of the jdbc object, counting its statements, result set rows and updated rows
+    private Object counting(final Object target, Class<?> type) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("equals")) return proxy == args[0];
+                if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                Object result;
+                try {
+                    result = method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (target instanceof Connection && result instanceof Statement) {
+                    statements++;
+                    return counting(result, method.getReturnType());
+                }
+                if (result instanceof ResultSet) {
+                    return counting(result, ResultSet.class);
+                }
+                if (target instanceof ResultSet && method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+                    rows++;
+                } else if (target instanceof Statement && method.getName().equals("executeUpdate")) {
+                    rows += (Integer) result;
+                } else if (target instanceof Statement && method.getName().equals("executeBatch")) {
+                    for (int count : (int[]) result) {
+                        if (count > 0) rows += count;
+                    }
+                }
+                return result;
+            }
+        });
+    }
+}
@@ -0,0 +1,218 @@
+package benchmark;
+
+import config.SpringConfig;
+import core.Feed;
+import core.ScimEventNotification;
+import core.Subscriber;
+import core.Subscription;
+import core.SubscriptionModeEnum;
+import dao.FeedDao;
+import dao.SubscriberDao;
+import daoImpl.ScimEventNotificationDaoImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.IterationParams;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the DAOs on the embedded Derby, configured as in the DAO tests.
+ * The database holds the given number of feeds, each with the given number of messages, and the given number
+ * of subscribers polling all the feeds. The first subscriber is the slowest one, the others have seen the messages
+ * up to the positions spread over the queue.
+ * Besides the time, each operation reports the statements it prepared and the rows it touched,
+ * both read and changed, as the auxiliary counters 'statements' and 'rows'.
+ * The operations do not change the stored state, storeState() stores the state as loaded.
+ *
+ * @author Jiri Mauritz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DaoBenchmark {
+
+    private static final int ATTRIBUTES = 5;
+
+    @Param({"1", "10"})
+    private int feeds;
+
+    @Param({"10", "100"})
+    private int subscribers;
+
+    @Param({"10", "100", "1000"})
+    private int messages;
+
+    private AnnotationConfigApplicationContext context;
+    private CountingDataSource counting;
+    private FeedDao feedDao;
+    private SubscriberDao subscriberDao;
+    private ScimEventNotificationDaoImpl senDao;
+
+    // first feed of the population, as loaded
+    private Feed feed;
+    private Long[] senIds;
+    private int nextSen;
+    private final Map<String, Subscriber> loadedSubscribers = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = new AnnotationConfigApplicationContext(Config.class);
+        counting = context.getBean(DataSource.class).unwrap(CountingDataSource.class);
+        feedDao = context.getBean(FeedDao.class);
+        subscriberDao = context.getBean(SubscriberDao.class);
+        senDao = context.getBean(ScimEventNotificationDaoImpl.class);
+
+        List<Subscriber> pollSubscribers = new ArrayList<>();
+        for (int i = 0; i < subscribers; i++) {
+            pollSubscribers.add(new Subscriber("subscriber" + i));
+        }
+        for (int f = 0; f < feeds; f++) {
+            String uri = BenchmarkData.FEED + "/" + f;
+            Feed populated = new Feed(uri);
+            feedDao.create(populated);
+            for (int i = 0; i < subscribers; i++) {
+                Subscriber subscriber = pollSubscribers.get(i);
+                subscriber.addSubscription(new Subscription(uri, SubscriptionModeEnum.poll,
+                        "https://subscriber" + i + ".example.com/events"));
+                populated.addSubscriber(subscriber);
+            }
+            for (ScimEventNotification sen : BenchmarkData.sens(messages, ATTRIBUTES)) {
+                populated.newMsg(sen);
+            }
+            feedDao.storeState(populated);
+            // the sens have their ids now, spread the last seen messages
+            List<ScimEventNotification> queue = populated.getMessages();
+            for (int i = 1; i < subscribers; i++) {
+                populated.getPollSubscribersLastMsg().put(pollSubscribers.get(i), queue.get(i * messages / subscribers));
+            }
+            populated.setSlowestPollSubscriber(pollSubscribers.get(0));
+            feedDao.storeState(populated);
+        }
+
+        feed = new Feed(BenchmarkData.FEED + "/0");
+        feed.setId(-1L);
+        feedDao.update(feed);
+        List<Long> ids = new ArrayList<>();
+        for (ScimEventNotification sen : feed.getMessages()) {
+            ids.add(sen.getId());
+        }
+        senIds = ids.toArray(new Long[ids.size()]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Feed feedUpdate(Counts counts) {
+        counts.start(counting);
+        Feed loaded = new Feed(feed.getUri());
+        loaded.setId(feed.getId());
+        feedDao.update(loaded);
+        counts.stop(counting);
+        return loaded;
+    }
+
+    @Benchmark
+    public Feed feedStoreState(Counts counts) {
+        counts.start(counting);
+        feedDao.storeState(feed);
+        counts.stop(counting);
+        return feed;
+    }
+
+    @Benchmark
+    public Map<String, Subscriber> subscriberUpdate(Counts counts) {
+        counts.start(counting);
+        subscriberDao.update(loadedSubscribers);
+        counts.stop(counting);
+        return loadedSubscribers;
+    }
+
+    @Benchmark
+    public Map<Subscriber, ScimEventNotification> getPollSubscribers(Counts counts) {
+        counts.start(counting);
+        Map<Subscriber, ScimEventNotification> pollSubscribers = subscriberDao.getPollSubscribers(feed);
+        counts.stop(counting);
+        return pollSubscribers;
+    }
+
+    @Benchmark
+    public ScimEventNotification senGetById(Counts counts) {
+        Long id = senIds[nextSen];
+        nextSen = (nextSen + 1) % senIds.length;
+        counts.start(counting);
+        ScimEventNotification sen = senDao.getById(id);
+        counts.stop(counting);
+        return sen;
+    }
+
+    /**
+     * Statements and rows of one operation, averaged over the iteration.
+     * JMH sums these counters over the iterations, so each iteration reports its share of the average.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counts {
+        public double statements;
+        public double rows;
+
+        private int iterations;
+        private long operations;
+        private long statementsTotal;
+        private long rowsTotal;
+        private long statementsStart;
+        private long rowsStart;
+
+        @Setup(Level.Iteration)
+        public void reset(IterationParams params) {
+            iterations = params.getCount();
+            statements = 0;
+            rows = 0;
+            operations = 0;
+            statementsTotal = 0;
+            rowsTotal = 0;
+        }
+
+        void start(CountingDataSource counting) {
+            statementsStart = counting.getStatements();
+            rowsStart = counting.getRows();
+        }
+
+        void stop(CountingDataSource counting) {
+            operations++;
+            statementsTotal += counting.getStatements() - statementsStart;
+            rowsTotal += counting.getRows() - rowsStart;
+            statements = (double) statementsTotal / operations / iterations;
+            rows = (double) rowsTotal / operations / iterations;
+        }
+    }
+
+    /**
+     * DAO test configuration with the counting data source.
+     */
+    @Configuration
+    @Import(SpringConfig.class)
+    public static class Config {
+
+        @Bean
+        public DataSource dataSource() {
+            return new CountingDataSource(new EmbeddedDatabaseBuilder()
+                    .generateUniqueName(true)
+                    .setType(EmbeddedDatabaseType.DERBY)
+                    .addScript("sql/createTablesDerby.sql")
+                    .build());
+        }
+    }
+}
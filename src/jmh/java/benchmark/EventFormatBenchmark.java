@@ -0,0 +1,52 @@
+package benchmark;
+
+import core.EventFormat;
+import core.Json;
+import core.ScimEventNotification;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the wire formats of the sens, encoding and decoding of the sample sens of the test resources.
+ * Decoding keeps the values raw, as the hub does. The payload size in each format is printed at the setup.
+ *
+ * @author Jiri Mauritz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventFormatBenchmark {
+
+    @Param({"sen1.json", "sen2.json", "sen3.json", "sen4.json"})
+    private String sample;
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    private EventFormat format;
+
+    private ScimEventNotification sen;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sen = Json.SEN_READER.readValue(
+                Files.readAllBytes(Paths.get(ClassLoader.getSystemResource(sample).toURI())));
+        bytes = format.write(sen);
+        System.out.println(sample + " " + format + ": " + bytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return format.write(sen);
+    }
+
+    @Benchmark
+    public ScimEventNotification decode() throws Exception {
+        return format.read(bytes);
+    }
+}
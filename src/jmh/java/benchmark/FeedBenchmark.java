@@ -0,0 +1,102 @@
+package benchmark;
+
+import core.Feed;
+import core.ScimEventNotification;
+import core.Subscriber;
+import core.Subscription;
+import core.SubscriptionModeEnum;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the operations of the feed that keep its state steady.
+ * The feed has the queue of messages of the given length and the given number of poll and webCallback subscribers,
+ * the slowest poll subscriber has seen no message.
+ * The new messages go to the queue and the oldest message is dropped, so the queue length stays the same.
+ * The poll of the subscriber that is not the slowest returns the newer half of the queue, its last seen message
+ * is put back before each poll.
+ *
+ * @author Jiri Mauritz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FeedBenchmark {
+
+    // incoming messages, cycled
+    private static final int INCOMING = 1024;
+
+    @Param({"100", "1000", "10000"})
+    private int queueLength;
+
+    @Param({"2", "10", "100"})
+    private int subscribers;
+
+    @Param({"5", "100"})
+    private int attributes;
+
+    private Feed feed;
+    private LinkedList<ScimEventNotification> messages;
+    private List<ScimEventNotification> incoming;
+    private int next;
+    private Subscriber notSlowest;
+    private ScimEventNotification notSlowestLastMsg;
+    private Map<Subscriber, ScimEventNotification> lastMsgs;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        feed = new Feed(BenchmarkData.FEED);
+        for (int i = 0; i < subscribers; i++) {
+            feed.addSubscriber(BenchmarkData.subscriber(i, SubscriptionModeEnum.poll));
+            feed.addSubscriber(BenchmarkData.subscriber(subscribers + i, SubscriptionModeEnum.webCallback));
+        }
+        // newest message first
+        messages = new LinkedList<>(BenchmarkData.sens(queueLength, attributes));
+        feed.setMessages(messages);
+        incoming = BenchmarkData.sens(INCOMING, attributes);
+        lastMsgs = feed.getPollSubscribersLastMsg();
+        for (Subscriber subscriber : lastMsgs.keySet()) {
+            if (!subscriber.equals(feed.getSlowestPollSubscriber())) {
+                notSlowest = subscriber;
+                break;
+            }
+        }
+        notSlowestLastMsg = messages.get(queueLength / 2);
+    }
+
+    @Benchmark
+    public Set<Subscriber> newMsg() {
+        Set<Subscriber> notified = feed.newMsg(nextMsg());
+        messages.removeLast();
+        return notified;
+    }
+
+    @Benchmark
+    public Subscription[] routeMsg() {
+        Subscription[] notified = feed.routeMsg(nextMsg());
+        messages.removeLast();
+        return notified;
+    }
+
+    @Benchmark
+    public List<ScimEventNotification> pollNotSlowest() {
+        lastMsgs.put(notSlowest, notSlowestLastMsg);
+        return feed.poll(notSlowest);
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private ScimEventNotification nextMsg() {
+        ScimEventNotification sen = incoming.get(next);
+        next = (next + 1) % INCOMING;
+        return sen;
+    }
+}
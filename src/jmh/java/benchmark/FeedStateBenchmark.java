@@ -0,0 +1,76 @@
+package benchmark;
+
+import core.Feed;
+import core.ScimEventNotification;
+import core.Subscriber;
+import core.SubscriptionModeEnum;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the operations of the feed that drop the messages seen by all the poll subscribers,
+ * the poll of the slowest subscriber and its removal, both running updateFeedState().
+ * The feed has the queue of messages of the given length and the given number of poll subscribers,
+ * the slowest one has seen no message, the others have seen the messages up to the positions spread over the queue.
+ * The feed is rebuilt before each invocation, so the allocation rate includes the rebuilt queue of the feed,
+ * compare it only between the runs of the same parameters.
+ *
+ * @author Jiri Mauritz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FeedStateBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int queueLength;
+
+    @Param({"1", "10", "100"})
+    private int subscribers;
+
+    @Param({"5", "100"})
+    private int attributes;
+
+    private List<ScimEventNotification> sens;
+    private Subscriber[] pollSubscribers;
+    private Feed feed;
+
+    @Setup(Level.Trial)
+    public void createData() {
+        sens = BenchmarkData.sens(queueLength, attributes);
+        pollSubscribers = new Subscriber[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            pollSubscribers[i] = BenchmarkData.subscriber(i, SubscriptionModeEnum.poll);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createFeed() {
+        feed = new Feed(BenchmarkData.FEED);
+        for (Subscriber subscriber : pollSubscribers) {
+            feed.addSubscriber(subscriber);
+        }
+        // newest message first
+        feed.setMessages(new LinkedList<>(sens));
+        for (int i = 1; i < subscribers; i++) {
+            feed.getPollSubscribersLastMsg().put(pollSubscribers[i], sens.get(i * queueLength / subscribers));
+        }
+        feed.setSlowestPollSubscriber(pollSubscribers[0]);
+    }
+
+    @Benchmark
+    public List<ScimEventNotification> pollSlowest() {
+        return feed.poll(pollSubscribers[0]);
+    }
+
+    @Benchmark
+    public boolean removeSlowestSubscriber() {
+        return feed.removeSubscriber(pollSubscribers[0]);
+    }
+}
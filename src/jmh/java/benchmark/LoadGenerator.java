@@ -0,0 +1,453 @@
+package benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import core.Json;
+import core.ScimEventNotification;
+import integration.IntegrationTestConfig;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import rest.GzipRequestFilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * End-to-end load generator for the whole hub, running offline in one process.
+ * The hub is booted as the web application over the embedded Derby of the integration tests and the requests
+ * go through its servlet stack by MockMvc, without the network. The webCallbacks go over HTTP to the local stub
+ * receivers, each listening on its own port, so each is a separate destination of the hub.
+ * The latencies of the requests therefore exclude the servlet container and its connector, i.e. the HTTP parsing,
+ * the socket I/O and the request threads of the deployed hub.
+ * The receivers answer after the given latency and fail the given fraction of the deliveries with status 500.
+ * <p>
+ * Before the traffic, the webCallback and poll subscribers are created and spread over the feeds. Then the clients
+ * send the mix of the requests for the given time: events to random feeds, polls of random poll subscribers and
+ * subscriptions created and deleted again, which do not change the expected deliveries. Finally, the poll subscribers
+ * poll the rest of their events and the generator waits for the pending webCallbacks, including the retries.
+ * <p>
+ * The report gives the throughput and the latency percentiles of each request type, the latency of the webCallbacks
+ * from posting the event to its receipt, and the completeness of the delivery: the distinct events received
+ * by the receivers and the poll subscribers out of the expected ones, and the duplicates.
+ * <p>
+ * Run after 'mvn -P jmh test-compile':
+ * java -cp target/classes:target/test-classes:[dependencies] benchmark.LoadGenerator [name=value ...]
+ * <ul>
+ * <li>seconds (30) - duration of the traffic</li>
+ * <li>clients (8) - concurrent clients sending the requests</li>
+ * <li>feeds (10) - feeds of the events</li>
+ * <li>callbackSubscribers (100), pollSubscribers (20) - subscribers, spread over the feeds</li>
+ * <li>receivers (4) - stub receivers of the webCallbacks</li>
+ * <li>mix (80:15:5) - weights of the events, polls and subscriptions</li>
+ * <li>latencyMillis (5), failureRate (0.01) - of the receivers</li>
+ * <li>attributes (5) - attributes in the values of each event</li>
+ * <li>drainSeconds (60) - limit of waiting for the pending deliveries</li>
+ * </ul>
+ * Names with a dot are the properties of the hub, for example 'ingest.async=true'.
+ *
+ * @author Jiri Mauritz
+ */
+public class LoadGenerator {
+
+    private static final String FEED = "https://perun.cesnet.cz/scim-notification/load/";
+    private static final String RESOURCE = "https://perun.cesnet.cz/api/v2/Users/";
+    private static final String WEB_CALLBACK = "urn:ietf:params:scimnotify:api:messages:2.0:webCallback";
+    private static final String POLL = "urn:ietf:params:scimnotify:api:messages:2.0:poll";
+
+    private final Map<String, String> options;
+    private final MockMvc mvc;
+    private final String values;
+
+    // resource of the accepted event mapped on the time of its posting, for the webCallback latency
+    private final Map<String, Long> posted = new ConcurrentHashMap<>();
+    private final AtomicLong nextResource = new AtomicLong();
+    private final AtomicLong expectedCallbacks = new AtomicLong();
+    private final AtomicLong expectedPolled = new AtomicLong();
+    private final AtomicLong[] acceptedByFeed;
+    private final int[] callbacksByFeed;
+
+    private final Latencies events = new Latencies("POST /Events");
+    private final Latencies polls = new Latencies("GET /Poll");
+    private final Latencies subscribes = new Latencies("POST /Subscriptions");
+    private final Latencies unsubscribes = new Latencies("DELETE /Subscriptions");
+    private final Latencies callbacks = new Latencies("webCallback");
+    // subscriptions before the traffic, not reported
+    private final Latencies setup = new Latencies("setup");
+
+    // poll subscriber identifiers and their feeds, with the resources they polled, each guarded by itself
+    private final List<String> pollIds = new ArrayList<>();
+    private final List<Integer> pollFeeds = new ArrayList<>();
+    private final List<Set<String>> polled = new ArrayList<>();
+    private final AtomicLong pollDuplicates = new AtomicLong();
+
+    private LoadGenerator(Map<String, String> options, MockMvc mvc) {
+        this.options = options;
+        this.mvc = mvc;
+        int feeds = option("feeds", 10);
+        acceptedByFeed = new AtomicLong[feeds];
+        for (int i = 0; i < feeds; i++) {
+            acceptedByFeed[i] = new AtomicLong();
+        }
+        callbacksByFeed = new int[feeds];
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < option("attributes", 5); i++) {
+            builder.append(i == 0 ? "" : ",").append("\"attribute").append(i).append("\":\"value of the attribute ")
+                    .append(i).append("\"");
+        }
+        values = builder.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        MockEnvironment env = new MockEnvironment();
+        // retries and breakers recover within the drain
+        env.setProperty("callback.retry.baseDelayMillis", "100");
+        env.setProperty("callback.retry.maxDelayMillis", "2000");
+        env.setProperty("callback.breaker.openMillis", "1000");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) throw new IllegalArgumentException("Argument '" + arg + "' is not name=value.");
+            String name = arg.substring(0, separator);
+            if (name.contains(".")) {
+                env.setProperty(name, arg.substring(separator + 1));
+            } else {
+                options.put(name, arg.substring(separator + 1));
+            }
+        }
+
+        System.out.println("arguments: " + Arrays.toString(args));
+        AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
+        context.setEnvironment(env);
+        context.setServletContext(new MockServletContext());
+        context.register(Config.class);
+        context.refresh();
+        LoadGenerator generator = new LoadGenerator(options, MockMvcBuilders.webAppContextSetup(context)
+                .addFilters(new GzipRequestFilter()).build());
+        Receivers receivers = generator.new Receivers();
+        try {
+            generator.run(receivers);
+        } finally {
+            receivers.stop();
+            context.close();
+        }
+    }
+
+    private void run(Receivers receivers) throws Exception {
+        int seconds = option("seconds", 30);
+        int clients = option("clients", 8);
+        String[] mix = options.containsKey("mix") ? options.get("mix").split(":") : new String[]{"80", "15", "5"};
+        final int eventsWeight = Integer.parseInt(mix[0]);
+        final int pollWeight = Integer.parseInt(mix[1]);
+        final int totalWeight = eventsWeight + pollWeight + Integer.parseInt(mix[2]);
+
+        subscribe(receivers);
+        System.out.println("traffic for " + seconds + " s from " + clients + " clients");
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random();
+                    while (System.nanoTime() < end) {
+                        int draw = random.nextInt(totalWeight);
+                        if (draw < eventsWeight) {
+                            sendEvent(random.nextInt(acceptedByFeed.length));
+                        } else if (draw < eventsWeight + pollWeight) {
+                            poll(random.nextInt(pollIds.size()));
+                        } else {
+                            churn(random.nextInt(acceptedByFeed.length));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-24s %9s %9s %9s %9s %9s %9s %9s %7s%n", "", "count", "ops/s", "p50 ms", "p90 ms",
+                "p99 ms", "p99.9 ms", "max ms", "errors");
+        for (Latencies latencies : Arrays.asList(events, polls, subscribes, unsubscribes)) {
+            latencies.report(elapsed);
+        }
+        long requests = events.count() + polls.count() + subscribes.count() + unsubscribes.count();
+        System.out.printf("total %d requests, %.0f requests/s%n", requests, requests / elapsed);
+
+        drain(receivers);
+        callbacks.report(elapsed);
+        long delivered = receivers.delivered.size();
+        System.out.printf("webCallbacks: %d of %d delivered (%.4f%%), %d duplicates, %d failed by the receivers%n",
+                delivered, expectedCallbacks.get(), percent(delivered, expectedCallbacks.get()),
+                receivers.duplicates.get(), receivers.failed.get());
+        long polledCount = polledCount();
+        System.out.printf("polls: %d of %d received (%.4f%%), %d duplicates%n", polledCount, expectedPolled.get(),
+                percent(polledCount, expectedPolled.get()), pollDuplicates.get());
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private int option(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 100.0 : 100.0 * part / whole;
+    }
+
+    private void subscribe(Receivers receivers) throws Exception {
+        int feeds = acceptedByFeed.length;
+        int callbackSubscribers = option("callbackSubscribers", 100);
+        for (int i = 0; i < callbackSubscribers; i++) {
+            createSubscription(setup, i % feeds, WEB_CALLBACK, receivers.eventUri(i));
+            callbacksByFeed[i % feeds]++;
+        }
+        for (int i = 0; i < option("pollSubscribers", 20); i++) {
+            pollIds.add(createSubscription(setup, i % feeds, POLL, "https://poll" + i + ".example.com/events"));
+            pollFeeds.add(i % feeds);
+            polled.add(new HashSet<String>());
+        }
+        if (pollIds.isEmpty()) throw new IllegalArgumentException("At least one poll subscriber is needed.");
+        System.out.println(callbackSubscribers + " webCallback and " + pollIds.size() + " poll subscribers of "
+                + feeds + " feeds");
+    }
+
+    // returns the identifier of the subscription
+    private String createSubscription(Latencies latencies, int feed, String mode, String eventUri) throws Exception {
+        String body = "{\"schemas\":[\"urn:ietf:params:scim:schemas:notify:2.0:Subscription\"],\"feedUri\":\"" + FEED + feed
+                + "\",\"mode\":\"" + mode + "\",\"eventUri\":\"" + eventUri + "\"}";
+        MockHttpServletResponse response = perform(latencies,
+                post("/Subscriptions").contentType(MediaType.APPLICATION_JSON).content(body), 201);
+        if (response == null) return null;
+        // the second line is the location of the subscription
+        String location = response.getContentAsString().split("\n")[1];
+        return location.substring(location.lastIndexOf('/') + 1);
+    }
+
+    private void sendEvent(int feed) throws Exception {
+        String resource = RESOURCE + nextResource.incrementAndGet();
+        String body = "{\"schemas\":[\"urn:ietf:params:scim:schemas:notify:2.0:Event\"],"
+                + "\"publisherUri\":\"https://perun.cesnet.cz\",\"feedUris\":[\"" + FEED + feed + "\"],"
+                + "\"resourceUris\":[\"" + resource + "\"],\"type\":\"MODIFY\",\"attributes\":[],\"values\":{" + values + "}}";
+        posted.put(resource, System.nanoTime());
+        // 202 in the asynchronous mode
+        if (perform(events, post("/Events").contentType(MediaType.APPLICATION_JSON).content(body), 204, 202) == null) {
+            posted.remove(resource);
+            return;
+        }
+        acceptedByFeed[feed].incrementAndGet();
+        expectedCallbacks.addAndGet(callbacksByFeed[feed]);
+        for (int feedOf : pollFeeds) {
+            if (feedOf == feed) expectedPolled.incrementAndGet();
+        }
+    }
+
+    private void poll(int subscriber) throws Exception {
+        MockHttpServletResponse response = perform(polls, get("/Poll/" + pollIds.get(subscriber))
+                .accept(MediaType.APPLICATION_JSON), 200);
+        if (response == null) return;
+        Set<String> resources = polled.get(subscriber);
+        for (JsonNode sen : Json.TREE_READER.<JsonNode>readValue(response.getContentAsByteArray())) {
+            String resource = sen.get("resourceUris").get(0).asText();
+            synchronized (resources) {
+                if (!resources.add(resource)) pollDuplicates.incrementAndGet();
+            }
+        }
+    }
+
+    // poll subscription created and deleted again
+    private void churn(int feed) throws Exception {
+        String id = createSubscription(subscribes, feed, POLL, "https://churn.example.com/events");
+        if (id != null) {
+            perform(unsubscribes, delete("/Subscriptions/" + id), 200);
+        }
+    }
+
+    // returns null if the status is not expected
+    private MockHttpServletResponse perform(Latencies latencies, RequestBuilder request, int... expected) throws Exception {
+        long start = System.nanoTime();
+        MockHttpServletResponse response = mvc.perform(request).andReturn().getResponse();
+        latencies.record(System.nanoTime() - start);
+        for (int status : expected) {
+            if (response.getStatus() == status) return response;
+        }
+        latencies.error();
+        return null;
+    }
+
+    private long polledCount() {
+        long count = 0;
+        for (Set<String> resources : polled) {
+            synchronized (resources) {
+                count += resources.size();
+            }
+        }
+        return count;
+    }
+
+    // polls the rest of the events and waits for the pending webCallbacks
+    private void drain(Receivers receivers) throws Exception {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(option("drainSeconds", 60));
+        long start = System.nanoTime();
+        while (System.nanoTime() < end
+                && (receivers.delivered.size() < expectedCallbacks.get() || polledCount() < expectedPolled.get())) {
+            for (int i = 0; i < pollIds.size(); i++) {
+                poll(i);
+            }
+            Thread.sleep(100);
+        }
+        System.out.printf("drained in %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Configuration of the hub, the web application over the database of the integration tests.
+     */
+    @Configuration
+    @Import(IntegrationTestConfig.class)
+    @ComponentScan(basePackages = "rest")
+    @EnableWebMvc
+    public static class Config {
+    }
+
+    // latencies of one request type, guarded by itself
+    private static final class Latencies {
+        private final String name;
+        private long[] nanos = new long[1024];
+        private int size;
+        private long errors;
+
+        private Latencies(String name) {
+            this.name = name;
+        }
+
+        private synchronized void record(long value) {
+            if (size == nanos.length) nanos = Arrays.copyOf(nanos, size * 2);
+            nanos[size++] = value;
+        }
+
+        private synchronized void error() {
+            errors++;
+        }
+
+        private synchronized long count() {
+            return size;
+        }
+
+        private synchronized void report(double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            System.out.printf("%-24s %9d %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f %7d%n", name, size, size / seconds,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    percentile(sorted, 1.0), errors);
+        }
+
+        // in milliseconds
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    // local receivers of the webCallbacks, answering after the latency or failing
+    private final class Receivers {
+        private final List<HttpServer> servers = new ArrayList<>();
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        // event uri and resource of each received event
+        private final Set<String> delivered = ConcurrentHashMap.newKeySet();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private Receivers() throws IOException {
+            final long latencyMillis = option("latencyMillis", 5);
+            final double failureRate = doubleOption("failureRate", 0.01);
+            HttpHandler handler = new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        byte[] body = read(exchange.getRequestBody());
+                        Thread.sleep(latencyMillis);
+                        if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+                            failed.incrementAndGet();
+                            exchange.sendResponseHeaders(500, -1);
+                            return;
+                        }
+                        ScimEventNotification sen = Json.SEN_READER.readValue(body);
+                        String resource = sen.getResourceUris().iterator().next();
+                        if (delivered.add(exchange.getRequestURI().getPath() + " " + resource)) {
+                            Long postedAt = posted.get(resource);
+                            if (postedAt != null) callbacks.record(System.nanoTime() - postedAt);
+                        } else {
+                            duplicates.incrementAndGet();
+                        }
+                        exchange.sendResponseHeaders(204, -1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            };
+            for (int i = 0; i < option("receivers", 4); i++) {
+                HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+                server.setExecutor(executor);
+                server.createContext("/Events", handler);
+                server.start();
+                servers.add(server);
+            }
+        }
+
+        private String eventUri(int subscriber) {
+            return "http://127.0.0.1:" + servers.get(subscriber % servers.size()).getAddress().getPort()
+                    + "/Events/" + subscriber;
+        }
+
+        private byte[] read(InputStream body) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            body.close();
+            return out.toByteArray();
+        }
+
+        private void stop() {
+            for (HttpServer server : servers) {
+                server.stop(0);
+            }
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package benchmark;
+
+import core.*;
+import dao.FeedDao;
+import dao.SubscriberDao;
+import dao.SubscriptionDao;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of ManagerImpl.newMessage() with the DAOs mocked out: parse, classification into the feed
+ * and dispatch to the webCallback subscribers of the feed, the dispatch stops at the manager.
+ * The DAOs are no-op stubs rather than Mockito mocks, which would dominate the time and the allocation rate
+ * by recording each invocation. The ingest log and the outbox are disabled.
+ * The subscribers use webCallbacks, so the feed keeps no messages and its queue does not grow,
+ * the queue lengths are covered by FeedBenchmark and FeedStateBenchmark.
+ *
+ * @author Jiri Mauritz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ManagerBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int subscribers;
+
+    @Param({"5", "100"})
+    private int attributes;
+
+    private ManagerImpl manager;
+    private byte[] json;
+    // event uris notified, keeps the dispatch alive
+    private long notified;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        manager = new ManagerImpl() {
+            @Override
+            public void webCallbackSend(Set<String> eventUris, ScimEventNotification sen) {
+                notified += eventUris.size();
+            }
+        };
+        ReflectionTestUtils.setField(manager, "feedDao", new NoFeedDao());
+        ReflectionTestUtils.setField(manager, "subscriberDao", new NoSubscriberDao());
+        ReflectionTestUtils.setField(manager, "subscriptionDao", new NoSubscriptionDao());
+        ReflectionTestUtils.setField(manager, "ingestLog", new IngestLog());
+        ReflectionTestUtils.setField(manager, "outbox", new CallbackOutboxRelay());
+        ReflectionTestUtils.setField(manager, "env", new MockEnvironment());
+        ReflectionTestUtils.setField(manager, "metrics", new Metrics());
+        manager.afterPropertiesSet();
+        for (int i = 0; i < subscribers; i++) {
+            manager.newSubscription("subscriber" + i, new Subscription(BenchmarkData.FEED, SubscriptionModeEnum.webCallback,
+                    "https://subscriber" + i + ".example.com/events"));
+        }
+        json = BenchmarkData.json(0, attributes);
+    }
+
+    @Benchmark
+    public long newMessage() {
+        manager.newMessage(json);
+        return notified;
+    }
+
+    public static class NoFeedDao implements FeedDao {
+        @Override
+        public void updateIdentifiers(Map<String, Feed> feeds) {
+        }
+
+        @Override
+        public void update(Feed feed) {
+        }
+
+        @Override
+        public void storeState(Feed feed) {
+        }
+
+        @Override
+        public void storeStates(List<Feed> feeds, List<CallbackOutboxEntry> callbacks) {
+        }
+
+        @Override
+        public void create(Feed feed) {
+        }
+
+        @Override
+        public void remove(Feed feed) {
+        }
+    }
+
+    public static class NoSubscriberDao implements SubscriberDao {
+        @Override
+        public void update(Map<String, Subscriber> subscribers) {
+        }
+
+        @Override
+        public void create(Subscriber subscriber) {
+        }
+
+        @Override
+        public void remove(Subscriber subscriber) {
+        }
+
+        @Override
+        public Map<Subscriber, ScimEventNotification> getPollSubscribers(Feed feed) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Set<Subscriber> getWebCallbackSubscribers(Feed feed) {
+            return Collections.emptySet();
+        }
+    }
+
+    public static class NoSubscriptionDao implements SubscriptionDao {
+        @Override
+        public void create(Subscription subscription, Subscriber subscriber, Feed feed) {
+        }
+
+        @Override
+        public void storeLastSeenMsg(Subscription subscription, Long lastSeenMsg) {
+        }
+
+        @Override
+        public void remove(String subscriberIdentifier, String feedUri) {
+        }
+
+        @Override
+        public void remove(Long id) {
+        }
+
+        @Override
+        public Set<Long> getAllIdsForSubscriber(Subscriber subscriber) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Set<Long> getAllIdsForFeed(Feed feed) {
+            return Collections.emptySet();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import org.springframework.web.filter.CharacterEncodingFilter;
 import org.springframework.web.servlet.support.AbstractAnnotationConfigDispatcherServletInitializer;
+import rest.GzipRequestFilter;
 
 import javax.servlet.Filter;
 
@@ -24,7 +25,8 @@ public class WebAppInitializer extends AbstractAnnotationConfigDispatcherServlet
     protected Filter[] getServletFilters() {
         CharacterEncodingFilter encodingFilter = new CharacterEncodingFilter();
         encodingFilter.setEncoding("utf-8");
-        return new Filter[]{encodingFilter};
+        // gzip bodies of the publishers are decompressed before reading
+        return new Filter[]{encodingFilter, new GzipRequestFilter()};
     }
 
     @Override
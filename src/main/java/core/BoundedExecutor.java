@@ -0,0 +1,323 @@
+package core;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor with limited concurrency and bounded number of the waiting tasks.
+ * When the limit of the waiting tasks is reached, the submitting thread waits for a free slot, so the backpressure
+ * propagates to the producer instead of rejecting the task or growing the queue without limits.
+ * The tasks run either on a pool of platform threads, or each on its own virtual thread on JDK 21+,
+ * where the concurrency is limited by a semaphore instead of the pool size.
+ *
+ * @author Jiri Mauritz
+ */
+public abstract class BoundedExecutor extends AbstractExecutorService {
+
+    // idle pool threads are stopped after this time
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    BoundedExecutor() {
+    }
+
+    /**
+     * Create an executor with a pool of daemon platform threads.
+     *
+     * @param name      prefix of the thread names
+     * @param threads   number of the tasks running at once
+     * @param queueSize number of the tasks waiting for a thread
+     * @return executor
+     */
+    public static BoundedExecutor create(String name, int threads, int queueSize) {
+        return create(name, threads, queueSize, false);
+    }
+
+    /**
+     * Create an executor running the tasks on platform or virtual threads.
+     * Virtual threads are not pooled, every task gets a new one. The waiting task holds only its virtual thread,
+     * so the concurrency can be much higher than with the platform threads.
+     *
+     * @param name      prefix of the thread names
+     * @param threads   number of the tasks running at once
+     * @param queueSize number of the tasks waiting for a free slot
+     * @param virtual   use virtual threads if available, platform daemon threads otherwise
+     * @return executor
+     */
+    public static BoundedExecutor create(final String name, int threads, int queueSize, boolean virtual) {
+        if (virtual && VirtualThreads.isAvailable()) {
+            return perTask(VirtualThreads.factory(name), threads, queueSize);
+        }
+        if (virtual) System.err.println("Virtual threads are not available, " + name + " uses platform threads.");
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new Pooled(threadFactory, threads, queueSize);
+    }
+
+    /**
+     * Create an executor starting a new thread for every task, the tasks wait for a free slot on their threads.
+     *
+     * @param threadFactory of the threads, virtual threads are expected
+     * @param threads       number of the tasks running at once
+     * @param queueSize     number of the tasks waiting for a free slot
+     * @return executor
+     */
+    static BoundedExecutor perTask(ThreadFactory threadFactory, int threads, int queueSize) {
+        return new PerTask(threadFactory, threads, queueSize);
+    }
+
+    /**
+     * Run the task, wait for a free slot if the executor is full.
+     *
+     * @param task to be run
+     * @throws RejectedExecutionException if the executor is stopped or the waiting thread is interrupted
+     */
+    @Override
+    public abstract void execute(Runnable task);
+
+    /**
+     * Run the task if the executor has a free slot, never waits.
+     *
+     * @param task to be run
+     * @return false if the executor is full
+     * @throws RejectedExecutionException if the executor is stopped
+     */
+    public abstract boolean offer(Runnable task);
+
+    /**
+     * @return number of the tasks waiting for a free slot
+     */
+    public abstract int getQueueSize();
+
+    /**
+     * @return number of the tasks which can still be submitted without waiting
+     */
+    public abstract int getRemainingCapacity();
+
+    // fixed pool of platform threads over a bounded queue
+    private static final class Pooled extends BoundedExecutor {
+        private final ThreadPoolExecutor pool;
+
+        private Pooled(ThreadFactory threadFactory, int threads, int queueSize) {
+            pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (offer(task)) return;
+            try {
+                pool.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the executor.", e);
+            }
+            // the executor may have been stopped while waiting
+            if (pool.isShutdown() && pool.remove(task)) {
+                throw new RejectedExecutionException("Executor is stopped.");
+            }
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            if (task == null) throw new NullPointerException("Task cannot be null.");
+            try {
+                pool.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                if (pool.isShutdown()) throw new RejectedExecutionException("Executor is stopped.", e);
+                return false;
+            }
+        }
+
+        @Override
+        public int getQueueSize() {
+            return pool.getQueue().size();
+        }
+
+        @Override
+        public int getRemainingCapacity() {
+            return pool.getQueue().remainingCapacity();
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+    }
+
+    // new virtual thread for every task, which waits for one of the running permits
+    private static final class PerTask extends BoundedExecutor {
+        private final ThreadFactory threadFactory;
+        private final int threads;
+        private final int capacity;
+        // held by the running tasks
+        private final Semaphore running;
+        // held by the running and the waiting tasks
+        private final Semaphore admitted;
+        private final Set<Thread> started = new HashSet<>();
+        private boolean shutdown;
+
+        private PerTask(ThreadFactory threadFactory, int threads, int queueSize) {
+            this.threadFactory = threadFactory;
+            this.threads = threads;
+            this.capacity = threads + queueSize;
+            this.running = new Semaphore(threads);
+            this.admitted = new Semaphore(capacity);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (task == null) throw new NullPointerException("Task cannot be null.");
+            if (isShutdown()) throw new RejectedExecutionException("Executor is stopped.");
+            try {
+                admitted.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the executor.", e);
+            }
+            start(task);
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            if (task == null) throw new NullPointerException("Task cannot be null.");
+            if (isShutdown()) throw new RejectedExecutionException("Executor is stopped.");
+            if (!admitted.tryAcquire()) return false;
+            start(task);
+            return true;
+        }
+
+        @Override
+        public int getQueueSize() {
+            int admittedTasks = capacity - admitted.availablePermits();
+            int runningTasks = threads - running.availablePermits();
+            return Math.max(0, admittedTasks - runningTasks);
+        }
+
+        @Override
+        public int getRemainingCapacity() {
+            return Math.max(0, capacity - threads - getQueueSize());
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (started) {
+                shutdown = true;
+                started.notifyAll();
+            }
+        }
+
+        /**
+         * Stop the executor and interrupt all the tasks, the waiting tasks are not run.
+         *
+         * @return always empty list, the waiting tasks are already held by their threads
+         */
+        @Override
+        public List<Runnable> shutdownNow() {
+            synchronized (started) {
+                shutdown = true;
+                for (Thread thread : started) {
+                    thread.interrupt();
+                }
+                started.notifyAll();
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (started) {
+                return shutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (started) {
+                return shutdown && started.isEmpty();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (started) {
+                while (!(shutdown && started.isEmpty())) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return false;
+                    TimeUnit.NANOSECONDS.timedWait(started, remaining);
+                }
+                return true;
+            }
+        }
+
+        private void start(final Runnable task) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        running.acquire();
+                    } catch (InterruptedException e) {
+                        // stopped before the task could run
+                        finished();
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        running.release();
+                        finished();
+                    }
+                }
+            });
+            synchronized (started) {
+                if (shutdown) {
+                    admitted.release();
+                    throw new RejectedExecutionException("Executor is stopped.");
+                }
+                started.add(thread);
+            }
+            thread.start();
+        }
+
+        private void finished() {
+            admitted.release();
+            synchronized (started) {
+                started.remove(Thread.currentThread());
+                if (started.isEmpty()) started.notifyAll();
+            }
+        }
+    }
+}
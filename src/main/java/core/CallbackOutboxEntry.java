@@ -0,0 +1,85 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * WebCallback waiting in the outbox for the relay.
+ * The entry is stored in the same transaction as the feed, so the callback is not lost when the hub stops
+ * between storing the feed and the delivery. The scim event notification is stored serialized,
+ * once for all the entries of the event, the entry references it by the senId.
+ *
+ * @author Jiri Mauritz
+ */
+public class CallbackOutboxEntry {
+    private Long id;
+    private Long senId;
+    private Subscription subscription;
+    private ScimEventNotification sen;
+    private String senJson;
+
+    /**
+     * Entry to be stored, the sen is serialized when the entry is stored, i.e. after the sen gets its id.
+     *
+     * @param subscription to be notified
+     * @param sen          which defines the scim event
+     */
+    public CallbackOutboxEntry(Subscription subscription, ScimEventNotification sen) {
+        this.id = null;
+        this.subscription = subscription;
+        this.sen = sen;
+    }
+
+    /**
+     * Entry with the serialized sen, e.g. loaded from the storage.
+     *
+     * @param subscription to be notified
+     * @param senJson      serialized scim event notification
+     */
+    public CallbackOutboxEntry(Subscription subscription, String senJson) {
+        this.id = null;
+        this.subscription = subscription;
+        this.senJson = senJson;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getSenId() {
+        return senId;
+    }
+
+    public void setSenId(Long senId) {
+        this.senId = senId;
+    }
+
+    /**
+     * @return sen of the entry to be stored, null for the entry with serialized sen
+     */
+    public ScimEventNotification getSen() {
+        return sen;
+    }
+
+    public Subscription getSubscription() {
+        return subscription;
+    }
+
+    public String getSenJson() {
+        if (senJson == null) {
+            senJson = new String(sen.toJsonBytes(), StandardCharsets.UTF_8);
+        }
+        return senJson;
+    }
+
+    @Override
+    public String toString() {
+        return "CallbackOutboxEntry{" +
+                "id=" + id +
+                ", eventUri='" + subscription.getEventUri() + '\'' +
+                '}';
+    }
+}
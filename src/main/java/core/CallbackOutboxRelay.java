@@ -0,0 +1,179 @@
+package core;
+
+import dao.CallbackOutboxDao;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.env.Environment;
+import rest.RestClientController;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relay of the webCallbacks from the outbox to the rest client.
+ * With the outbox, the webCallbacks are stored in the same transaction as the feeds and the relay leases them
+ * in batches. An entry is removed when it is delivered or moved to the retries, so no callback is lost when
+ * the hub stops after storing the feeds or before the delivery. The relays of several hub instances drain
+ * the outbox in parallel, an entry is relayed again only when its lease expires, so the delivery is at least once.
+ * The relay runs after each new message and periodically, to pick up the entries of the other instances,
+ * the entries with expired lease and the entries left before restart.
+ * The outbox is disabled by default, it is enabled by the property 'callback.outbox.enabled'.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class CallbackOutboxRelay implements InitializingBean, DisposableBean, ApplicationListener<ContextRefreshedEvent> {
+
+    @Inject
+    private CallbackOutboxDao outboxDao;
+
+    @Inject
+    private Environment env;
+
+    private boolean enabled;
+    private int batchSize;
+    private long pollMillis;
+    private long leaseMillis;
+    // identifier of the relay in the claims
+    private String owner;
+    private boolean stableOwner;
+    private Thread relay;
+    private volatile boolean running;
+    private final Semaphore signal = new Semaphore(0);
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enabled = env.getProperty("callback.outbox.enabled", Boolean.class, false);
+        batchSize = env.getProperty("callback.outbox.batchSize", Integer.class, 100);
+        pollMillis = env.getProperty("callback.outbox.pollMillis", Long.class, 1000L);
+        leaseMillis = env.getProperty("callback.outbox.leaseMillis", Long.class, 300000L);
+        owner = env.getProperty("callback.outbox.instanceId");
+        stableOwner = owner != null;
+        if (owner == null) owner = UUID.randomUUID().toString();
+    }
+
+    @Override
+    public synchronized void onApplicationEvent(ContextRefreshedEvent event) {
+        // the rest client is ready
+        if (!enabled || relay != null) return;
+        running = true;
+        relay = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                relayLoop();
+            }
+        }, "callback-outbox");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    @Override
+    public synchronized void destroy() throws Exception {
+        // the entries stay in the database until they are delivered
+        running = false;
+        if (relay != null) {
+            relay.interrupt();
+            relay.join(TimeUnit.SECONDS.toMillis(30));
+            relay = null;
+        }
+    }
+
+    /**
+     * @return true if the webCallbacks go through the outbox
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Let the relay know that new entries are stored.
+     */
+    public void wakeUp() {
+        if (signal.availablePermits() == 0) signal.release();
+    }
+
+    /**
+     * Remove the entries after their delivery.
+     * If the removal fails, the entries are delivered again after their lease expires.
+     *
+     * @param entries delivered entries
+     */
+    public void delivered(List<CallbackOutboxEntry> entries) {
+        try {
+            outboxDao.remove(entries);
+        } catch (RuntimeException e) {
+            System.err.println("Error while removing the delivered webCallbacks " + entries + " from the outbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lease one batch of the entries and hand them over to the rest client.
+     *
+     * @return number of the claimed entries
+     */
+    int relayBatch() {
+        List<CallbackOutboxEntry> entries = outboxDao.claim(batchSize, owner, leaseMillis);
+        // entries of the same sen are relayed together, in the order of storing
+        Map<Long, List<CallbackOutboxEntry>> entriesBySen = new LinkedHashMap<>();
+        for (CallbackOutboxEntry entry : entries) {
+            List<CallbackOutboxEntry> sameSen = entriesBySen.get(entry.getSenId());
+            if (sameSen == null) {
+                sameSen = new ArrayList<>();
+                entriesBySen.put(entry.getSenId(), sameSen);
+            }
+            sameSen.add(entry);
+        }
+        for (List<CallbackOutboxEntry> sameSen : entriesBySen.values()) {
+            ScimEventNotification sen;
+            try {
+                sen = Json.SEN_READER.readValue(sameSen.get(0).getSenJson());
+            } catch (IOException | IllegalArgumentException e) {
+                // would fail the same way after each lease
+                System.err.println("Removing invalid event of the callback outbox for " + sameSen + ": " + e.getMessage());
+                outboxDao.remove(sameSen);
+                continue;
+            }
+            RestClientController.webCallbackOutbox(sameSen, sen);
+        }
+        return entries.size();
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private void relayLoop() {
+        if (stableOwner) {
+            // the entries claimed before restart are not delivered, they need not wait for their lease
+            try {
+                outboxDao.release(owner);
+            } catch (RuntimeException e) {
+                System.err.println("Error while releasing the callback outbox claims of " + owner + ": " + e.getMessage());
+            }
+        }
+        while (running) {
+            int relayed = 0;
+            try {
+                relayed = relayBatch();
+            } catch (RuntimeException e) {
+                System.err.println("Error while relaying the callback outbox: " + e.getMessage());
+            }
+            // full batch means more entries are waiting
+            if (relayed < batchSize) {
+                try {
+                    signal.tryAcquire(pollMillis, TimeUnit.MILLISECONDS);
+                    signal.drainPermits();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package core;
+
+/**
+ * Failed webCallback delivery waiting for the next attempt.
+ * The scim event notification is kept serialized in json, so the retry does not depend on the feed keeping the message,
+ * it is converted to the wire format of the subscription and compressed when it is sent.
+ *
+ * @author Jiri Mauritz
+ */
+public class CallbackRetry {
+    private Long id;
+    private String eventUri;
+    private String senJson;
+    private boolean gzip;
+    private EventFormat format;
+    private int attempts;
+    private long nextAttempt;
+    private String lastError;
+
+    public CallbackRetry(String eventUri, String senJson) {
+        this.id = null;
+        this.eventUri = eventUri;
+        this.senJson = senJson;
+        this.format = EventFormat.JSON;
+        this.attempts = 0;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getEventUri() {
+        return eventUri;
+    }
+
+    public String getSenJson() {
+        return senJson;
+    }
+
+    /**
+     * @return whether the body over the size threshold is compressed
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return wire format of the delivery
+     */
+    public EventFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format wire format of the delivery, null for json
+     */
+    public void setFormat(EventFormat format) {
+        this.format = format == null ? EventFormat.JSON : format;
+    }
+
+    /**
+     * @return number of the failed attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return time of the next attempt in milliseconds since the epoch
+     */
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(long nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    @Override
+    public String toString() {
+        return "CallbackRetry{" +
+                "id=" + id +
+                ", eventUri='" + eventUri + '\'' +
+                ", gzip=" + gzip +
+                ", format=" + format +
+                ", attempts=" + attempts +
+                ", nextAttempt=" + nextAttempt +
+                ", lastError='" + lastError + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,95 @@
+package core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker guarding the calls to one destination.
+ * - closed: calls are allowed, after the given number of consecutive failures the breaker opens
+ * - open: calls are rejected, after the open period a single probe call is allowed (half-open)
+ * - half-open: the result of the probe closes the breaker or opens it again, other calls are rejected meanwhile
+ *
+ * @author Jiri Mauritz
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        closed, open, halfOpen
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.closed;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long openCount;
+    private long rejectedCount;
+
+    /**
+     * @param failureThreshold number of consecutive failures which opens the breaker
+     * @param openMillis       how long the breaker stays open before the probe
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold <= 0) throw new IllegalArgumentException("Failure threshold must be positive.");
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Decide whether the call may proceed, the caller must report its result.
+     *
+     * @return true if the call is allowed
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case closed:
+                return true;
+            case open:
+                if (System.nanoTime() - openedAt >= openNanos) {
+                    // this call is the probe
+                    state = State.halfOpen;
+                    return true;
+                }
+                rejectedCount++;
+                return false;
+            default:
+                // probe in progress
+                rejectedCount++;
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.closed;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.halfOpen || (state == State.closed && consecutiveFailures >= failureThreshold)) {
+            state = State.open;
+            openedAt = System.nanoTime();
+            openCount++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Current state and counters of the breaker.
+     *
+     * @return state, consecutive failures, number of openings and of rejected calls
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", state.name());
+        stats.put("consecutiveFailures", consecutiveFailures);
+        stats.put("openCount", openCount);
+        stats.put("rejectedCount", rejectedCount);
+        return stats;
+    }
+}
@@ -0,0 +1,84 @@
+package core;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Counts the database statements of the hub.
+ * Each data source bean is wrapped, so the template and the transaction manager share the same wrapped one,
+ * and each statement prepared on its connections is counted to the operation running on the thread,
+ * see Metrics.setOperation(). A batch update counts as one statement.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class DataSourceMetrics implements BeanPostProcessor {
+
+    @Inject
+    private Metrics metrics;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof DataSource) || bean instanceof MeteredDataSource) return bean;
+        return new MeteredDataSource((DataSource) bean);
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private Connection meter(final Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("prepareStatement") || name.equals("prepareCall") || name.equals("createStatement")) {
+                            metrics.statementPrepared();
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private final class MeteredDataSource extends DelegatingDataSource {
+
+        private MeteredDataSource(DataSource dataSource) {
+            super(dataSource);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return meter(super.getConnection());
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return meter(super.getConnection(username, password));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Wire format of the scim event notifications.
+ * Besides json, the events can be exchanged in the binary Jackson formats CBOR and Smile, which are smaller
+ * and faster to parse. The format is selected by the media type, json is the default.
+ * The values of the events are kept as raw json inside the hub, the binary formats transcode them token by token.
+ *
+ * @author Jiri Mauritz
+ */
+public enum EventFormat {
+    JSON("application/json", new JsonFactory(), false),
+    CBOR("application/cbor", new CBORFactory(), true),
+    SMILE("application/x-jackson-smile", new SmileFactory(), true);
+
+    private final String mediaType;
+    private final ObjectReader senReader;
+    private final ObjectReader senArrayReader;
+    private final ObjectWriter senWriter;
+    private final ObjectWriter senArrayWriter;
+
+    EventFormat(String mediaType, JsonFactory factory, boolean binary) {
+        this.mediaType = mediaType;
+        ObjectMapper mapper = new ObjectMapper(factory);
+        if (binary) {
+            mapper.addMixIn(ScimEventNotification.class, BinaryValues.class);
+        }
+        this.senReader = mapper.readerFor(ScimEventNotification.class);
+        this.senArrayReader = mapper.readerFor(ScimEventNotification[].class);
+        this.senWriter = mapper.writerFor(ScimEventNotification.class);
+        this.senArrayWriter = mapper.writerFor(ScimEventNotification[].class);
+    }
+
+    /**
+     * @return media type of the format, without parameters
+     */
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Find the format of the media type, the parameters (e.g. charset) are ignored.
+     *
+     * @param mediaType media type, e.g. from the Content-Type header
+     * @return format or null if the media type is not supported
+     */
+    public static EventFormat fromMediaType(String mediaType) {
+        if (mediaType == null) return null;
+        int parameters = mediaType.indexOf(';');
+        String type = (parameters < 0 ? mediaType : mediaType.substring(0, parameters)).trim();
+        for (EventFormat format : values()) {
+            if (format.mediaType.equalsIgnoreCase(type)) return format;
+        }
+        return null;
+    }
+
+    /**
+     * Parse the scim event notification.
+     *
+     * @param body serialized sen
+     * @return parsed sen
+     * @throws IOException if the body is not a valid sen in the format
+     */
+    public ScimEventNotification read(byte[] body) throws IOException {
+        return senReader.readValue(body);
+    }
+
+    /**
+     * Serialize the scim event notification, use ScimEventNotification.toBytes() for the cached form.
+     *
+     * @param sen to be serialized
+     * @return serialized sen
+     */
+    public byte[] write(ScimEventNotification sen) {
+        try {
+            return senWriter.writeValueAsBytes(sen);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Error when serializing sen to " + name() + ".", e);
+        }
+    }
+
+    /**
+     * Serialize the scim event notifications as an array.
+     *
+     * @param sens to be serialized
+     * @return serialized array
+     */
+    public byte[] writeArray(Collection<ScimEventNotification> sens) {
+        if (this == JSON) return ScimEventNotification.toJsonArrayBytes(sens);
+        try {
+            return senArrayWriter.writeValueAsBytes(sens.toArray(new ScimEventNotification[sens.size()]));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Error when serializing sens to " + name() + ".", e);
+        }
+    }
+
+    /**
+     * Convert the json form of the scim event notification or of the array of them to this format.
+     *
+     * @param json serialized sen or array of them
+     * @return body in this format
+     * @throws IOException if the json is not a valid sen or array of sens
+     */
+    public byte[] transcode(byte[] json) throws IOException {
+        if (this == JSON) return json;
+        if (isArray(json)) {
+            return writeArray(Arrays.asList(JSON.senArrayReader.<ScimEventNotification[]>readValue(json)));
+        }
+        return write(JSON.read(json));
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private static boolean isArray(byte[] json) {
+        for (byte b : json) {
+            if (!Character.isWhitespace(b)) return b == '[';
+        }
+        return false;
+    }
+
+    // the binary formats cannot embed raw json, the values are transcoded instead
+    private abstract static class BinaryValues {
+        @JsonProperty("values")
+        @JsonRawValue(false)
+        @JsonSerialize(using = RawJsonSerializer.class)
+        abstract String getValuesJson();
+    }
+}
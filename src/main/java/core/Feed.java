@@ -21,6 +21,15 @@ public class Feed {
     // subscribers with mode webCallback
     private Set<Subscriber> callbackSubscribers;
 
+    // pending messages of the same resources are merged
+    private boolean coalescing;
+
+    // routing table of the webCallback subscribers, immutable, replaced when the subscriptions change
+    private SubscriptionIndex callbackIndex;
+
+    // version of the subscriptions to the feed the webCallback subscribers were loaded at, null if never loaded
+    private Long subscriptionsVersion;
+
     // subscribers with mode poll, the map remembers their last seen msg, if null -> no msgs were seen
     private Map<Subscriber, ScimEventNotification> pollSubscribersLastMsg;
 
@@ -74,19 +83,51 @@ public class Feed {
 
     /**
      * Add new message to the feed queue.
-     * Returns a set of subscribers that are subscribed for web callback and should receive this message immediately.
+     * Returns a set of subscribers that are subscribed for web callback and should receive this message immediately,
+     * the subscribers whose subscription filter does not accept the message are left out.
      *
      * @param sen message to add
      * @return set of subscribers, that should be notified about the message
      */
     public Set<Subscriber> newMsg(ScimEventNotification sen) {
         if (sen == null) throw new NullPointerException("ScimEventNotification cannot be null.");
-        // if there is at least one POLL subscriber, retain the msg
-        if (!pollSubscribersLastMsg.isEmpty()) {
-            this.messages.addFirst(sen);
-        }
-        // send to all, who have set CALLBACK
-        return Collections.unmodifiableSet(callbackSubscribers);
+        retainMsg(sen);
+        // send to all, who have set CALLBACK and accept the msg
+        if (callbackSubscribers.isEmpty()) return Collections.emptySet();
+        return Collections.unmodifiableSet(getCallbackIndex().match(sen));
+    }
+
+    /**
+     * Add new message to the feed queue, same as newMsg().
+     * Returns the subscriptions to this feed of the webCallback subscribers that should receive the message immediately.
+     * The subscriptions come from the routing table of the feed, without filters the same array is returned
+     * for all the messages, so it must not be modified.
+     *
+     * @param sen message to add
+     * @return subscriptions to this feed, that should be notified about the message
+     */
+    public Subscription[] routeMsg(ScimEventNotification sen) {
+        if (sen == null) throw new NullPointerException("ScimEventNotification cannot be null.");
+        retainMsg(sen);
+        return getCallbackIndex().route(sen);
+    }
+
+    /**
+     * @return true if the pending messages of the same resources are merged
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Set merging of the pending messages.
+     * A new message of the same resources as a message not polled by any subscriber yet is merged into it,
+     * see ScimEventNotification.coalesce(). The webCallback subscribers receive all the messages.
+     *
+     * @param coalescing true to merge the pending messages
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
     }
 
     /**
@@ -109,13 +150,7 @@ public class Feed {
     public void addSubscriber(Subscriber subscriber) {
         if (subscriber == null) throw new NullPointerException("Subscriber cannot be null.");
         // getting the subscription matching this feed
-        Subscription subscription = null;
-        for (Subscription subtion : subscriber.getSubscriptions()) {
-            if (uri.equals(subtion.getFeedUri())) {
-                subscription = subtion;
-                break;
-            }
-        }
+        Subscription subscription = subscriber.getSubscription(uri);
         // validation
         if (subscription == null || subscription.getMode() == null || subscription.getEventUri() == null) {
             throw new IllegalStateException("Subscriber must have valid subscription to the feed before adding.");
@@ -130,6 +165,7 @@ public class Feed {
         } else {
             // webCallback subscriber
             this.callbackSubscribers.add(subscriber);
+            this.callbackIndex = null;
         }
     }
 
@@ -142,6 +178,7 @@ public class Feed {
     public boolean removeSubscriber(Subscriber subscriber) {
         if (subscriber == null) throw new NullPointerException("Cannot remove null subscriber.");
         if (callbackSubscribers.remove(subscriber)) {
+            callbackIndex = null;
             return true;
         }
         if (pollSubscribersLastMsg.containsKey(subscriber)) {
@@ -158,6 +195,21 @@ public class Feed {
 
     public void setCallbackSubscribers(Set<Subscriber> callbackSubscribers) {
         this.callbackSubscribers = callbackSubscribers;
+        // the table survives reloading of the feed with the same subscriptions
+        if (callbackIndex != null && !callbackIndex.isCurrent(callbackSubscribers)) {
+            this.callbackIndex = null;
+        }
+    }
+
+    /**
+     * @return version of the stored subscriptions the webCallback subscribers come from, null if not loaded yet
+     */
+    public Long getSubscriptionsVersion() {
+        return subscriptionsVersion;
+    }
+
+    public void setSubscriptionsVersion(Long subscriptionsVersion) {
+        this.subscriptionsVersion = subscriptionsVersion;
     }
 
     public Map<Subscriber, ScimEventNotification> getPollSubscribersLastMsg() {
@@ -178,7 +230,7 @@ public class Feed {
 
     /**
      * Trigger the poll of the messages from the feed and specified subscriber.
-     * The subscruber will receive only messages that has not been read by him.
+     * The subscruber will receive only messages that has not been read by him and that pass his subscription filter.
      *
      * @param subscriber requesting poll
      * @return polled messages
@@ -189,9 +241,13 @@ public class Feed {
             throw new IllegalArgumentException("Subscriber " + subscriber.getIdentifier() + " is not subscribed to the feed " + uri);
         }
         List<ScimEventNotification> msgsToSend = new ArrayList<>();
+        Subscription subscription = subscriber.getSubscription(uri);
+        SubscriptionFilter filter = subscription == null ? null : subscription.getFilter();
         if (subscriber.equals(slowestPollSubscriber)) {
             // slowest subscriber has not seen any of saved messages -> return all messages
-            msgsToSend.addAll(messages);
+            for (ScimEventNotification sen : messages) {
+                if (filter == null || filter.matches(sen)) msgsToSend.add(sen);
+            }
             pollSubscribersLastMsg.put(subscriber, messages.isEmpty() ? null : messages.getFirst());
             updateFeedState();
         } else {
@@ -200,7 +256,7 @@ public class Feed {
             // iterate from the beginning of our message queue and remember all messages that the subscriber has not seen
             for (ScimEventNotification sen : messages) {
                 if (sen.equals(lastMsg)) break;
-                msgsToSend.add(sen);
+                if (filter == null || filter.matches(sen)) msgsToSend.add(sen);
             }
             // set new last read message for the subscriber (the first one in the queue)
             pollSubscribersLastMsg.put(subscriber, messages.isEmpty() ? null : messages.getFirst());
@@ -208,6 +264,59 @@ public class Feed {
         return msgsToSend;
     }
 
+    /**
+     * Number of the retained messages the poll subscriber has not seen yet, regardless of its filter.
+     *
+     * @param subscriber poll subscriber of the feed
+     * @return number of unseen messages, 0 for the subscribers not polling the feed
+     */
+    public int getLag(Subscriber subscriber) {
+        if (!pollSubscribersLastMsg.containsKey(subscriber)) return 0;
+        ScimEventNotification lastMsg = pollSubscribersLastMsg.get(subscriber);
+        if (lastMsg == null) return messages.size();
+        int lag = 0;
+        for (ScimEventNotification sen : messages) {
+            if (sen.equals(lastMsg)) break;
+            lag++;
+        }
+        return lag;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    // if there is at least one POLL subscriber, retain the msg
+    private void retainMsg(ScimEventNotification sen) {
+        if (pollSubscribersLastMsg.isEmpty()) return;
+        if (coalescing && coalesceMsg(sen)) return;
+        this.messages.addFirst(sen);
+    }
+
+    // merge the msg into a pending msg of the same resources, which nobody has seen yet
+    private boolean coalesceMsg(ScimEventNotification sen) {
+        Set<ScimEventNotification> seen = new HashSet<>(pollSubscribersLastMsg.values());
+        // from the newest msg to the last seen one
+        Iterator<ScimEventNotification> iter = messages.iterator();
+        while (iter.hasNext()) {
+            ScimEventNotification pending = iter.next();
+            if (seen.contains(pending)) return false;
+            if (pending.getResourceUris().equals(sen.getResourceUris())) {
+                ScimEventNotification merged = ScimEventNotification.coalesce(pending, sen);
+                if (merged == null) return false;
+                iter.remove();
+                messages.addFirst(merged);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SubscriptionIndex getCallbackIndex() {
+        if (callbackIndex == null) {
+            callbackIndex = new SubscriptionIndex(uri, callbackSubscribers);
+        }
+        return callbackIndex;
+    }
+
     /**
      * Delete all messages that have been read by all and update slowestPollSubscriber.
      */
@@ -0,0 +1,129 @@
+package core;
+
+import java.util.*;
+
+/**
+ * Router of the event feed uris to the wildcard feeds.
+ * A wildcard feed has the segment '*' in its uri. The last '*' matches one or more remaining segments,
+ * so 'https://idp/feeds/groups/*' receives the events of all the feeds below 'https://idp/feeds/groups/'.
+ * The '*' inside the uri matches exactly one segment. The wildcard never matches an empty segment,
+ * so 'https://idp/feeds/groups/' is not routed to 'https://idp/feeds/groups/*'.
+ * The wildcard feeds are kept in a trie over the uri segments, the routing walks the segments of the event feed uri
+ * and does not depend on the number of the feeds.
+ * The router is not thread safe, the manager accesses it under its lock.
+ *
+ * @author Jiri Mauritz
+ */
+public class FeedRouter {
+
+    static final String WILDCARD = "*";
+    private static final String SEPARATOR = "/";
+
+    private final Node root = new Node();
+
+    /**
+     * @param feedUri uri of the feed
+     * @return true if the feed uri contains the wildcard segment
+     */
+    public static boolean isWildcard(String feedUri) {
+        if (feedUri == null) throw new NullPointerException("Feed uri cannot be null.");
+        for (String segment : segments(feedUri)) {
+            if (WILDCARD.equals(segment)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the feed to the router, feeds without the wildcard are ignored.
+     *
+     * @param feedUri uri of the feed
+     */
+    public void add(String feedUri) {
+        if (!isWildcard(feedUri)) return;
+        Node node = root;
+        for (String segment : segments(feedUri)) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.feedUri = feedUri;
+    }
+
+    /**
+     * Remove the feed from the router, the nodes left without feeds are pruned.
+     *
+     * @param feedUri uri of the feed
+     */
+    public void remove(String feedUri) {
+        if (!isWildcard(feedUri)) return;
+        String[] segments = segments(feedUri);
+        Node[] path = new Node[segments.length + 1];
+        path[0] = root;
+        for (int i = 0; i < segments.length; i++) {
+            path[i + 1] = path[i].children.get(segments[i]);
+            if (path[i + 1] == null) return;
+        }
+        path[segments.length].feedUri = null;
+        for (int i = segments.length; i > 0 && path[i].isEmpty(); i--) {
+            path[i - 1].children.remove(segments[i - 1]);
+        }
+    }
+
+    /**
+     * Remove all the feeds.
+     */
+    public void clear() {
+        root.children.clear();
+    }
+
+    /**
+     * Find the wildcard feeds matching the feed uri of an event.
+     *
+     * @param feedUri feed uri of the event
+     * @return uris of the matching wildcard feeds, unmodifiable empty set if there are no wildcard feeds
+     */
+    public Set<String> route(String feedUri) {
+        if (feedUri == null) throw new NullPointerException("Feed uri cannot be null.");
+        // most hubs have no wildcard feeds, the routing of each event does not allocate then
+        if (root.children.isEmpty()) return Collections.emptySet();
+        Set<String> matched = new HashSet<>();
+        collect(root, segments(feedUri), 0, matched);
+        return matched;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private void collect(Node node, String[] segments, int index, Set<String> matched) {
+        if (index == segments.length) {
+            if (node.feedUri != null) matched.add(node.feedUri);
+            return;
+        }
+        Node any = segments[index].isEmpty() ? null : node.children.get(WILDCARD);
+        if (any != null) {
+            // the trailing wildcard takes all the remaining segments
+            if (any.feedUri != null) matched.add(any.feedUri);
+            collect(any, segments, index + 1, matched);
+        }
+        Node child = node.children.get(segments[index]);
+        if (child != null && child != any) {
+            collect(child, segments, index + 1, matched);
+        }
+    }
+
+    private static String[] segments(String feedUri) {
+        return feedUri.split(SEPARATOR, -1);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        // wildcard feed ending in this node
+        private String feedUri;
+
+        private boolean isEmpty() {
+            return feedUri == null && children.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of the webCallback and poll bodies.
+ *
+ * @author Jiri Mauritz
+ */
+public final class Gzip {
+
+    public static final String ENCODING = "gzip";
+
+    private Gzip() {
+    }
+
+    /**
+     * Compress the bytes.
+     *
+     * @param bytes to be compressed
+     * @return gzip stream of the bytes
+     */
+    public static byte[] compress(byte[] bytes) {
+        if (bytes == null) throw new NullPointerException("Bytes cannot be null.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            // not thrown by the in-memory stream
+            throw new IllegalStateException("Error when compressing.", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decide whether the client accepts gzip according to the value of its Accept-Encoding header.
+     * The gzip entry takes precedence over the wildcard, e.g. 'gzip;q=0, *' does not accept gzip.
+     *
+     * @param acceptEncoding value of the header, may be null
+     * @return true if gzip, or any encoding when gzip is not listed, is accepted with nonzero quality
+     */
+    public static boolean isAccepted(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        Boolean gzip = null;
+        Boolean any = null;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim();
+            if (coding.equalsIgnoreCase(ENCODING)) {
+                gzip = isAcceptable(parts);
+            } else if (coding.equals("*")) {
+                any = isAcceptable(parts);
+            }
+        }
+        if (gzip != null) return gzip;
+        return any != null && any;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    // the coding with its parameters is acceptable unless its quality is zero or invalid
+    private static boolean isAcceptable(String[] parts) {
+        boolean accepted = true;
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    accepted = Double.parseDouble(param.substring(2)) > 0;
+                } catch (NumberFormatException e) {
+                    accepted = false;
+                }
+            }
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,259 @@
+package core;
+
+import dao.IdempotencyKeyDao;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DuplicateKeyException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detection of the repeated requests creating the events.
+ * Each request has a key, given by the client in the header 'Idempotency-Key' or derived from the digest of the body.
+ * The first request with the key is processed and its response status remembered, the repeated requests within
+ * the window get the original status without processing. The keys derived from the body have a short window of their own,
+ * because the publishers legitimately send identical events, e.g. when a resource is changed back and forth.
+ * The recent keys are kept in a LRU cache, the keys are unique in the database, so the window is longer than
+ * the cache and shared by the hub instances. A Bloom filter of the keys seen by this instance decides
+ * whether the database is asked for the original status first, or the key is stored directly.
+ * A request in progress for longer than the lease is considered abandoned, e.g. its instance crashed,
+ * and the next request with the key takes it over.
+ * The detection is disabled by default, it is enabled by the property 'idempotency.enabled'.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class IdempotencyGuard implements InitializingBean {
+
+    /**
+     * Status of the request still in progress.
+     */
+    public static final int IN_PROGRESS = 0;
+
+    private static final int MAX_KEY_LENGTH = 255;
+    private static final String KEY_PREFIX = "key:";
+    private static final String DIGEST_PREFIX = "sha256:";
+    private static final int BLOOM_HASHES = 5;
+
+    @Inject
+    private IdempotencyKeyDao keyDao;
+
+    @Inject
+    private Environment env;
+
+    private boolean enabled;
+    private long windowMillis;
+    private long digestWindowMillis;
+    private long leaseMillis;
+    private int bloomBits;
+
+    // recently finished requests, key mapped on the status and the time
+    private Map<String, long[]> cache;
+
+    // keys of the current and the previous window
+    private BitSet bloom;
+    private BitSet previousBloom;
+    private long nextCleanup;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enabled = env.getProperty("idempotency.enabled", Boolean.class, false);
+        windowMillis = env.getProperty("idempotency.windowMillis", Long.class, 24 * 60 * 60 * 1000L);
+        digestWindowMillis = env.getProperty("idempotency.digestWindowMillis", Long.class, 60 * 1000L);
+        leaseMillis = env.getProperty("idempotency.leaseMillis", Long.class, 60 * 1000L);
+        bloomBits = env.getProperty("idempotency.bloomBits", Integer.class, 8 * 1024 * 1024);
+        final int cacheSize = env.getProperty("idempotency.cacheSize", Integer.class, 10000);
+        if (windowMillis <= 0) throw new IllegalArgumentException("Idempotency window must be positive.");
+        if (digestWindowMillis <= 0 || digestWindowMillis > windowMillis) {
+            throw new IllegalArgumentException("Idempotency window of the digests must be positive and not longer than the window.");
+        }
+        if (leaseMillis <= 0) throw new IllegalArgumentException("Idempotency lease must be positive.");
+        if (bloomBits <= 0) throw new IllegalArgumentException("Size of the Bloom filter must be positive.");
+        cache = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        bloom = new BitSet(bloomBits);
+        previousBloom = new BitSet(bloomBits);
+        nextCleanup = System.currentTimeMillis() + windowMillis;
+    }
+
+    /**
+     * @return true if the repeated requests are detected
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Derive the key of the request.
+     *
+     * @param idempotencyKey key given by the client, may be null
+     * @param body           raw body of the request, used when the client does not give the key
+     * @return key of the request
+     */
+    public static String keyOf(String idempotencyKey, byte[] body) {
+        if (idempotencyKey != null && !idempotencyKey.trim().isEmpty()) {
+            String key = idempotencyKey.trim();
+            return KEY_PREFIX.length() + key.length() <= MAX_KEY_LENGTH ? KEY_PREFIX + key : KEY_PREFIX + sha256(key.getBytes(StandardCharsets.UTF_8));
+        }
+        if (body == null) throw new NullPointerException("Body cannot be null.");
+        return DIGEST_PREFIX + sha256(body);
+    }
+
+    /**
+     * Start the request with the key.
+     * If it returns null, the caller processes the request and calls finish(), otherwise the request is repeated.
+     * The key of a request in progress for longer than the lease is taken over and null is returned,
+     * the key of a finished request outside the window of the key is started again.
+     *
+     * @param key key of the request
+     * @return null for the first request, the status of the original request or IN_PROGRESS
+     */
+    public Integer begin(String key) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        long now = System.currentTimeMillis();
+        long window = key.startsWith(DIGEST_PREFIX) ? digestWindowMillis : windowMillis;
+        cleanUp(now);
+        synchronized (this) {
+            long[] finished = cache.get(key);
+            if (finished != null && finished[1] >= now - window) {
+                return (int) finished[0];
+            }
+        }
+        if (mightContain(key)) {
+            // probably seen, ask for the original status instead of failing on the unique key
+            Integer status = keyDao.getStatus(key);
+            if (status != null) return status == IN_PROGRESS ? takeOver(key, now) : repeated(key, status, now, window);
+        }
+        try {
+            keyDao.create(key, now);
+        } catch (DuplicateKeyException e) {
+            // stored by a concurrent request or another instance
+            Integer status = keyDao.getStatus(key);
+            return status == null || status == IN_PROGRESS ? takeOver(key, now) : repeated(key, status, now, window);
+        }
+        add(key);
+        return null;
+    }
+
+    /**
+     * Finish the request started by begin().
+     * Only the successful statuses are remembered, the failed requests can be repeated.
+     * The accepted asynchronous request is remembered too, although its events may fail later in the ingest.
+     *
+     * @param key    key of the request
+     * @param status response status
+     */
+    public void finish(String key, int status) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        if (status < 200 || status >= 300) {
+            keyDao.remove(key);
+            return;
+        }
+        keyDao.complete(key, status);
+        remember(key, status, System.currentTimeMillis());
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    // the abandoned request is taken over, otherwise it is still in progress
+    private Integer takeOver(String key, long now) {
+        if (!keyDao.takeOver(key, now, now - leaseMillis)) return IN_PROGRESS;
+        add(key);
+        return null;
+    }
+
+    // the finished request outside the window is processed again, otherwise its status is returned
+    private Integer repeated(String key, int status, long now, long window) {
+        if (!keyDao.restart(key, now, now - window)) return remember(key, status, now);
+        synchronized (this) {
+            cache.remove(key);
+        }
+        add(key);
+        return null;
+    }
+
+    private synchronized Integer remember(String key, int status, long now) {
+        if (status != IN_PROGRESS) {
+            cache.put(key, new long[]{status, now});
+        }
+        return status;
+    }
+
+    // expire the keys of the last window
+    private void cleanUp(long now) {
+        synchronized (this) {
+            if (now < nextCleanup) return;
+            nextCleanup = now + windowMillis;
+            BitSet emptied = previousBloom;
+            emptied.clear();
+            previousBloom = bloom;
+            bloom = emptied;
+        }
+        try {
+            keyDao.removeOlderThan(now - windowMillis);
+        } catch (RuntimeException e) {
+            System.err.println("Error while removing the expired idempotency keys: " + e.getMessage());
+        }
+    }
+
+    private synchronized boolean mightContain(String key) {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        boolean current = true;
+        boolean previous = true;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = index(h1 + i * h2);
+            current &= bloom.get(bit);
+            previous &= previousBloom.get(bit);
+        }
+        return current || previous;
+    }
+
+    private synchronized void add(String key) {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            bloom.set(index(h1 + i * h2));
+        }
+    }
+
+    private int index(int hash) {
+        return (hash & Integer.MAX_VALUE) % bloomBits;
+    }
+
+    // FNV-1a, independent of String.hashCode()
+    private static int secondHash(String key) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+
+    private static String sha256(byte[] value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+}
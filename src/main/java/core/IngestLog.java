@@ -0,0 +1,501 @@
+package core;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.env.Environment;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the accepted scim event notifications.
+ * Every event is appended to a local file before it is applied to the feeds. Appends of the concurrent
+ * publishers are collected and fsynced together (group commit), the append returns when the event is durable.
+ * Events that were logged but not marked as applied are returned by recover() after a crash.
+ * Events that failed to be applied are moved to the dead-letter file, so they do not hold back the checkpoint.
+ * The checkpoint is written by the flusher thread after the group commits, or after a while without appends.
+ * The log is disabled by default, it is enabled by the property 'ingestLog.enabled'.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class IngestLog implements InitializingBean, DisposableBean {
+
+    private static final String LOG_FILE = "ingest.log";
+    private static final String CHECKPOINT_FILE = "ingest.checkpoint";
+    private static final String DEAD_LETTER_FILE = "ingest.dead";
+
+    // maximal delay of the checkpoint when there are no appends
+    private static final long CHECKPOINT_IDLE_MILLIS = 100;
+
+    // record header: length of the payload, sequence number and crc of the payload
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    @Inject
+    private Environment env;
+
+    private boolean enabled;
+    private Path directory;
+    private int groupCommitMillis;
+    private int groupCommitSize;
+    private long maxBytes;
+
+    private FileChannel channel;
+    private Thread flusher;
+    private volatile boolean running;
+
+    // records not applied before the last shutdown, until they are taken by recover()
+    private List<Record> unapplied;
+
+    // appends waiting for the flusher thread
+    private final BlockingQueue<PendingAppend> pending = new LinkedBlockingQueue<>();
+
+    // sequence number of the last record written to the log, modified only by the flusher thread
+    private long lastWritten;
+
+    // all records up to this sequence number are applied to the feeds
+    private long appliedUpTo;
+
+    // applied records with sequence number above appliedUpTo, waiting for the gaps to be filled
+    private final SortedSet<Long> appliedAhead = new TreeSet<>();
+
+    // appliedUpTo stored in the checkpoint file, modified only by the flusher thread and on close
+    private long checkpointed;
+
+    // records moved to the dead-letter file, guarded by the dead-letter lock
+    private final Object deadLetterLock = new Object();
+    private long failedCount;
+
+    /**
+     * Record of the log.
+     */
+    public static final class Record {
+        private final long sequence;
+        private final String json;
+
+        Record(long sequence, String json) {
+            this.sequence = sequence;
+            this.json = json;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getJson() {
+            return json;
+        }
+    }
+
+    private static final class PendingAppend {
+        private final byte[] payload;
+        private final CompletableFuture<Long> written = new CompletableFuture<>();
+
+        PendingAppend(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enabled = env.getProperty("ingestLog.enabled", Boolean.class, false);
+        if (!enabled) return;
+        directory = Paths.get(env.getProperty("ingestLog.directory", "/var/lib/scim-notification"));
+        groupCommitMillis = env.getProperty("ingestLog.groupCommitMillis", Integer.class, 5);
+        groupCommitSize = env.getProperty("ingestLog.groupCommitSize", Integer.class, 128);
+        maxBytes = env.getProperty("ingestLog.maxBytes", Long.class, 64L * 1024 * 1024);
+        open();
+    }
+
+    /**
+     * Open the log with explicit settings instead of the configuration properties.
+     *
+     * @param directory         where the log files are kept
+     * @param groupCommitMillis maximal time the first append of the group waits for others
+     * @param groupCommitSize   maximal number of appends fsynced together
+     * @param maxBytes          size of the log after which it is emptied once all records are applied
+     * @throws IOException if the log cannot be opened
+     */
+    void open(Path directory, int groupCommitMillis, int groupCommitSize, long maxBytes) throws IOException {
+        this.enabled = true;
+        this.directory = directory;
+        this.groupCommitMillis = groupCommitMillis;
+        this.groupCommitSize = groupCommitSize;
+        this.maxBytes = maxBytes;
+        open();
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        channel = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        appliedUpTo = readCheckpoint();
+        checkpointed = appliedUpTo;
+        lastWritten = appliedUpTo;
+        unapplied = readUnapplied();
+        // the log is positioned after the last valid record, appends are accepted right away
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "ingest-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (!enabled) return;
+        running = false;
+        if (flusher.isAlive()) {
+            flusher.interrupt();
+            flusher.join();
+        }
+        writeCheckpoint();
+        channel.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Return all records that were not marked as applied before the last shutdown.
+     * The log is read when it is opened, so the appends may start before the recovery. The caller is responsible
+     * for applying the returned records and marking them as applied or failed. Subsequent calls return no records.
+     * A torn record at the end of the log (crash in the middle of the write) is discarded.
+     *
+     * @return records not applied yet, in the order of appending
+     */
+    public synchronized List<Record> recover() {
+        if (!enabled || unapplied == null) return Collections.emptyList();
+        List<Record> records = unapplied;
+        unapplied = null;
+        return records;
+    }
+
+    /**
+     * Append the json to the log and wait until it is durably stored.
+     *
+     * @param json scim event notification
+     * @return sequence number of the record, used for marking the record as applied
+     */
+    public long append(String json) {
+        if (json == null) throw new NullPointerException("Json cannot be null.");
+        return append(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append the json to the log and wait until it is durably stored.
+     *
+     * @param json scim event notification, UTF-8 encoded, must not be modified after the call
+     * @return sequence number of the record, used for marking the record as applied
+     */
+    public long append(byte[] json) {
+        if (json == null) throw new NullPointerException("Json cannot be null.");
+        if (!enabled) throw new IllegalStateException("Ingest log is not enabled.");
+        PendingAppend append = new PendingAppend(json);
+        pending.add(append);
+        return await(append);
+    }
+
+    /**
+     * Append all the jsons to the log and wait until they are durably stored.
+     * The records are written in the given order and share a single fsync if they fit into one group.
+     *
+     * @param jsons scim event notifications, UTF-8 encoded, must not be modified after the call
+     * @return sequence numbers of the records in the same order
+     */
+    public List<Long> appendAll(List<byte[]> jsons) {
+        if (jsons == null) throw new NullPointerException("Jsons cannot be null.");
+        if (!enabled) throw new IllegalStateException("Ingest log is not enabled.");
+        List<PendingAppend> appends = new ArrayList<>(jsons.size());
+        for (byte[] json : jsons) {
+            if (json == null) throw new NullPointerException("Json cannot be null.");
+            appends.add(new PendingAppend(json));
+        }
+        // the flusher takes the appends in the queue order, so the batch keeps its order in the log
+        pending.addAll(appends);
+        List<Long> sequences = new ArrayList<>(appends.size());
+        for (PendingAppend append : appends) {
+            sequences.add(await(append));
+        }
+        return sequences;
+    }
+
+    /**
+     * Mark the record as applied to the feeds, so it is not replayed after restart.
+     * Records may be marked in any order, the checkpoint moves only over the continuous sequence of applied records.
+     * The checkpoint is stored with the next group commit, or after a while without appends.
+     *
+     * @param sequence of the applied record
+     */
+    public synchronized void markApplied(long sequence) {
+        if (!enabled) return;
+        if (sequence <= appliedUpTo) return;
+        appliedAhead.add(sequence);
+        long checkpoint = appliedUpTo;
+        while (appliedAhead.remove(checkpoint + 1)) {
+            checkpoint++;
+        }
+        // the checkpoint file is written by the flusher
+        appliedUpTo = checkpoint;
+    }
+
+    /**
+     * Mark the record as failed to be applied.
+     * The record is copied to the dead-letter file and marked as applied, so the checkpoint keeps moving
+     * and the record is not replayed after restart.
+     *
+     * @param sequence of the failed record
+     * @param json     of the record, UTF-8 encoded
+     */
+    public void markFailed(long sequence, byte[] json) {
+        if (json == null) throw new NullPointerException("Json cannot be null.");
+        if (!enabled) return;
+        synchronized (deadLetterLock) {
+            try (FileChannel deadLetters = FileChannel.open(directory.resolve(DEAD_LETTER_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(record(sequence, json));
+                while (buffer.hasRemaining()) {
+                    deadLetters.write(buffer);
+                }
+                deadLetters.force(false);
+            } catch (IOException e) {
+                System.err.println("Error while writing the event " + sequence + " to the dead-letter file: " + e.getMessage());
+            }
+            failedCount++;
+        }
+        markApplied(sequence);
+    }
+
+    /**
+     * Records that failed to be applied, kept in the dead-letter file for the inspection.
+     *
+     * @return failed records, in the order of failing
+     */
+    public List<Record> readDeadLetters() {
+        if (!enabled) return Collections.emptyList();
+        synchronized (deadLetterLock) {
+            Path path = directory.resolve(DEAD_LETTER_FILE);
+            if (!Files.exists(path)) return Collections.emptyList();
+            try (FileChannel deadLetters = FileChannel.open(path, StandardOpenOption.READ)) {
+                List<Record> records = new ArrayList<>();
+                readRecords(deadLetters, records, 0);
+                return records;
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the dead-letter file.", e);
+            }
+        }
+    }
+
+    /**
+     * Number of records marked as failed since the log was opened.
+     *
+     * @return count of failed records
+     */
+    public long getFailedCount() {
+        synchronized (deadLetterLock) {
+            return failedCount;
+        }
+    }
+
+    /**
+     * Number of records in the log that were not marked as applied yet.
+     *
+     * @return count of unapplied records
+     */
+    public synchronized long getUnappliedCount() {
+        return enabled ? lastWritten - appliedUpTo : 0;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private static long await(PendingAppend append) {
+        try {
+            return append.written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the ingest log.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot write to the ingest log.", e.getCause());
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingAppend> batch = new ArrayList<>(groupCommitSize);
+        while (running) {
+            try {
+                PendingAppend first = pending.poll(CHECKPOINT_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    writeCheckpoint();
+                    continue;
+                }
+                batch.add(first);
+                // collect further appends until the batch is full or the commit interval elapses
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+                while (batch.size() < groupCommitSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        pending.drainTo(batch, groupCommitSize - batch.size());
+                        break;
+                    }
+                    PendingAppend next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                writeBatch(batch);
+                writeCheckpoint();
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+        // fail the appends that will never be written
+        List<PendingAppend> rest = new ArrayList<>();
+        pending.drainTo(rest);
+        for (PendingAppend append : rest) {
+            append.written.completeExceptionally(new IllegalStateException("Ingest log is closed."));
+        }
+    }
+
+    private void writeBatch(List<PendingAppend> batch) {
+        try {
+            compactIfApplied();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long first = lastWritten + 1;
+            long sequence = first;
+            for (PendingAppend append : batch) {
+                out.write(record(sequence++, append.payload));
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            // single fsync for the whole batch
+            channel.force(false);
+            synchronized (this) {
+                lastWritten = sequence - 1;
+            }
+            sequence = first;
+            for (PendingAppend append : batch) {
+                append.written.complete(sequence++);
+            }
+        } catch (IOException e) {
+            System.err.println("Error while writing to the ingest log: " + e.getMessage());
+            for (PendingAppend append : batch) {
+                append.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void compactIfApplied() throws IOException {
+        // the log may be emptied only when all written records are applied
+        synchronized (this) {
+            if (appliedUpTo < lastWritten) return;
+        }
+        if (channel.size() < maxBytes) return;
+        // the records are gone, the checkpoint must not point before them
+        writeCheckpoint();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    private List<Record> readUnapplied() throws IOException {
+        List<Record> records = new ArrayList<>();
+        long position = readRecords(channel, records, appliedUpTo);
+        for (Record record : records) {
+            lastWritten = Math.max(lastWritten, record.getSequence());
+        }
+        // cut the torn tail, new records are appended after the last valid one
+        channel.truncate(position);
+        channel.position(position);
+        return records;
+    }
+
+    // reads the valid records above the sequence, returns the position after the last valid record
+    private static long readRecords(FileChannel file, List<Record> records, long above) throws IOException {
+        long position = 0;
+        long size = file.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(file, header, position);
+            header.flip();
+            int length = header.getInt();
+            long sequence = header.getLong();
+            int crc = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(file, payload, position + HEADER_SIZE);
+            if (crc != crc(payload.array())) break;
+            if (sequence > above) {
+                records.add(new Record(sequence, new String(payload.array(), StandardCharsets.UTF_8)));
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static byte[] record(long sequence, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putLong(sequence);
+        record.putInt(crc(payload));
+        record.put(payload);
+        return record.array();
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of the ingest log.");
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) return 0;
+        String value = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+
+    private void writeCheckpoint() {
+        long sequence;
+        synchronized (this) {
+            sequence = appliedUpTo;
+        }
+        if (sequence == checkpointed) return;
+        // checkpoint is not fsynced, losing it only causes replay of already applied records
+        try {
+            Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+            Files.write(tmp, Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            checkpointed = sequence;
+        } catch (IOException e) {
+            System.err.println("Error while writing the ingest log checkpoint: " + e.getMessage());
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,256 @@
+package core;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.env.Environment;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous processing of the incoming scim event notifications.
+ * The publisher thread only validates the event and enqueues it (into the ingest log, if enabled),
+ * the rest is done by bounded stages, each with its own thread pool:
+ * - apply: classification of the event into the feeds and persistence of the feeds,
+ * both work on the same feed objects reloaded from the storage, so they run in order on a single thread
+ * - dispatch: notification of the webCallback subscribers, with the outbox the applied webCallbacks are already stored
+ * and only the relay is woken up
+ * The apply stage does not add any parallelism: the manager applies the events, polls and subscription changes
+ * one at a time under its lock, the pipeline only takes the work off the publisher threads.
+ * When a batch fails to be applied, its events are applied one by one, each with the given number of attempts.
+ * The events that still fail are dead-lettered: moved to the dead-letter file of the ingest log, if enabled,
+ * or printed with their json to the error output. They are counted by 'hub_ingest_failed_total'.
+ * The pipeline is disabled by default, it is enabled by the property 'ingest.async'.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class IngestPipeline implements InitializingBean, DisposableBean {
+
+    @Inject
+    private ManagerImpl manager;
+
+    @Inject
+    private IngestLog ingestLog;
+
+    @Inject
+    private CallbackOutboxRelay outbox;
+
+    @Inject
+    private Environment env;
+
+    @Inject
+    private Metrics metrics;
+
+    private boolean enabled;
+    private int applyAttempts;
+    private BoundedExecutor applyStage;
+    private BoundedExecutor dispatchStage;
+    private Metrics.Counter retried;
+    private Metrics.Counter failed;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        enabled = env.getProperty("ingest.async", Boolean.class, false);
+        if (!enabled) return;
+        applyAttempts = env.getProperty("ingest.applyAttempts", Integer.class, 3);
+        applyStage = BoundedExecutor.create("ingest-apply", 1, env.getProperty("ingest.applyQueueSize", Integer.class, 10000));
+        dispatchStage = BoundedExecutor.create("ingest-dispatch", env.getProperty("ingest.dispatchThreads", Integer.class, 4),
+                env.getProperty("ingest.dispatchQueueSize", Integer.class, 10000),
+                env.getProperty("executor.virtualThreads", Boolean.class, false));
+        retried = metrics.counter("hub_ingest_retried_total", "Events applied again after the failure of their batch.", "");
+        failed = metrics.counter("hub_ingest_failed_total", "Events dead-lettered after all the apply attempts failed.", "");
+        metrics.gauges("hub_ingest_queue_depth", "Events waiting in the queue of the ingest stage.", new Metrics.GaugeFamily() {
+            @Override
+            public Map<String, Integer> values() {
+                Map<String, Integer> depths = new HashMap<>();
+                for (Map.Entry<String, Integer> entry : getQueueDepths().entrySet()) {
+                    depths.put(Metrics.labels("stage", entry.getKey()), entry.getValue());
+                }
+                return depths;
+            }
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (!enabled) return;
+        // let the accepted events finish
+        applyStage.shutdown();
+        applyStage.awaitTermination(30, TimeUnit.SECONDS);
+        dispatchStage.shutdown();
+        dispatchStage.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Validate the message and enqueue it for the processing.
+     * When the ingest log is enabled, the message is durable when the method returns.
+     *
+     * @param json scim event notification in json format
+     * @throws IllegalArgumentException   if the json is null or not valid
+     * @throws RejectedExecutionException if the pipeline is full
+     */
+    public void submit(String json) {
+        if (json == null) throw new IllegalArgumentException("Json cannot be null.");
+        submit(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Validate the message and enqueue it for the processing, same as submit(String).
+     * The message is parsed directly from the bytes, without decoding them into a string.
+     *
+     * @param json scim event notification in json format, UTF-8 encoded
+     * @throws IllegalArgumentException   if the json is null or not valid
+     * @throws RejectedExecutionException if the pipeline is full
+     */
+    public void submit(byte[] json) {
+        submit(json, EventFormat.JSON);
+    }
+
+    /**
+     * Validate the message in the format and enqueue it for the processing, same as submit(String).
+     * The ingest log keeps the messages in json.
+     *
+     * @param body   serialized scim event notification
+     * @param format wire format of the body
+     * @throws IllegalArgumentException   if the body is null or not valid
+     * @throws RejectedExecutionException if the pipeline is full
+     */
+    public void submit(byte[] body, EventFormat format) {
+        if (!enabled) throw new IllegalStateException("Asynchronous ingest is not enabled.");
+        ScimEventNotification sen = manager.parseMessage(body, format);
+        checkCapacity();
+        List<Long> sequences = ingestLog.isEnabled()
+                ? Collections.singletonList(ingestLog.append(format == EventFormat.JSON ? body : sen.toJsonBytes()))
+                : Collections.<Long>emptyList();
+        enqueueApply(Collections.singletonList(sen), sequences);
+    }
+
+    /**
+     * Validate the batch of messages and enqueue it for the processing as a single unit.
+     * When the ingest log is enabled, the messages are durable when the method returns.
+     *
+     * @param jsons scim event notifications in json format, UTF-8 encoded
+     * @throws IllegalArgumentException   if any of the jsons is null or not valid
+     * @throws RejectedExecutionException if the pipeline is full
+     */
+    public void submitAll(List<byte[]> jsons) {
+        if (!enabled) throw new IllegalStateException("Asynchronous ingest is not enabled.");
+        if (jsons == null) throw new IllegalArgumentException("Jsons cannot be null.");
+        List<ScimEventNotification> sens = manager.parseMessages(jsons);
+        if (sens.isEmpty()) return;
+        checkCapacity();
+        List<Long> sequences = ingestLog.isEnabled() ? ingestLog.appendAll(jsons) : Collections.<Long>emptyList();
+        enqueueApply(sens, sequences);
+    }
+
+    /**
+     * Number of the events dead-lettered since the start.
+     *
+     * @return count of failed events
+     */
+    public long getFailedCount() {
+        return enabled ? failed.get() : 0;
+    }
+
+    /**
+     * Number of the tasks waiting in the queue of each stage.
+     *
+     * @return queue depth by the stage name
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        if (enabled) {
+            depths.put("apply", applyStage.getQueueSize());
+            depths.put("dispatch", dispatchStage.getQueueSize());
+        }
+        return depths;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private void checkCapacity() {
+        if (applyStage.getRemainingCapacity() == 0) {
+            throw new RejectedExecutionException("Ingest pipeline is full.");
+        }
+    }
+
+    private void enqueueApply(final List<ScimEventNotification> sens, final List<Long> sequences) {
+        // the events may be durable already, so they are not rejected anymore, the publisher waits for a free slot
+        applyStage.execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(sens, sequences);
+            }
+        });
+    }
+
+    private void apply(List<ScimEventNotification> sens, List<Long> sequences) {
+        List<Set<Subscription>> toBeNotified;
+        try {
+            toBeNotified = manager.applyMessages(sens);
+        } catch (RuntimeException e) {
+            System.err.println("Error while applying the events, applying them one by one: " + e.getMessage());
+            for (int i = 0; i < sens.size(); i++) {
+                applyOne(sens.get(i), sequences.isEmpty() ? null : sequences.get(i));
+            }
+            return;
+        }
+        for (Long sequence : sequences) {
+            ingestLog.markApplied(sequence);
+        }
+        if (outbox.isEnabled()) {
+            outbox.wakeUp();
+            return;
+        }
+        for (int i = 0; i < sens.size(); i++) {
+            dispatch(sens.get(i), toBeNotified.get(i));
+        }
+    }
+
+    // applies the sen alone with the attempts, then dead-letters it
+    private void applyOne(ScimEventNotification sen, Long sequence) {
+        for (int attempt = 1; attempt <= applyAttempts; attempt++) {
+            try {
+                Set<Subscription> subscriptions = manager.applyMessage(sen);
+                retried.increment();
+                if (sequence != null) ingestLog.markApplied(sequence);
+                dispatch(sen, subscriptions);
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Attempt " + attempt + " to apply the event failed: " + e.getMessage());
+            }
+        }
+        failed.increment();
+        if (sequence != null) {
+            ingestLog.markFailed(sequence, sen.toJsonBytes());
+        } else {
+            System.err.println("Dropping the event after " + applyAttempts + " failed attempts: " + new String(sen.toJsonBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    // with the outbox, the webCallbacks are already stored and the relay delivers them
+    private void dispatch(final ScimEventNotification sen, final Set<Subscription> subscriptions) {
+        if (subscriptions.isEmpty()) return;
+        if (outbox.isEnabled()) {
+            outbox.wakeUp();
+            return;
+        }
+        dispatchStage.execute(new Runnable() {
+            @Override
+            public void run() {
+                manager.notifySubscriptions(subscriptions, sen);
+            }
+        });
+    }
+}
@@ -0,0 +1,81 @@
+package core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared Jackson readers and writers of the hub.
+ * The readers and writers are immutable and thread safe, sharing them keeps the cached serializers and deserializers,
+ * which are lost with each new ObjectMapper.
+ *
+ * @author Jiri Mauritz
+ */
+public final class Json {
+
+    // configured once, only the readers and writers are exposed
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // json syntax regardless of the format being parsed, used for the raw json values
+    static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    public static final ObjectReader SEN_READER = MAPPER.readerFor(ScimEventNotification.class);
+    public static final ObjectWriter SEN_WRITER = MAPPER.writerFor(ScimEventNotification.class);
+    public static final ObjectReader FILTER_READER = MAPPER.readerFor(SubscriptionFilter.class);
+    public static final ObjectReader MAP_READER = MAPPER.readerFor(Map.class);
+    public static final ObjectReader TREE_READER = MAPPER.readerFor(JsonNode.class);
+    public static final ObjectWriter WRITER = MAPPER.writer();
+
+    private Json() {
+    }
+
+    /**
+     * Convert the parsed json value, e.g. a map, to the type.
+     *
+     * @param value parsed json value
+     * @param type  target type
+     * @param <T>   target type
+     * @return converted value
+     * @throws IllegalArgumentException if the value cannot be converted
+     */
+    public static <T> T convert(Object value, Class<T> type) {
+        return MAPPER.convertValue(value, type);
+    }
+
+    /**
+     * Split the json array into the raw bytes of its elements.
+     * The elements are only tokenized, not parsed into objects, so they are parsed once by their reader later.
+     *
+     * @param array json array, UTF-8 encoded
+     * @return bytes of each element, in the order of the array
+     * @throws IOException if the bytes are not a json array
+     */
+    public static List<byte[]> splitArray(byte[] array) throws IOException {
+        List<byte[]> elements = new ArrayList<>();
+        try (JsonParser parser = FACTORY.createParser(array)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) throw new JsonParseException(parser, "Expected a json array.");
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == null) throw new JsonParseException(parser, "Unexpected end of the json array.");
+                int start = (int) parser.getTokenLocation().getByteOffset();
+                parser.skipChildren();
+                // scalar values are read lazily
+                parser.finishToken();
+                int end = (int) parser.getCurrentLocation().getByteOffset();
+                elements.add(Arrays.copyOfRange(array, start, end));
+            }
+        }
+        return elements;
+    }
+}
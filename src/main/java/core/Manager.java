@@ -1,5 +1,6 @@
 package core;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -20,6 +21,45 @@ public interface Manager {
      */
     public void newMessage(String json);
 
+    /**
+     * Add new message to the feeds, same as newMessage(String).
+     * The message is parsed directly from the bytes, without decoding them into a string.
+     *
+     * @param json scim notification event in json format, UTF-8 encoded
+     * @throws IllegalArgumentException if the json in null or not valid
+     */
+    public void newMessage(byte[] json);
+
+    /**
+     * Add new message in the format to the feeds, same as newMessage(String).
+     *
+     * @param body   serialized scim notification event
+     * @param format wire format of the body
+     * @throws IllegalArgumentException if the body in null or not valid
+     */
+    public void newMessage(byte[] body, EventFormat format);
+
+    /**
+     * Add new messages to the feeds specified in the messages, processing them together.
+     * Each affected feed is loaded and stored only once for the whole batch, messages keep their order in the feeds.
+     * Either all messages are accepted, or none if any of them is not valid. All the feeds are stored in one transaction.
+     * The webCallbacks are not merged across the events: a subscription without batching receives one webCallback
+     * per event, as its subscriber expects, a subscription with batching collects the events into its batches.
+     *
+     * @param jsons scim notification events in json format
+     * @throws IllegalArgumentException if any of the jsons is null or not valid
+     */
+    public void newMessages(List<String> jsons);
+
+    /**
+     * Add new messages to the feeds specified in the messages, processing them together, same as newMessages().
+     * The messages are parsed directly from the bytes, without decoding them into strings.
+     *
+     * @param jsons scim notification events in json format, UTF-8 encoded
+     * @throws IllegalArgumentException if any of the jsons is null or not valid
+     */
+    public void newMessageBodies(List<byte[]> jsons);
+
     /**
      * Creates new subscription of the subscriber to the feed with the given mode.
      * If the subscriber or the feed do not exist, they are created.
@@ -32,6 +72,16 @@ public interface Manager {
      */
     public void newSubscription(String subscriberId, String feedUri, SubscriptionModeEnum mode, String eventUri);
 
+    /**
+     * Creates new subscription of the subscriber with all its settings (e.g. batching of the webCallbacks).
+     * If the subscriber or the feed do not exist, they are created.
+     *
+     * @param subscriberId identificator of the subscriber
+     * @param subscription to be created
+     * @throws IllegalArgumentException if the subscription already exists
+     */
+    public void newSubscription(String subscriberId, Subscription subscription);
+
     /**
      * Subscription is removed from specified feed by calling this method.
      * If the subscriber or feed does not exists, returns false.
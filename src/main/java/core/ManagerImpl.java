@@ -1,19 +1,22 @@
 package core;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import dao.FeedDao;
 import dao.SubscriberDao;
 import dao.SubscriptionDao;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.env.Environment;
 import rest.RestClientController;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Manager controls the notification hub and keeps all the feeds.
@@ -22,7 +25,7 @@ import java.util.Set;
  */
 @Named
 @Singleton
-public class ManagerImpl implements Manager {
+public class ManagerImpl implements Manager, InitializingBean, ApplicationListener<ContextRefreshedEvent> {
 
     @Inject
     private SubscriberDao subscriberDao;
@@ -33,58 +36,372 @@ public class ManagerImpl implements Manager {
     @Inject
     private SubscriptionDao subscriptionDao;
 
-    // feed uri mapped on the feed object
+    @Inject
+    private IngestLog ingestLog;
+
+    @Inject
+    private CallbackOutboxRelay outbox;
+
+    @Inject
+    private Environment env;
+
+    @Inject
+    private Metrics metrics;
+
+    // wildcard feeds, kept in sync with the feeds map
+    private final FeedRouter router = new FeedRouter();
+
+    // gauges of each feed as of its last operation, scraped without the lock of the manager
+    private final ConcurrentMap<String, Integer> queueDepths = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> maxLags = new ConcurrentHashMap<>();
+
+    // feed uri mapped on the feed object, changed only by addFeed(), removeFeed() and updateFeeds(),
+    // which keep the router and the gauges in sync
     private Map<String, Feed> feeds = new HashMap<String, Feed>();
 
     // subscriber identificator mapped on the subscriber object
     private Map<String, Subscriber> subscribers = new HashMap<String, Subscriber>();
 
+    // feeds coalescing the pending messages, exact uris and wildcard feeds
+    private final Set<String> coalescingUris = new HashSet<>();
+    private final FeedRouter coalescingRouter = new FeedRouter();
+
+    // latencies of the phases of the new messages and of the poll, in nanoseconds
+    private Metrics.Histogram parseTimer;
+    private Metrics.Histogram reloadTimer;
+    private Metrics.Histogram classifyTimer;
+    private Metrics.Histogram persistTimer;
+    private Metrics.Histogram dispatchTimer;
+    private Metrics.Histogram pollTimer;
+    private Metrics.Histogram fanOut;
+    private Metrics.Histogram pollSize;
+    private Metrics.Counter acceptedEvents;
+    private Metrics.Counter rejectedEvents;
+    private Metrics.Counter reloadStatements;
+    private Metrics.Counter persistStatements;
+    private Metrics.Counter pollStatements;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        String uris = env.getProperty("feed.coalesce.uris", "");
+        for (String uri : uris.split(",")) {
+            if (!uri.trim().isEmpty()) {
+                coalescingUris.add(uri.trim());
+                coalescingRouter.add(uri.trim());
+            }
+        }
+        initMetrics();
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        // replay events that were accepted, but not applied before the shutdown
+        for (IngestLog.Record record : ingestLog.recover()) {
+            ScimEventNotification sen;
+            try {
+                sen = parseMessage(record.getJson());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping invalid event " + record.getSequence() + " of the ingest log: " + e.getMessage());
+                ingestLog.markApplied(record.getSequence());
+                continue;
+            }
+            Set<Subscription> toBeNotified;
+            try {
+                toBeNotified = applyMessage(sen);
+            } catch (RuntimeException e) {
+                System.err.println("Moving event " + record.getSequence() + " of the ingest log to the dead letters: " + e.getMessage());
+                ingestLog.markFailed(record.getSequence(), record.getJson().getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            ingestLog.markApplied(record.getSequence());
+            deliver(Collections.singletonList(sen), Collections.singletonList(toBeNotified));
+        }
+    }
 
     @Override
     public void newMessage(String json) {
         if (json == null) throw new IllegalArgumentException("Json cannot be null.");
+        newMessage(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void newMessage(byte[] json) {
+        newMessage(json, EventFormat.JSON);
+    }
+
+    @Override
+    public void newMessage(byte[] body, EventFormat format) {
+        ScimEventNotification sen = parseMessage(body, format);
+        Set<Subscription> toBeNotified;
+        if (ingestLog.isEnabled()) {
+            // the event is durable before it touches the feeds, it is replayed if the processing does not finish
+            byte[] logged = format == EventFormat.JSON ? body : sen.toJsonBytes();
+            long sequence = ingestLog.append(logged);
+            try {
+                toBeNotified = applyMessage(sen);
+            } catch (RuntimeException | Error e) {
+                // the publisher gets the error, the failed event must not hold back the checkpoint of the log
+                ingestLog.markFailed(sequence, logged);
+                throw e;
+            }
+            ingestLog.markApplied(sequence);
+        } else {
+            toBeNotified = applyMessage(sen);
+        }
+        deliver(Collections.singletonList(sen), Collections.singletonList(toBeNotified));
+    }
+
+    @Override
+    public void newMessages(List<String> jsons) {
+        if (jsons == null) throw new IllegalArgumentException("Jsons cannot be null.");
+        List<byte[]> bodies = new ArrayList<>(jsons.size());
+        for (String json : jsons) {
+            bodies.add(json == null ? null : json.getBytes(StandardCharsets.UTF_8));
+        }
+        newMessageBodies(bodies);
+    }
+
+    @Override
+    public void newMessageBodies(List<byte[]> jsons) {
+        if (jsons == null) throw new IllegalArgumentException("Jsons cannot be null.");
+        List<ScimEventNotification> sens = parseMessages(jsons);
+        if (sens.isEmpty()) return;
+        List<Set<Subscription>> toBeNotified;
+        if (ingestLog.isEnabled()) {
+            // whole batch shares one fsync
+            List<Long> sequences = ingestLog.appendAll(jsons);
+            try {
+                toBeNotified = applyMessages(sens);
+            } catch (RuntimeException | Error e) {
+                for (int i = 0; i < sequences.size(); i++) {
+                    ingestLog.markFailed(sequences.get(i), jsons.get(i));
+                }
+                throw e;
+            }
+            for (Long sequence : sequences) {
+                ingestLog.markApplied(sequence);
+            }
+        } else {
+            toBeNotified = applyMessages(sens);
+        }
+        deliver(sens, toBeNotified);
+    }
+
+    /**
+     * Parse and validate all scim event notifications of the batch.
+     *
+     * @param jsons scim event notifications in json format, UTF-8 encoded
+     * @return parsed sens in the same order
+     * @throws IllegalArgumentException if any json in null or not valid
+     */
+    List<ScimEventNotification> parseMessages(List<byte[]> jsons) {
+        List<ScimEventNotification> sens = new ArrayList<>(jsons.size());
+        for (int i = 0; i < jsons.size(); i++) {
+            try {
+                sens.add(parseMessage(jsons.get(i)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid event at position " + i + ": " + e.getMessage(), e);
+            }
+        }
+        return sens;
+    }
+
+    /**
+     * Parse and validate the scim event notification.
+     *
+     * @param json scim event notification in json format
+     * @return parsed sen
+     * @throws IllegalArgumentException if the json in null or not valid
+     */
+    ScimEventNotification parseMessage(String json) {
+        if (json == null) throw new IllegalArgumentException("Json cannot be null.");
+        long start = System.nanoTime();
         // String -> JSON
-        ObjectMapper mapper = new ObjectMapper();
-        ScimEventNotification sen;
         try {
-            sen = mapper.readValue(json, ScimEventNotification.class);
+            ScimEventNotification sen = Json.SEN_READER.readValue(json);
+            acceptedEvents.increment();
+            return sen;
         } catch (IOException e) {
+            rejectedEvents.increment();
             throw new IllegalArgumentException("Invalid JSON.", e);
+        } finally {
+            parseTimer.recordSince(start);
         }
-        // update feeds
-        feedDao.updateIdentifiers(feeds);
-        // classify the sen into right feeds
-        Set<String> urisToBeNotified = new HashSet<>();
-        for (String feedUri : sen.getFeedUris()) {
-            Feed feed = feeds.get(feedUri);
-            if (feed == null) {
-                // create new feed
-                feed = new Feed(feedUri);
-                feeds.put(feedUri, feed);
-                feedDao.create(feed);
-            } else {
-                feedDao.update(feed);
-            }
-            Set<Subscriber> subscribersToBeNotified = new HashSet<>();
-            subscribersToBeNotified.addAll(feed.newMsg(sen));
-            for (Subscriber subscriber : subscribersToBeNotified) {
-                for (Subscription subscription : subscriber.getSubscriptions()) {
-                    if (subscription.getFeedUri().equals(feed.getUri())) {
-                        urisToBeNotified.add(subscription.getEventUri());
+    }
+
+    /**
+     * Parse and validate the scim event notification directly from the bytes.
+     *
+     * @param json scim event notification in json format, UTF-8 encoded
+     * @return parsed sen
+     * @throws IllegalArgumentException if the json in null or not valid
+     */
+    ScimEventNotification parseMessage(byte[] json) {
+        return parseMessage(json, EventFormat.JSON);
+    }
+
+    /**
+     * Parse and validate the scim event notification in the format.
+     *
+     * @param body   serialized scim event notification
+     * @param format wire format of the body
+     * @return parsed sen
+     * @throws IllegalArgumentException if the body in null or not valid
+     */
+    ScimEventNotification parseMessage(byte[] body, EventFormat format) {
+        if (body == null) throw new IllegalArgumentException("Json cannot be null.");
+        if (format == null) throw new NullPointerException("Format cannot be null.");
+        long start = System.nanoTime();
+        try {
+            ScimEventNotification sen = format.read(body);
+            acceptedEvents.increment();
+            return sen;
+        } catch (IOException e) {
+            rejectedEvents.increment();
+            throw new IllegalArgumentException("Invalid " + format.name() + ".", e);
+        } finally {
+            parseTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Classify the parsed message into its feeds and store the feeds.
+     * The webCallback subscribers are not notified, the returned subscriptions are left for notifySubscriptions().
+     *
+     * @param sen scim event notification
+     * @return webCallback subscriptions to be notified
+     */
+    Set<Subscription> applyMessage(ScimEventNotification sen) {
+        return applyMessages(Collections.singletonList(sen)).get(0);
+    }
+
+    /**
+     * Classify the parsed messages into their feeds and store the feeds.
+     * Each affected feed is loaded once for all the messages, all the affected feeds are stored in one transaction.
+     * Besides its own feeds, each message goes to the wildcard feeds matching them.
+     * The webCallback subscribers are not notified, the returned subscriptions are left for notifySubscriptions().
+     * With the outbox, the webCallbacks are stored in the same transaction.
+     *
+     * @param sens scim event notifications in the order of arrival
+     * @return webCallback subscriptions to be notified, for each sen at the same position
+     */
+    synchronized List<Set<Subscription>> applyMessages(List<ScimEventNotification> sens) {
+        // time of each phase summed over the feeds, recorded once for the call
+        long reloadNanos = 0;
+        long classifyNanos = 0;
+        long persistNanos = 0;
+        long start = System.nanoTime();
+        Metrics.Counter previousOperation = metrics.setOperation(reloadStatements);
+        try {
+            // update feeds
+            updateFeeds();
+            long now = System.nanoTime();
+            reloadNanos += now - start;
+            start = now;
+            // group the sens by feeds, keeping their order
+            Map<String, List<Integer>> sensByFeed = new LinkedHashMap<>();
+            // the set of a sen is allocated by its first subscription, the sens without subscribers share the empty set
+            List<Set<Subscription>> toBeNotified = new ArrayList<>(sens.size());
+            for (int i = 0; i < sens.size(); i++) {
+                toBeNotified.add(Collections.<Subscription>emptySet());
+                // the sen goes to its feeds and to the wildcard feeds matching them
+                Set<String> feedUris = new LinkedHashSet<>(sens.get(i).getFeedUris());
+                for (String feedUri : sens.get(i).getFeedUris()) {
+                    feedUris.addAll(router.route(feedUri));
+                }
+                for (String feedUri : feedUris) {
+                    List<Integer> feedSens = sensByFeed.get(feedUri);
+                    if (feedSens == null) {
+                        feedSens = new ArrayList<>();
+                        sensByFeed.put(feedUri, feedSens);
+                    }
+                    feedSens.add(i);
+                }
+            }
+            now = System.nanoTime();
+            classifyNanos += now - start;
+            start = now;
+            // classify the sens into right feeds
+            List<Feed> affected = new ArrayList<>(sensByFeed.size());
+            List<CallbackOutboxEntry> callbacks = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> entry : sensByFeed.entrySet()) {
+                String feedUri = entry.getKey();
+                metrics.setOperation(reloadStatements);
+                Feed feed = feeds.get(feedUri);
+                if (feed == null) {
+                    // create new feed
+                    feed = new Feed(feedUri);
+                    addFeed(feed);
+                    feedDao.create(feed);
+                } else {
+                    feedDao.update(feed);
+                }
+                now = System.nanoTime();
+                reloadNanos += now - start;
+                start = now;
+                feed.setCoalescing(coalescingUris.contains(feedUri) || !coalescingRouter.route(feedUri).isEmpty());
+                for (Integer index : entry.getValue()) {
+                    Subscription[] routes = feed.routeMsg(sens.get(index));
+                    if (routes.length == 0) continue;
+                    Set<Subscription> subscriptions = toBeNotified.get(index);
+                    if (subscriptions.isEmpty()) {
+                        subscriptions = new HashSet<>();
+                        toBeNotified.set(index, subscriptions);
+                    }
+                    Collections.addAll(subscriptions, routes);
+                }
+                affected.add(feed);
+                now = System.nanoTime();
+                classifyNanos += now - start;
+                start = now;
+            }
+            if (outbox.isEnabled()) {
+                // each event uri receives the sen once, one set of the uris is reused for all the sens
+                Set<String> eventUris = new HashSet<>();
+                for (int i = 0; i < sens.size(); i++) {
+                    eventUris.clear();
+                    for (Subscription subscription : toBeNotified.get(i)) {
+                        if (eventUris.add(subscription.getEventUri())) {
+                            callbacks.add(new CallbackOutboxEntry(subscription, sens.get(i)));
+                        }
                     }
                 }
+                now = System.nanoTime();
+                classifyNanos += now - start;
+                start = now;
+            }
+            // all the feeds of the batch in one transaction
+            metrics.setOperation(persistStatements);
+            feedDao.storeStates(affected, callbacks);
+            persistNanos += System.nanoTime() - start;
+            for (Feed feed : affected) {
+                updateGauges(feed);
+            }
+            for (Set<Subscription> subscriptions : toBeNotified) {
+                fanOut.record(subscriptions.size());
             }
-            feedDao.storeState(feed);
+            return toBeNotified;
+        } finally {
+            metrics.setOperation(previousOperation);
+            reloadTimer.record(reloadNanos);
+            classifyTimer.record(classifyNanos);
+            persistTimer.record(persistNanos);
         }
-        webCallbackSend(urisToBeNotified, sen);
     }
 
     @Override
     public void newSubscription(String subscriberId, String feedUri, SubscriptionModeEnum mode, String eventUri) {
+        newSubscription(subscriberId, new Subscription(feedUri, mode, eventUri));
+    }
+
+    @Override
+    public synchronized void newSubscription(String subscriberId, Subscription subscription) {
         if (subscriberId == null) throw new NullPointerException("SubscriberId cannot be null.");
-        if (feedUri == null) throw new NullPointerException("FeedUri cannot be null.");
-        if (mode == null) throw new NullPointerException("Mode cannot be null.");
-        if (eventUri == null) throw new NullPointerException("EventUri cannot be null.");
+        if (subscription == null) throw new NullPointerException("Subscription cannot be null.");
+        if (subscription.getFeedUri() == null) throw new NullPointerException("FeedUri cannot be null.");
+        if (subscription.getMode() == null) throw new NullPointerException("Mode cannot be null.");
+        if (subscription.getEventUri() == null) throw new NullPointerException("EventUri cannot be null.");
+        String feedUri = subscription.getFeedUri();
 
         // update subscribers
         subscriberDao.update(subscribers);
@@ -99,26 +416,26 @@ public class ManagerImpl implements Manager {
         }
 
         // create subscription
-        Subscription subscription = new Subscription(feedUri, mode, eventUri);
         subscriber.addSubscription(subscription);
 
         // add to feed
-        feedDao.updateIdentifiers(feeds);
+        updateFeeds();
         Feed feed = feeds.get(feedUri);
         if (feed == null) {
             // create new feed
             feed = new Feed(feedUri);
-            feeds.put(feedUri, feed);
+            addFeed(feed);
             feedDao.create(feed);
         } else {
             feedDao.update(feed);
         }
         feed.addSubscriber(subscriber);
         feedDao.storeState(feed);
+        updateGauges(feed);
     }
 
     @Override
-    public boolean removeSubscription(String subscriberIdentifier, String feedUri) {
+    public synchronized boolean removeSubscription(String subscriberIdentifier, String feedUri) {
         if (subscriberIdentifier == null) throw new NullPointerException("SubscriberId cannot be null.");
         if (feedUri == null) throw new NullPointerException("FeedUri cannot be null.");
         subscriberDao.update(subscribers);
@@ -127,7 +444,7 @@ public class ManagerImpl implements Manager {
         if (subscriber.removeSubscription(feedUri)) {
 
             // update feed
-            feedDao.updateIdentifiers(feeds);
+            updateFeeds();
             Feed feed = feeds.get(feedUri);
             feedDao.update(feed);
 
@@ -143,8 +460,10 @@ public class ManagerImpl implements Manager {
 
             // remove the feed if nobody is subscribed
             if (feed.getSubscribers().isEmpty()) {
-                feeds.remove(feed.getUri());
+                removeFeed(feed.getUri());
                 feedDao.remove(feed);
+            } else {
+                updateGauges(feed);
             }
             return true;
         }
@@ -152,10 +471,10 @@ public class ManagerImpl implements Manager {
     }
 
     @Override
-    public boolean removeSubscriber(String subscriberId) {
+    public synchronized boolean removeSubscriber(String subscriberId) {
         if (subscriberId == null) throw new NullPointerException("SubscriberId cannot be null.");
         subscriberDao.update(subscribers);
-        feedDao.updateIdentifiers(feeds);
+        updateFeeds();
         if (!subscribers.containsKey(subscriberId)) return false;
         Subscriber subscriber = subscribers.get(subscriberId);
         for (Subscription subscription : subscriber.getSubscriptions()) {
@@ -169,10 +488,11 @@ public class ManagerImpl implements Manager {
 
             // remove the feed if nobody is subscribed
             if (feed.getSubscribers().isEmpty()) {
-                feeds.remove(feed.getUri());
+                removeFeed(feed.getUri());
                 feedDao.remove(feed);
             } else {
                 feedDao.storeState(feed);
+                updateGauges(feed);
             }
         }
         subscribers.remove(subscriber.getIdentifier());
@@ -181,31 +501,85 @@ public class ManagerImpl implements Manager {
     }
 
     @Override
-    public Set<ScimEventNotification> poll(String subscriberIdentifier) {
+    public synchronized Set<ScimEventNotification> poll(String subscriberIdentifier) {
         if (subscriberIdentifier == null) throw new IllegalArgumentException("Subscriber's identifier cannot be null.");
-        subscriberDao.update(subscribers);
-        feedDao.updateIdentifiers(feeds);
-        if (!subscribers.containsKey(subscriberIdentifier)) {
-            throw new IllegalArgumentException("Subscriber with identifier " + subscriberIdentifier + " does not exists.");
+        long start = System.nanoTime();
+        Metrics.Counter previousOperation = metrics.setOperation(pollStatements);
+        try {
+            subscriberDao.update(subscribers);
+            updateFeeds();
+            if (!subscribers.containsKey(subscriberIdentifier)) {
+                throw new IllegalArgumentException("Subscriber with identifier " + subscriberIdentifier + " does not exists.");
+            }
+
+            // get subscriber
+            Subscriber subscriber = subscribers.get(subscriberIdentifier);
+            Set<ScimEventNotification> msgsToSend = new HashSet<>();
+            // retrieve all msgs for each feed
+            for (Subscription subscription : subscriber.getSubscriptions()) {
+                if (subscription.getMode().equals(SubscriptionModeEnum.poll)) {
+                    Feed feed = feeds.get(subscription.getFeedUri());
+                    feedDao.update(feed);
+                    msgsToSend.addAll(feed.poll(subscriber));
+                    feedDao.storeState(feed);
+                    updateGauges(feed);
+                }
+            }
+            pollSize.record(msgsToSend.size());
+            return msgsToSend;
+        } finally {
+            metrics.setOperation(previousOperation);
+            pollTimer.recordSince(start);
         }
+    }
 
-        // get subscriber
-        Subscriber subscriber = subscribers.get(subscriberIdentifier);
-        Set<ScimEventNotification> msgsToSend = new HashSet<>();
-        // retrieve all msgs for each feed
-        for (Subscription subscription : subscriber.getSubscriptions()) {
-            if (subscription.getMode().equals(SubscriptionModeEnum.poll)) {
-                Feed feed = feeds.get(subscription.getFeedUri());
-                feedDao.update(feed);
-                msgsToSend.addAll(feed.poll(subscriber));
-                feedDao.storeState(feed);
+    /**
+     * Inform the webCallback subscriptions about the scim event.
+     * Subscriptions without batching are passed to webCallbackSend(), always called even with no uris,
+     * the ones with gzip to webCallbackSendGzip(), the ones with a binary format to webCallbackSendEncoded()
+     * and the batched ones to webCallbackBatch().
+     *
+     * @param subscriptions to be informed about scim event
+     * @param sen           which defines the scim event
+     */
+    void notifySubscriptions(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        Set<String> eventUris = new HashSet<>();
+        Set<String> gzipEventUris = new HashSet<>();
+        Map<String, Subscription> encoded = new HashMap<>();
+        Map<String, Subscription> batched = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.isBatched()) {
+                batched.put(subscription.getEventUri(), subscription);
+            } else if (subscription.getFormat() != EventFormat.JSON) {
+                encoded.put(subscription.getEventUri(), subscription);
+            } else if (subscription.isGzip()) {
+                gzipEventUris.add(subscription.getEventUri());
+            } else {
+                eventUris.add(subscription.getEventUri());
             }
         }
-        return msgsToSend;
+        // each uri receives the event once
+        gzipEventUris.removeAll(eventUris);
+        encoded.keySet().removeAll(eventUris);
+        encoded.keySet().removeAll(gzipEventUris);
+        batched.keySet().removeAll(eventUris);
+        batched.keySet().removeAll(gzipEventUris);
+        batched.keySet().removeAll(encoded.keySet());
+        webCallbackSend(eventUris, sen);
+        if (!gzipEventUris.isEmpty()) {
+            webCallbackSendGzip(gzipEventUris, sen);
+        }
+        if (!encoded.isEmpty()) {
+            webCallbackSendEncoded(new HashSet<>(encoded.values()), sen);
+        }
+        if (!batched.isEmpty()) {
+            webCallbackBatch(new HashSet<>(batched.values()), sen);
+        }
     }
 
     /**
      * Call REST layer to inform the subscribers about the scim event.
+     * The deliveries are only enqueued, they run in the background.
      *
      * @param eventUris to be informed about scim event
      * @param sen       which defines the scim event
@@ -214,13 +588,130 @@ public class ManagerImpl implements Manager {
         RestClientController.webCallback(eventUris, sen);
     }
 
+    /**
+     * Call REST layer to inform the subscribers accepting gzip about the scim event.
+     *
+     * @param eventUris to be informed about scim event
+     * @param sen       which defines the scim event
+     */
+    public void webCallbackSendGzip(Set<String> eventUris, ScimEventNotification sen) {
+        RestClientController.webCallback(eventUris, sen, true);
+    }
+
+    /**
+     * Call REST layer to inform the subscriptions with a binary format about the scim event.
+     *
+     * @param subscriptions without batching, each with different event uri
+     * @param sen           which defines the scim event
+     */
+    public void webCallbackSendEncoded(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        RestClientController.webCallbackEncoded(subscriptions, sen);
+    }
+
+    /**
+     * Call REST layer to add the scim event to the batches of the subscriptions.
+     *
+     * @param subscriptions with batching, each with different event uri
+     * @param sen           which defines the scim event
+     */
+    public void webCallbackBatch(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        RestClientController.webCallbackBatch(subscriptions, sen);
+    }
+
     @Override
-    public Set<String> getSubscriberIdentifiers() {
-        return subscribers.keySet();
+    public synchronized Set<String> getSubscriberIdentifiers() {
+        return new HashSet<>(subscribers.keySet());
     }
 
     @Override
-    public Subscriber getSubscriberByIdentifier(String identifier) {
+    public synchronized Subscriber getSubscriberByIdentifier(String identifier) {
         return subscribers.get(identifier);
     }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    // with the outbox, the webCallbacks are already stored and the relay delivers them
+    private void deliver(List<ScimEventNotification> sens, List<Set<Subscription>> toBeNotified) {
+        long start = System.nanoTime();
+        if (outbox.isEnabled()) {
+            outbox.wakeUp();
+        } else {
+            for (int i = 0; i < sens.size(); i++) {
+                notifySubscriptions(toBeNotified.get(i), sens.get(i));
+            }
+        }
+        dispatchTimer.recordSince(start);
+    }
+
+    private void initMetrics() {
+        String help = "Latency of the phases of the new messages: parse of each event, reload, classification and "
+                + "persistence of the feeds and dispatch of the webCallbacks for each batch.";
+        parseTimer = metrics.timer("hub_new_message_phase_seconds", help, Metrics.labels("phase", "parse"));
+        reloadTimer = metrics.timer("hub_new_message_phase_seconds", help, Metrics.labels("phase", "reload"));
+        classifyTimer = metrics.timer("hub_new_message_phase_seconds", help, Metrics.labels("phase", "classify"));
+        persistTimer = metrics.timer("hub_new_message_phase_seconds", help, Metrics.labels("phase", "persist"));
+        dispatchTimer = metrics.timer("hub_new_message_phase_seconds", help, Metrics.labels("phase", "dispatch"));
+        fanOut = metrics.histogram("hub_fanout_subscriptions", "WebCallback subscriptions notified about each event.",
+                Metrics.SIZE_BUCKETS, "");
+        acceptedEvents = metrics.counter("hub_events_total", "Events received by the result of the parse.",
+                Metrics.labels("result", "accepted"));
+        rejectedEvents = metrics.counter("hub_events_total", "Events received by the result of the parse.",
+                Metrics.labels("result", "rejected"));
+        pollTimer = metrics.timer("hub_poll_seconds", "Latency of the polls.", "");
+        pollSize = metrics.histogram("hub_poll_batch_size", "Messages returned by each poll.", Metrics.SIZE_BUCKETS, "");
+        reloadStatements = metrics.statementCounter("reload");
+        persistStatements = metrics.statementCounter("persist");
+        pollStatements = metrics.statementCounter("poll");
+        metrics.gauges("hub_feed_queue_depth", "Messages retained in the feed for its poll subscribers.",
+                new Metrics.GaugeFamily() {
+                    @Override
+                    public Map<String, Integer> values() {
+                        return queueDepths;
+                    }
+                });
+        metrics.gauges("hub_feed_max_lag", "Retained messages of the feed not seen yet by its slowest poll subscriber.",
+                new Metrics.GaugeFamily() {
+                    @Override
+                    public Map<String, Integer> values() {
+                        return maxLags;
+                    }
+                });
+    }
+
+    private void addFeed(Feed feed) {
+        feeds.put(feed.getUri(), feed);
+        router.add(feed.getUri());
+    }
+
+    private void removeFeed(String uri) {
+        if (feeds.remove(uri) != null) forgetFeed(uri);
+    }
+
+    private void forgetFeed(String uri) {
+        router.remove(uri);
+        queueDepths.remove(Metrics.labels("feed", uri));
+        maxLags.remove(Metrics.labels("feed", uri));
+    }
+
+    // reload the feed uris from the storage, the feeds added and removed by other instances are synced too
+    private void updateFeeds() {
+        Set<String> known = new HashSet<>(feeds.keySet());
+        feedDao.updateIdentifiers(feeds);
+        if (known.equals(feeds.keySet())) return;
+        for (String uri : feeds.keySet()) {
+            if (!known.remove(uri)) router.add(uri);
+        }
+        // the rest was removed by the storage
+        for (String uri : known) {
+            forgetFeed(uri);
+        }
+    }
+
+    // called by the operations on the feed, the feeds are reloaded by the operations
+    private void updateGauges(Feed feed) {
+        String labels = Metrics.labels("feed", feed.getUri());
+        queueDepths.put(labels, feed.getMessages().size());
+        Subscriber slowest = feed.getSlowestPollSubscriber();
+        maxLags.put(labels, slowest == null ? 0 : feed.getLag(slowest));
+    }
 }
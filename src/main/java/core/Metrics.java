@@ -0,0 +1,373 @@
+package core;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the metrics of the hub, scraped in the Prometheus text format.
+ * The counters and histograms are backed by LongAdders, recording does not allocate and does not contend,
+ * so the metrics stay enabled in production. The histograms have fixed buckets, the latencies are recorded
+ * in nanoseconds and scraped in seconds. The gauges are evaluated only when scraped.
+ * The components register their metrics once at the start and keep the returned counters and histograms.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class Metrics {
+
+    /**
+     * Latency buckets from 100 microseconds to 10 seconds, in nanoseconds.
+     */
+    public static final long[] LATENCY_BUCKETS = {100000L, 250000L, 500000L, 1000000L, 2500000L, 5000000L,
+            10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L, 1000000000L, 2500000000L,
+            5000000000L, 10000000000L};
+
+    /**
+     * Size buckets for the fan-outs and batches.
+     */
+    public static final long[] SIZE_BUCKETS = {0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 5000};
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    // metric name mapped on its family, sorted for the scrape
+    private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+    // statement counter of the operation running on the thread
+    private final ThreadLocal<Counter> statementCounter = new ThreadLocal<>();
+    private Counter otherStatements;
+
+    public Metrics() {
+        otherStatements = statementCounter("other");
+    }
+
+    /**
+     * Get or create the counter.
+     *
+     * @param name   metric name
+     * @param help   description of the metric
+     * @param labels labels of the series, see labels()
+     * @return counter
+     */
+    public Counter counter(String name, String help, String labels) {
+        return (Counter) series(name, help, "counter", labels, new Counter());
+    }
+
+    /**
+     * Get or create the latency histogram, recorded in nanoseconds and scraped in seconds.
+     *
+     * @param name   metric name, should end with '_seconds'
+     * @param help   description of the metric
+     * @param labels labels of the series, see labels()
+     * @return histogram
+     */
+    public Histogram timer(String name, String help, String labels) {
+        return (Histogram) series(name, help, "histogram", labels, new Histogram(LATENCY_BUCKETS, 1 / NANOS_PER_SECOND));
+    }
+
+    /**
+     * Get or create the histogram of the values.
+     *
+     * @param name    metric name
+     * @param help    description of the metric
+     * @param buckets upper bounds of the buckets, sorted
+     * @param labels  labels of the series, see labels()
+     * @return histogram
+     */
+    public Histogram histogram(String name, String help, long[] buckets, String labels) {
+        return (Histogram) series(name, help, "histogram", labels, new Histogram(buckets, 1));
+    }
+
+    /**
+     * Register the gauge, it is evaluated when scraped. A gauge registered again replaces the previous one.
+     *
+     * @param name   metric name
+     * @param help   description of the metric
+     * @param labels labels of the series, see labels()
+     * @param gauge  current value
+     */
+    public void gauge(String name, String help, String labels, Gauge gauge) {
+        if (gauge == null) throw new NullPointerException("Gauge cannot be null.");
+        family(name, help, "gauge").series.put(labels, gauge);
+    }
+
+    /**
+     * Register the family of gauges with the series known only when scraped, e.g. one for each feed.
+     *
+     * @param name   metric name
+     * @param help   description of the metric
+     * @param gauges current values of the series
+     */
+    public void gauges(String name, String help, GaugeFamily gauges) {
+        if (gauges == null) throw new NullPointerException("Gauges cannot be null.");
+        family(name, help, "gauge").dynamic = gauges;
+    }
+
+    /**
+     * Counter of the database statements prepared by the operation.
+     *
+     * @param operation name of the operation
+     * @return counter to be passed to setOperation()
+     */
+    public Counter statementCounter(String operation) {
+        return counter("hub_db_statements_total", "Database statements prepared by the operation.",
+                labels("operation", operation));
+    }
+
+    /**
+     * Count the database statements of the current thread to the counter of the operation.
+     *
+     * @param counter statement counter of the operation, null for the 'other' operation
+     * @return counter of the previous operation, to be restored when the operation ends
+     */
+    public Counter setOperation(Counter counter) {
+        Counter previous = statementCounter.get();
+        if (counter == null) {
+            statementCounter.remove();
+        } else {
+            statementCounter.set(counter);
+        }
+        return previous;
+    }
+
+    /**
+     * Count one database statement to the operation of the current thread.
+     */
+    public void statementPrepared() {
+        Counter counter = statementCounter.get();
+        (counter == null ? otherStatements : counter).increment();
+    }
+
+    /**
+     * Render the labels of a series.
+     *
+     * @param keyValues label names and values in pairs
+     * @return labels in the Prometheus syntax, empty string for no labels
+     */
+    public static String labels(String... keyValues) {
+        if (keyValues.length % 2 != 0) throw new IllegalArgumentException("Labels must be in pairs.");
+        if (keyValues.length == 0) return "";
+        StringBuilder labels = new StringBuilder("{");
+        for (int i = 0; i < keyValues.length; i += 2) {
+            if (i > 0) labels.append(',');
+            labels.append(keyValues[i]).append("=\"");
+            String value = keyValues[i + 1] == null ? "" : keyValues[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    labels.append('\\').append(c);
+                } else if (c == '\n') {
+                    labels.append("\\n");
+                } else {
+                    labels.append(c);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    /**
+     * All the metrics in the Prometheus text format.
+     *
+     * @return text of the scrape
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    ((Histogram) metric).write(name, series.getKey(), out);
+                } else if (metric instanceof Counter) {
+                    sample(out, name, series.getKey(), ((Counter) metric).get());
+                } else {
+                    sample(out, name, series.getKey(), value((Gauge) metric));
+                }
+            }
+            GaugeFamily dynamic = family.dynamic;
+            if (dynamic != null) {
+                Map<String, ? extends Number> values;
+                try {
+                    values = dynamic.values();
+                } catch (RuntimeException e) {
+                    System.err.println("Error while collecting the metric " + name + ": " + e.getMessage());
+                    continue;
+                }
+                for (Map.Entry<String, ? extends Number> series : values.entrySet()) {
+                    sample(out, name, series.getKey(), series.getValue().doubleValue());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private Object series(String name, String help, String type, String labels, Object created) {
+        Family family = family(name, help, type);
+        Object existing = family.series.putIfAbsent(labels, created);
+        return existing == null ? created : existing;
+    }
+
+    private Family family(String name, String help, String type) {
+        if (name == null) throw new NullPointerException("Name cannot be null.");
+        Family family = families.get(name);
+        if (family == null) {
+            Family created = new Family(help, type);
+            family = families.putIfAbsent(name, created);
+            if (family == null) family = created;
+        }
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type + ".");
+        }
+        return family;
+    }
+
+    private static double value(Gauge gauge) {
+        try {
+            return gauge.value();
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    // label set with one more label
+    private static String withLabel(String labels, String key, String value) {
+        String label = key + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Histogram with fixed buckets.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        // the last bucket is over all the bounds
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        // unit of the scraped values
+        private final double scale;
+
+        private Histogram(long[] bounds, double scale) {
+            for (int i = 1; i < bounds.length; i++) {
+                if (bounds[i] <= bounds[i - 1]) throw new IllegalArgumentException("Buckets must be sorted.");
+            }
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+            this.scale = scale;
+        }
+
+        public void record(long value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            buckets[bucket < 0 ? -bucket - 1 : bucket].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Record the time elapsed since the start.
+         *
+         * @param startNanos result of System.nanoTime() at the start
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        private void write(String name, String labels, StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length ? format(bounds[i] * scale) : "+Inf";
+                sample(out, name + "_bucket", withLabel(labels, "le", le), cumulative);
+            }
+            sample(out, name + "_sum", labels, sum.sum() * scale);
+            sample(out, name + "_count", labels, cumulative);
+        }
+
+        private static String format(double bound) {
+            return bound == (long) bound ? String.valueOf((long) bound) : String.valueOf(bound);
+        }
+    }
+
+    /**
+     * Value evaluated when scraped.
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    /**
+     * Values of the series evaluated when scraped.
+     */
+    public interface GaugeFamily {
+        /**
+         * @return value by the labels of the series, see labels()
+         */
+        Map<String, ? extends Number> values();
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        // labels mapped on the counter, histogram or gauge
+        private final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+        private volatile GaugeFamily dynamic;
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
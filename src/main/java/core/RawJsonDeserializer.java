@@ -0,0 +1,34 @@
+package core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+/**
+ * Deserializer keeping a json object in its raw form.
+ * The tokens of the object are copied from the parser to a compact json string, no map is built for them.
+ * The parser validates the syntax, so the result is always a valid json object. The parser may read any Jackson format,
+ * the binary formats are transcoded to json.
+ *
+ * @author Jiri Mauritz
+ */
+public class RawJsonDeserializer extends JsonDeserializer<String> {
+
+    @Override
+    public String deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            return (String) ctxt.handleUnexpectedToken(Map.class, parser);
+        }
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = Json.FACTORY.createGenerator(writer)) {
+            generator.copyCurrentStructure(parser);
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,26 @@
+package core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * Serializer writing a raw json value to any Jackson format.
+ * The json is transcoded token by token, so the binary formats receive the value without building a map of it.
+ * Counterpart of the RawJsonDeserializer.
+ *
+ * @author Jiri Mauritz
+ */
+public class RawJsonSerializer extends JsonSerializer<String> {
+
+    @Override
+    public void serialize(String json, JsonGenerator generator, SerializerProvider serializers) throws IOException {
+        try (JsonParser parser = Json.FACTORY.createParser(json)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+    }
+}
@@ -2,15 +2,22 @@ package core;
 
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.Set;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Scim Notification Event (SEN) notifies a subscriber of a possible change in state of a
  * resource contained within a specified feed.
+ * The values of the sen are kept as the raw json, they are parsed only when they are accessed. The hub routes,
+ * stores and delivers the sens without looking into the values, so the json is passed through untouched.
  *
  * @author Jiri Mauritz
  */
@@ -23,20 +30,28 @@ public class ScimEventNotification implements java.io.Serializable {
     private Set<String> resourceUris;
     private ScimEventTypeEnum type;
     private Set<String> attributes;
-    private Map<String, Object> values;
+    // parsed values, null until they are accessed
+    private volatile Map<String, Object> values;
+    // raw json of the values, null until they are serialized
+    private volatile String valuesJson;
+    // json form, serialized once for all the subscribers
+    private transient volatile byte[] json;
+    // gzip of the json form, compressed once for all the subscribers
+    private transient volatile byte[] gzipJson;
+    // binary forms by the format, serialized once for all the subscribers
+    private transient volatile AtomicReferenceArray<byte[]> encoded;
 
     public ScimEventNotification() {
     }
 
-    @JsonCreator
-    public ScimEventNotification(
-            @JsonProperty("schemas") final Set<String> schemas,
-            @JsonProperty("feedUris") final Set<String> feedUris,
-            @JsonProperty("publisherUri") final String publisherUri,
-            @JsonProperty("resourceUris") final Set<String> resourceUris,
-            @JsonProperty("type") final String type,
-            @JsonProperty("attributes") final Set<String> attributes,
-            @JsonProperty("values") final Map<String, Object> values) {
+    public ScimEventNotification(Set<String> schemas, Set<String> feedUris, String publisherUri, Set<String> resourceUris,
+                                 String type, Set<String> attributes, Map<String, Object> values) {
+        this(schemas, feedUris, publisherUri, resourceUris, type, attributes);
+        this.values = values;
+    }
+
+    private ScimEventNotification(Set<String> schemas, Set<String> feedUris, String publisherUri, Set<String> resourceUris,
+                                  String type, Set<String> attributes) {
         if (!schemas.contains(EVENT_SCHEMA)) {
             throw new IllegalArgumentException("Schemas must contain schema: '" + EVENT_SCHEMA + "'.");
         }
@@ -47,7 +62,27 @@ public class ScimEventNotification implements java.io.Serializable {
         this.resourceUris = resourceUris;
         this.type = ScimEventTypeEnum.valueOf(type);
         this.attributes = attributes;
-        this.values = values;
+    }
+
+    /**
+     * Create the sen with the values in the raw json, they are not parsed until they are accessed.
+     * Used when parsing the sen from json and when loading it from the storage.
+     *
+     * @param valuesJson json object of the values, it has to be valid, null for no values
+     * @return sen
+     */
+    @JsonCreator
+    public static ScimEventNotification withValuesJson(
+            @JsonProperty("schemas") final Set<String> schemas,
+            @JsonProperty("feedUris") final Set<String> feedUris,
+            @JsonProperty("publisherUri") final String publisherUri,
+            @JsonProperty("resourceUris") final Set<String> resourceUris,
+            @JsonProperty("type") final String type,
+            @JsonProperty("attributes") final Set<String> attributes,
+            @JsonProperty("values") @JsonDeserialize(using = RawJsonDeserializer.class) final String valuesJson) {
+        ScimEventNotification sen = new ScimEventNotification(schemas, feedUris, publisherUri, resourceUris, type, attributes);
+        sen.valuesJson = valuesJson;
+        return sen;
     }
 
     public Long getId() {
@@ -56,6 +91,10 @@ public class ScimEventNotification implements java.io.Serializable {
 
     public void setId(Long id) {
         this.id = id;
+        // id is part of the json
+        this.json = null;
+        this.gzipJson = null;
+        this.encoded = null;
     }
 
     public Set<String> getSchemas() {
@@ -82,8 +121,166 @@ public class ScimEventNotification implements java.io.Serializable {
         return attributes;
     }
 
+    /**
+     * Values of the sen, they are parsed from the raw json on the first call.
+     *
+     * @return values
+     */
+    @JsonIgnore
     public Map<String, Object> getValues() {
-        return values;
+        Map<String, Object> parsed = values;
+        if (parsed == null && valuesJson != null) {
+            try {
+                parsed = Json.MAP_READER.readValue(valuesJson);
+            } catch (IOException e) {
+                throw new IllegalStateException("Invalid JSON of sen values.", e);
+            }
+            values = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Raw json of the values, it is serialized on the first call if the sen was created from the parsed values.
+     *
+     * @return json object of the values or 'null'
+     */
+    @JsonProperty("values")
+    @JsonRawValue
+    public String getValuesJson() {
+        String json = valuesJson;
+        if (json == null) {
+            try {
+                json = Json.WRITER.writeValueAsString(values);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Error when serializing sen values to JSON.", e);
+            }
+            valuesJson = json;
+        }
+        return json;
+    }
+
+    /**
+     * Json form of the sen, it is serialized on the first call and cached.
+     * The returned array must not be modified.
+     *
+     * @return json in UTF-8
+     */
+    public byte[] toJsonBytes() {
+        byte[] bytes = json;
+        if (bytes == null) {
+            try {
+                bytes = Json.SEN_WRITER.writeValueAsBytes(this);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Error when serializing sen to JSON.", e);
+            }
+            json = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Gzip of the json form of the sen, it is compressed on the first call and cached.
+     * The returned array must not be modified.
+     *
+     * @return compressed json in UTF-8
+     */
+    public byte[] toGzipJsonBytes() {
+        byte[] bytes = gzipJson;
+        if (bytes == null) {
+            bytes = Gzip.compress(toJsonBytes());
+            gzipJson = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Serialized form of the sen in the format, it is serialized on the first call and cached.
+     * The returned array must not be modified.
+     *
+     * @param format wire format
+     * @return serialized sen
+     */
+    public byte[] toBytes(EventFormat format) {
+        if (format == null) throw new NullPointerException("Format cannot be null.");
+        if (format == EventFormat.JSON) return toJsonBytes();
+        AtomicReferenceArray<byte[]> cache = encoded;
+        if (cache == null) {
+            cache = new AtomicReferenceArray<>(EventFormat.values().length);
+            encoded = cache;
+        }
+        byte[] bytes = cache.get(format.ordinal());
+        if (bytes == null) {
+            bytes = format.write(this);
+            cache.set(format.ordinal(), bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Json array of the sens composed of their cached json forms.
+     *
+     * @param sens to be serialized
+     * @return json array in UTF-8
+     */
+    public static byte[] toJsonArrayBytes(Collection<ScimEventNotification> sens) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('[');
+        boolean first = true;
+        for (ScimEventNotification sen : sens) {
+            if (!first) out.write(',');
+            byte[] bytes = sen.toJsonBytes();
+            out.write(bytes, 0, bytes.length);
+            first = false;
+        }
+        out.write(']');
+        return out.toByteArray();
+    }
+
+    /**
+     * Merge two sens of the same resources into one, used by the feeds coalescing the pending messages.
+     * Delete supersedes the older sen, modification is merged into the older create or modification
+     * with union of the attributes and the newer values. Other combinations are not merged.
+     *
+     * @param older sen, not seen by any subscriber yet
+     * @param newer sen
+     * @return merged sen or null if the sens cannot be merged
+     */
+    public static ScimEventNotification coalesce(ScimEventNotification older, ScimEventNotification newer) {
+        if (older == null) throw new NullPointerException("Older sen cannot be null.");
+        if (newer == null) throw new NullPointerException("Newer sen cannot be null.");
+        if (!older.resourceUris.equals(newer.resourceUris)) return null;
+        ScimEventTypeEnum type;
+        Set<String> attributes;
+        Map<String, Object> values;
+        if (newer.type == ScimEventTypeEnum.DELETE) {
+            // the values of the deleted resource are passed through without parsing
+            return withValuesJson(union(older.schemas, newer.schemas),
+                    union(older.feedUris, newer.feedUris), newer.publisherUri, newer.resourceUris, newer.type.name(),
+                    newer.attributes, newer.getValuesJson());
+        } else if (newer.type == ScimEventTypeEnum.MODIFY && (older.type == ScimEventTypeEnum.CREATE
+                || older.type == ScimEventTypeEnum.ADD || older.type == ScimEventTypeEnum.MODIFY)) {
+            // created resource stays created
+            type = older.type;
+            attributes = new LinkedHashSet<>();
+            if (older.attributes != null) attributes.addAll(older.attributes);
+            if (newer.attributes != null) attributes.addAll(newer.attributes);
+            values = new LinkedHashMap<>();
+            if (older.getValues() != null) values.putAll(older.getValues());
+            if (newer.getValues() != null) values.putAll(newer.getValues());
+        } else {
+            return null;
+        }
+        return new ScimEventNotification(union(older.schemas, newer.schemas), union(older.feedUris, newer.feedUris),
+                newer.publisherUri, newer.resourceUris, type.name(), attributes, values);
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private static Set<String> union(Set<String> first, Set<String> second) {
+        Set<String> union = new LinkedHashSet<>(first);
+        union.addAll(second);
+        return union;
     }
 
     @Override
@@ -99,7 +296,9 @@ public class ScimEventNotification implements java.io.Serializable {
         if (!resourceUris.equals(that.resourceUris)) return false;
         if (type != that.type) return false;
         if (!attributes.equals(that.attributes)) return false;
-        return values.equals(that.values);
+        // the same raw json is the common case, the values are parsed only when it differs
+        if (getValuesJson().equals(that.getValuesJson())) return true;
+        return Objects.equals(getValues(), that.getValues());
 
     }
 
@@ -110,8 +309,8 @@ public class ScimEventNotification implements java.io.Serializable {
         result = 31 * result + publisherUri.hashCode();
         result = 31 * result + resourceUris.hashCode();
         result = 31 * result + type.hashCode();
+        // values are left out, so the hash does not parse them
         result = 31 * result + attributes.hashCode();
-        result = 31 * result + values.hashCode();
         return result;
     }
 
@@ -124,7 +323,7 @@ public class ScimEventNotification implements java.io.Serializable {
                 ", resourceUris=" + resourceUris +
                 ", type=" + type +
                 ", attributes=" + attributes +
-                ", values=" + values +
+                ", values=" + getValuesJson() +
                 '}';
     }
 }
@@ -1,25 +1,44 @@
 package core;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Subscriber makes subscription to the feeds to get notifications.
  * The settings of each feed is defined by the Subscription object.
- * Subscriber can be subscribed to multiple feeds.
+ * Subscriber can be subscribed to multiple feeds, the subscriptions are kept by the feed uri.
  *
  * @author Jiri Mauritz
  */
 public class Subscriber {
     private Long id;
     private String identifier;
-    private Set<Subscription> subscriptions;
+    // subscriptions mapped by the feed uri, at most one subscription to the single feed
+    private Map<String, Subscription> subscriptions;
+
+    // read only view of the subscriptions
+    private final Set<Subscription> subscriptionSet = new AbstractSet<Subscription>() {
+        @Override
+        public Iterator<Subscription> iterator() {
+            return Collections.unmodifiableCollection(subscriptions.values()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return subscriptions.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Subscription)) return false;
+            Subscription subscription = (Subscription) o;
+            return subscription.getFeedUri() != null && subscription.equals(subscriptions.get(subscription.getFeedUri()));
+        }
+    };
 
     public Subscriber(String identifier) {
         this.id = null;
         this.identifier = identifier;
-        this.subscriptions = new HashSet<Subscription>();
+        this.subscriptions = new HashMap<String, Subscription>();
     }
 
     public Long getId() {
@@ -44,7 +63,18 @@ public class Subscriber {
      * @return all subscriptions
      */
     public Set<Subscription> getSubscriptions() {
-        return Collections.unmodifiableSet(subscriptions);
+        return subscriptionSet;
+    }
+
+    /**
+     * Retrieve the subscription to the feed.
+     *
+     * @param feedUri uri of the feed
+     * @return subscription to the feed or null if the subscriber is not subscribed to it
+     */
+    public Subscription getSubscription(String feedUri) {
+        if (feedUri == null) throw new NullPointerException("FeedUri cannot be null.");
+        return subscriptions.get(feedUri);
     }
 
     /**
@@ -54,13 +84,12 @@ public class Subscriber {
      */
     public void addSubscription(Subscription subscription) {
         if (subscription == null) throw new NullPointerException("Subscription cannot be null.");
+        if (subscription.getFeedUri() == null) throw new NullPointerException("FeedUri cannot be null.");
         // only one subscription to the single feed is allowed
-        for (Subscription sb : this.subscriptions) {
-            if (sb.getFeedUri().equals(subscription.getFeedUri())) {
-                throw new IllegalArgumentException("Subscription to the feed " + subscription.getFeedUri() + " already exists.");
-            }
+        if (subscriptions.containsKey(subscription.getFeedUri())) {
+            throw new IllegalArgumentException("Subscription to the feed " + subscription.getFeedUri() + " already exists.");
         }
-        this.subscriptions.add(subscription);
+        this.subscriptions.put(subscription.getFeedUri(), subscription);
     }
 
     /**
@@ -71,18 +100,22 @@ public class Subscriber {
      */
     public boolean removeSubscription(String feedUri) {
         if (feedUri == null) throw new NullPointerException("Subscription cannot be null.");
-        Subscription subscription = null;
-        for (Subscription s : subscriptions) {
-            if (s.getFeedUri().equals(feedUri)) {
-                subscription = s;
-            }
-        }
-        if (subscription == null) return false;
-        return subscriptions.remove(subscription);
+        return subscriptions.remove(feedUri) != null;
     }
 
+    /**
+     * Replace all subscriptions.
+     *
+     * @param subscriptions new subscriptions, only one subscription to the single feed is allowed
+     */
     public void setSubscriptions(Set<Subscription> subscriptions) {
-        this.subscriptions = subscriptions;
+        Map<String, Subscription> byFeed = new HashMap<>();
+        for (Subscription subscription : subscriptions) {
+            if (byFeed.put(subscription.getFeedUri(), subscription) != null) {
+                throw new IllegalArgumentException("Subscription to the feed " + subscription.getFeedUri() + " already exists.");
+            }
+        }
+        this.subscriptions = byFeed;
     }
 
     @Override
@@ -105,7 +138,7 @@ public class Subscriber {
     public String toString() {
         return "Subscriber{" +
                 "identifier='" + identifier + '\'' +
-                ", subscriptions=" + subscriptions +
+                ", subscriptions=" + subscriptionSet +
                 '}';
     }
 }
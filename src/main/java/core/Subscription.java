@@ -1,5 +1,7 @@
 package core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Subscriptions are made by the subscriber as a request to the Notification Hub.
  * The subscriber is connected to specified feed to receive notifications.
@@ -12,6 +14,15 @@ public class Subscription {
     private String feedUri;
     private SubscriptionModeEnum mode;
     private String eventUri;
+    // webCallback batching, disabled when the size is 1
+    private int batchSize = 1;
+    private long batchLingerMillis;
+    // webCallback bodies compressed by gzip
+    private boolean gzip;
+    // wire format of the webCallback bodies
+    private EventFormat format = EventFormat.JSON;
+    // filter of the events, null for all events
+    private SubscriptionFilter filter;
     //TODO: Jwt, pollInterval and state
 
     public Subscription(String feedUri, SubscriptionModeEnum mode, String eventUri) {
@@ -41,6 +52,101 @@ public class Subscription {
         return eventUri;
     }
 
+    /**
+     * @return maximal number of events delivered in one webCallback
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return how long the first event of a batch waits for the others
+     */
+    public long getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    /**
+     * Set the batched delivery of the webCallbacks.
+     * Events are delivered as a json array when the batch is full or after the linger time since its first event.
+     *
+     * @param batchSize         maximal number of events in one webCallback, 1 disables the batching
+     * @param batchLingerMillis how long the first event of a batch waits for the others
+     */
+    public void setBatching(int batchSize, long batchLingerMillis) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive.");
+        if (batchLingerMillis < 0) throw new IllegalArgumentException("Batch linger cannot be negative.");
+        this.batchSize = batchSize;
+        this.batchLingerMillis = batchLingerMillis;
+    }
+
+    /**
+     * @return true if the webCallback bodies over the size threshold are sent compressed by gzip
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Set the gzip compression of the webCallback bodies, the subscriber must accept 'Content-Encoding: gzip'.
+     *
+     * @param gzip true to compress the bodies
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return wire format of the webCallback bodies
+     */
+    public EventFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the wire format of the webCallback bodies, the subscriber must accept its media type.
+     * The retries of the failed webCallbacks are sent in the same format.
+     *
+     * @param format wire format, null for json
+     */
+    public void setFormat(EventFormat format) {
+        this.format = format == null ? EventFormat.JSON : format;
+    }
+
+    /**
+     * @return filter of the events delivered to the subscription, null if all the events are delivered
+     */
+    public SubscriptionFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Set the filter of the events delivered to the subscription.
+     *
+     * @param filter filter of the events, null or empty filter for all the events
+     */
+    public void setFilter(SubscriptionFilter filter) {
+        this.filter = filter == null || filter.isEmpty() ? null : filter;
+    }
+
+    @JsonIgnore
+    public boolean isBatched() {
+        return mode == SubscriptionModeEnum.webCallback && batchSize > 1;
+    }
+
+    /**
+     * Compare also the delivery settings, which are not part of equals().
+     *
+     * @param other subscription
+     * @return true if the subscriptions are equal and deliver the events the same way
+     */
+    public boolean hasSameSettings(Subscription other) {
+        if (!equals(other)) return false;
+        if (batchSize != other.batchSize || batchLingerMillis != other.batchLingerMillis) return false;
+        if (gzip != other.gzip || format != other.format) return false;
+        return filter == null ? other.filter == null : filter.equals(other.filter);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
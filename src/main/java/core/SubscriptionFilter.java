@@ -0,0 +1,138 @@
+package core;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.*;
+
+/**
+ * Filter of the events delivered to the subscription.
+ * The event passes if its type is one of the types, one of its resource uris starts with one of the prefixes
+ * and it changes one of the attributes. Empty condition passes all the events.
+ * The feed matches the filters of all its webCallback subscriptions at once by the SubscriptionIndex.
+ *
+ * @author Jiri Mauritz
+ */
+public final class SubscriptionFilter {
+    private final Set<ScimEventTypeEnum> types;
+    private final Set<String> resourceUriPrefixes;
+    private final Set<String> attributes;
+
+    @JsonCreator
+    public SubscriptionFilter(
+            @JsonProperty("types") Set<ScimEventTypeEnum> types,
+            @JsonProperty("resourceUriPrefixes") Set<String> resourceUriPrefixes,
+            @JsonProperty("attributes") Set<String> attributes) {
+        // EnumSet.copyOf() fails on an empty collection
+        Set<ScimEventTypeEnum> typesCopy = EnumSet.noneOf(ScimEventTypeEnum.class);
+        if (types != null) typesCopy.addAll(checkNulls(types, "Type"));
+        this.types = Collections.unmodifiableSet(typesCopy);
+        this.resourceUriPrefixes = immutableCopy(resourceUriPrefixes, "Resource uri prefix");
+        this.attributes = immutableCopy(attributes, "Attribute");
+    }
+
+    /**
+     * @return accepted event types, empty for all
+     */
+    public Set<ScimEventTypeEnum> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return accepted prefixes of the resource uris, empty for all
+     */
+    public Set<String> getResourceUriPrefixes() {
+        return resourceUriPrefixes;
+    }
+
+    /**
+     * @return accepted attributes, empty for all
+     */
+    public Set<String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return true if the filter passes all the events
+     */
+    @JsonIgnore
+    public boolean isEmpty() {
+        return types.isEmpty() && resourceUriPrefixes.isEmpty() && attributes.isEmpty();
+    }
+
+    /**
+     * Evaluate the filter on one event.
+     *
+     * @param sen scim event notification
+     * @return true if the event passes the filter
+     */
+    public boolean matches(ScimEventNotification sen) {
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
+        if (!types.isEmpty() && !types.contains(sen.getType())) return false;
+        if (!resourceUriPrefixes.isEmpty()) {
+            boolean found = false;
+            for (String uri : sen.getResourceUris()) {
+                for (String prefix : resourceUriPrefixes) {
+                    if (uri.startsWith(prefix)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (found) break;
+            }
+            if (!found) return false;
+        }
+        if (!attributes.isEmpty()) {
+            if (sen.getAttributes() == null) return false;
+            for (String attribute : sen.getAttributes()) {
+                if (attributes.contains(attribute)) return true;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private static Set<String> immutableCopy(Set<String> values, String name) {
+        if (values == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(new HashSet<>(checkNulls(values, name)));
+    }
+
+    private static <T> Collection<T> checkNulls(Collection<T> values, String name) {
+        for (T value : values) {
+            if (value == null) throw new IllegalArgumentException(name + " of the filter cannot be null.");
+        }
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        SubscriptionFilter that = (SubscriptionFilter) o;
+
+        if (!types.equals(that.types)) return false;
+        if (!resourceUriPrefixes.equals(that.resourceUriPrefixes)) return false;
+        return attributes.equals(that.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = types.hashCode();
+        result = 31 * result + resourceUriPrefixes.hashCode();
+        result = 31 * result + attributes.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionFilter{" +
+                "types=" + types +
+                ", resourceUriPrefixes=" + resourceUriPrefixes +
+                ", attributes=" + attributes +
+                '}';
+    }
+}
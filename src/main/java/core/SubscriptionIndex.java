@@ -0,0 +1,217 @@
+package core;
+
+import java.util.*;
+
+/**
+ * Routing table of the webCallback subscribers of one feed.
+ * The table holds the subscription of each subscriber to the feed, so the events are routed without searching
+ * the subscriptions of the subscribers. Without any filter, all the events share one precomputed array.
+ * With filters, each subscriber has a bit, the event types and the attributes map to the bitsets of the subscribers
+ * accepting them and the resource uri prefixes are kept in a trie, whose nodes hold the bitsets of the prefixes
+ * ending there. The match intersects the bitsets of the event, so only the matched subscribers are visited,
+ * the filters are not evaluated one by one.
+ * The index is immutable, the feed builds a new one when its subscriptions change.
+ *
+ * @author Jiri Mauritz
+ */
+public final class SubscriptionIndex {
+
+    private final String feedUri;
+    private final Subscriber[] subscribers;
+    // subscription to the feed of the subscriber at the same position
+    private final Subscription[] routes;
+    private final Map<Subscriber, Integer> positions;
+    // no subscriber has a filter
+    private final boolean unfiltered;
+    private final EnumMap<ScimEventTypeEnum, BitSet> typeBits = new EnumMap<>(ScimEventTypeEnum.class);
+    // subscribers without the type condition
+    private final BitSet anyType = new BitSet();
+    private final Map<String, BitSet> attributeBits = new HashMap<>();
+    // subscribers without the attribute condition
+    private final BitSet anyAttribute = new BitSet();
+    private final TrieNode uriTrie = new TrieNode();
+    // subscribers without the resource uri condition
+    private final BitSet anyUri = new BitSet();
+
+    /**
+     * Build the index of the subscribers of the feed.
+     * Subscribers without a subscription to the feed are left out.
+     *
+     * @param feedUri     uri of the feed, selects the subscription of each subscriber
+     * @param subscribers webCallback subscribers of the feed
+     */
+    public SubscriptionIndex(String feedUri, Collection<Subscriber> subscribers) {
+        if (feedUri == null) throw new NullPointerException("Feed uri cannot be null.");
+        if (subscribers == null) throw new NullPointerException("Subscribers cannot be null.");
+        this.feedUri = feedUri;
+        List<Subscriber> routedSubscribers = new ArrayList<>(subscribers.size());
+        List<Subscription> routedSubscriptions = new ArrayList<>(subscribers.size());
+        for (Subscriber subscriber : subscribers) {
+            Subscription subscription = subscriber.getSubscription(feedUri);
+            if (subscription != null) {
+                routedSubscribers.add(subscriber);
+                routedSubscriptions.add(subscription);
+            }
+        }
+        this.subscribers = routedSubscribers.toArray(new Subscriber[routedSubscribers.size()]);
+        this.routes = routedSubscriptions.toArray(new Subscription[routedSubscriptions.size()]);
+        this.positions = new HashMap<>();
+        for (ScimEventTypeEnum type : ScimEventTypeEnum.values()) {
+            typeBits.put(type, new BitSet(this.subscribers.length));
+        }
+        boolean anyFilter = false;
+        for (int bit = 0; bit < this.subscribers.length; bit++) {
+            positions.put(this.subscribers[bit], bit);
+            SubscriptionFilter filter = routes[bit].getFilter();
+            if (filter == null || filter.isEmpty()) {
+                for (BitSet bits : typeBits.values()) {
+                    bits.set(bit);
+                }
+                anyType.set(bit);
+                anyAttribute.set(bit);
+                anyUri.set(bit);
+                continue;
+            }
+            anyFilter = true;
+            if (filter.getTypes().isEmpty()) {
+                anyType.set(bit);
+            }
+            for (ScimEventTypeEnum type : ScimEventTypeEnum.values()) {
+                if (filter.getTypes().isEmpty() || filter.getTypes().contains(type)) {
+                    typeBits.get(type).set(bit);
+                }
+            }
+            if (filter.getAttributes().isEmpty()) {
+                anyAttribute.set(bit);
+            }
+            for (String attribute : filter.getAttributes()) {
+                BitSet bits = attributeBits.get(attribute);
+                if (bits == null) {
+                    bits = new BitSet(this.subscribers.length);
+                    attributeBits.put(attribute, bits);
+                }
+                bits.set(bit);
+            }
+            if (filter.getResourceUriPrefixes().isEmpty()) {
+                anyUri.set(bit);
+            }
+            for (String prefix : filter.getResourceUriPrefixes()) {
+                uriTrie.insert(prefix).ends.set(bit);
+            }
+        }
+        this.unfiltered = !anyFilter;
+    }
+
+    /**
+     * Find the subscribers whose filters accept the event.
+     *
+     * @param sen scim event notification
+     * @return matched subscribers
+     */
+    public Set<Subscriber> match(ScimEventNotification sen) {
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
+        if (unfiltered) return new HashSet<>(Arrays.asList(subscribers));
+        BitSet matched = matchBits(sen);
+        Set<Subscriber> result = new HashSet<>();
+        for (int bit = matched.nextSetBit(0); bit >= 0; bit = matched.nextSetBit(bit + 1)) {
+            result.add(subscribers[bit]);
+        }
+        return result;
+    }
+
+    /**
+     * Find the webCallback subscriptions to the feed whose filters accept the event.
+     * Without filters, the same precomputed array is returned for all the events, it must not be modified.
+     *
+     * @param sen scim event notification
+     * @return matched subscriptions
+     */
+    public Subscription[] route(ScimEventNotification sen) {
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
+        if (unfiltered) return routes;
+        BitSet matched = matchBits(sen);
+        Subscription[] result = new Subscription[matched.cardinality()];
+        int i = 0;
+        for (int bit = matched.nextSetBit(0); bit >= 0; bit = matched.nextSetBit(bit + 1)) {
+            result[i++] = routes[bit];
+        }
+        return result;
+    }
+
+    /**
+     * Check whether the index still routes the subscribers, so it can be kept after the feed is reloaded.
+     *
+     * @param subscribers webCallback subscribers of the feed
+     * @return true if the subscribers and their subscriptions to the feed are the same as in the index
+     */
+    public boolean isCurrent(Collection<Subscriber> subscribers) {
+        if (subscribers == null) throw new NullPointerException("Subscribers cannot be null.");
+        if (subscribers.size() != this.subscribers.length) return false;
+        for (Subscriber subscriber : subscribers) {
+            Integer position = positions.get(subscriber);
+            if (position == null) return false;
+            Subscription subscription = subscriber.getSubscription(feedUri);
+            if (subscription == null || !subscription.hasSameSettings(routes[position])) return false;
+        }
+        return true;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private BitSet matchBits(ScimEventNotification sen) {
+        BitSet matched = (BitSet) (sen.getType() == null ? anyType : typeBits.get(sen.getType())).clone();
+        if (!matched.isEmpty() && !attributeBits.isEmpty()) {
+            BitSet attributes = (BitSet) anyAttribute.clone();
+            if (sen.getAttributes() != null) {
+                for (String attribute : sen.getAttributes()) {
+                    BitSet bits = attributeBits.get(attribute);
+                    if (bits != null) attributes.or(bits);
+                }
+            }
+            matched.and(attributes);
+        }
+        if (!matched.isEmpty() && !uriTrie.isLeaf()) {
+            BitSet uris = (BitSet) anyUri.clone();
+            for (String uri : sen.getResourceUris()) {
+                uriTrie.collect(uri, uris);
+            }
+            matched.and(uris);
+        }
+        return matched;
+    }
+
+    // node of the trie of the resource uri prefixes
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        // subscribers with a prefix ending in this node
+        private final BitSet ends = new BitSet();
+
+        private TrieNode insert(String prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                TrieNode child = node.children.get(prefix.charAt(i));
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(prefix.charAt(i), child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        // add subscribers of all the prefixes of the uri
+        private void collect(String uri, BitSet result) {
+            TrieNode node = this;
+            result.or(node.ends);
+            for (int i = 0; i < uri.length(); i++) {
+                node = node.children.get(uri.charAt(i));
+                if (node == null) return;
+                result.or(node.ends);
+            }
+        }
+
+        private boolean isLeaf() {
+            return children.isEmpty() && ends.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel for a large number of delayed items.
+ * The wheel is an array of buckets, each bucket holds the items expiring in one tick, items scheduled
+ * further than one turn of the wheel wait for the given number of rounds.
+ * Scheduling is O(1) and a single thread expires the items, so there is no thread or sleep per item.
+ * Expired items are passed to the listener on the wheel thread, the listener should only hand them over.
+ *
+ * @param <T> type of the scheduled items
+ * @author Jiri Mauritz
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Receiver of the expired items.
+     *
+     * @param <T> type of the scheduled items
+     */
+    public interface Listener<T> {
+        public void expired(T item);
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Timeout<T>>[] buckets;
+    private final Queue<Timeout<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Listener<T> listener;
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+
+    /**
+     * Create and start the wheel.
+     *
+     * @param name       of the wheel thread
+     * @param tickMillis duration of one tick, the precision of the wheel
+     * @param wheelSize  number of buckets, rounded up to the power of two
+     * @param listener   receiver of the expired items
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickMillis, int wheelSize, Listener<T> listener) {
+        if (listener == null) throw new NullPointerException("Listener cannot be null.");
+        if (tickMillis <= 0) throw new IllegalArgumentException("Tick must be positive.");
+        if (wheelSize <= 0) throw new IllegalArgumentException("Wheel size must be positive.");
+        int normalizedSize = Integer.highestOneBit(wheelSize);
+        if (normalizedSize < wheelSize) normalizedSize <<= 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = normalizedSize - 1;
+        this.buckets = new List[normalizedSize];
+        for (int i = 0; i < normalizedSize; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.listener = listener;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                turn();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule the item to expire after the delay.
+     *
+     * @param item        to be scheduled
+     * @param delayMillis delay in milliseconds, the item expires at the first tick after it
+     */
+    public void schedule(T item, long delayMillis) {
+        if (item == null) throw new NullPointerException("Item cannot be null.");
+        if (!running) throw new IllegalStateException("Timing wheel is stopped.");
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        size.incrementAndGet();
+        incoming.add(new Timeout<>(item, deadline));
+    }
+
+    /**
+     * @return number of the items waiting for the expiration
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Stop the wheel, waiting items are dropped.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private void turn() {
+        long tick = 0;
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                    continue;
+                }
+            }
+            transferIncoming(tick);
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming(long tick) {
+        Timeout<T> timeout;
+        while ((timeout = incoming.poll()) != null) {
+            long expirationTick = timeout.deadline / tickNanos;
+            timeout.rounds = (expirationTick - tick) / buckets.length;
+            // items already due go to the current bucket
+            long bucketTick = Math.max(expirationTick, tick);
+            buckets[(int) (bucketTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout<T>> bucket) {
+        Iterator<Timeout<T>> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout<T> timeout = it.next();
+            if (timeout.rounds <= 0) {
+                it.remove();
+                size.decrementAndGet();
+                try {
+                    listener.expired(timeout.item);
+                } catch (RuntimeException e) {
+                    System.err.println("Error while expiring the item " + timeout.item + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+            } else {
+                timeout.rounds--;
+            }
+        }
+    }
+
+    private static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private long rounds;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of JDK 21+ while the hub is compiled for Java 8.
+ * The virtual thread builder is looked up by reflection, on older JDKs the virtual threads are not available.
+ *
+ * @author Jiri Mauritz
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (ReflectiveOperationException e) {
+            // JDK without virtual threads
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Factory of the virtual threads named by the prefix and a counter.
+     *
+     * @param name prefix of the thread names
+     * @return thread factory
+     * @throws UnsupportedOperationException if the virtual threads are not available
+     */
+    public static ThreadFactory factory(String name) {
+        if (!isAvailable()) throw new UnsupportedOperationException("Virtual threads require JDK 21 or newer.");
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = NAME.invoke(builder, name + "-", 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual thread factory.", e);
+        }
+    }
+}
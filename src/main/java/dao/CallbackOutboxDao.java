@@ -0,0 +1,58 @@
+package dao;
+
+import core.CallbackOutboxEntry;
+
+import java.util.List;
+
+/**
+ * Interface for the callback outbox DAO.
+ * Manages the webCallbacks stored together with the feeds and waiting for the relay.
+ * The relay leases the entries, they stay stored until they are delivered or moved to the retries,
+ * so an entry claimed by a relay which stopped is claimed again when its lease expires.
+ *
+ * @author Jiri Mauritz
+ */
+public interface CallbackOutboxDao {
+
+    /**
+     * Store new entries, joins the transaction of the caller.
+     * The entries of the same sen share one stored copy of it.
+     *
+     * @param entries to be stored
+     */
+    public void create(List<CallbackOutboxEntry> entries);
+
+    /**
+     * Lease the oldest entries which are not claimed or whose lease expired.
+     * Concurrent relays claim disjoint entries, an entry is returned again only after its lease expires.
+     *
+     * @param limit       maximal number of the entries
+     * @param owner       identifier of the claiming relay
+     * @param leaseMillis how long the entries stay claimed
+     * @return claimed entries in the order of storing
+     */
+    public List<CallbackOutboxEntry> claim(int limit, String owner, long leaseMillis);
+
+    /**
+     * Release the entries claimed by the owner, e.g. by the previous run of the relay.
+     *
+     * @param owner identifier of the relay
+     * @return number of the released entries
+     */
+    public int release(String owner);
+
+    /**
+     * Remove the delivered entries, joins the transaction of the caller.
+     * The stored sen of the entries is removed by the claim which finds no more entries of it.
+     *
+     * @param entries claimed entries
+     */
+    public void remove(List<CallbackOutboxEntry> entries);
+
+    /**
+     * Count the entries waiting for the relay or for the delivery.
+     *
+     * @return number of the entries
+     */
+    public int count();
+}
@@ -0,0 +1,99 @@
+package dao;
+
+import core.CallbackOutboxEntry;
+import core.CallbackRetry;
+
+import java.util.List;
+
+/**
+ * Interface for the callback retry DAO.
+ * Manages the persistent queue of the failed webCallback deliveries.
+ *
+ * @author Jiri Mauritz
+ */
+public interface CallbackRetryDao {
+
+    /**
+     * Store new pending retry claimed by the owner.
+     *
+     * @param retry to be stored, its id is set
+     * @param owner identifier of the retry queue which attempts the retry
+     */
+    public void create(CallbackRetry retry, String owner);
+
+    /**
+     * Store new pending retry claimed by the owner in place of the outbox entries,
+     * which are removed in the same transaction.
+     *
+     * @param retry   to be stored, its id is set
+     * @param entries of the outbox which failed to be delivered
+     * @param owner   identifier of the retry queue which attempts the retry
+     */
+    public void create(CallbackRetry retry, List<CallbackOutboxEntry> entries, String owner);
+
+    /**
+     * Store the number of attempts, time of the next attempt and the last error of the pending retry
+     * and renew its lease, unless the retry is claimed by another owner meanwhile.
+     *
+     * @param retry to be updated
+     * @param owner identifier of the retry queue which attempted the retry
+     * @return false if the retry is not claimed by the owner anymore
+     */
+    public boolean update(CallbackRetry retry, String owner);
+
+    /**
+     * Lease the pending retries which are not claimed or whose lease expired, ordered by the time of the next attempt.
+     * Concurrent owners claim disjoint retries, the expired retries of the owner itself are not returned again.
+     *
+     * @param limit       maximal number of the claimed retries
+     * @param owner       identifier of the claiming retry queue
+     * @param leaseMillis how long the lease lasts without renewal
+     * @return claimed retries
+     */
+    public List<CallbackRetry> claim(int limit, String owner, long leaseMillis);
+
+    /**
+     * Renew the lease of all the pending retries claimed by the owner.
+     *
+     * @param owner identifier of the retry queue
+     * @return number of the renewed retries
+     */
+    public int renew(String owner);
+
+    /**
+     * Release the retries claimed by the owner, e.g. when it stops or by its previous run.
+     *
+     * @param owner identifier of the retry queue
+     * @return number of the released retries
+     */
+    public int release(String owner);
+
+    /**
+     * Move the retry to the dead letters, it is not attempted anymore.
+     *
+     * @param retry which exhausted its attempts
+     */
+    public void markDead(CallbackRetry retry);
+
+    /**
+     * Remove the retry after successful delivery.
+     *
+     * @param id of the retry
+     */
+    public void remove(Long id);
+
+    /**
+     * Retrieve all pending retries ordered by the time of the next attempt.
+     *
+     * @return pending retries
+     */
+    public List<CallbackRetry> getAllPending();
+
+    /**
+     * Count the retries by their state.
+     *
+     * @param dead true for the dead letters, false for the pending retries
+     * @return number of the retries
+     */
+    public int count(boolean dead);
+}
@@ -1,7 +1,9 @@
 package dao;
 
+import core.CallbackOutboxEntry;
 import core.Feed;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -37,6 +39,15 @@ public interface FeedDao {
      */
     public void storeState(Feed feed);
 
+    /**
+     * Store the inner state of all the feeds together with the webCallbacks to the outbox, in one transaction.
+     * Either all the feeds are stored, or none of them.
+     *
+     * @param feeds     to be stored, each created before
+     * @param callbacks webCallbacks of the new messages of the feeds, empty without the outbox
+     */
+    public void storeStates(List<Feed> feeds, List<CallbackOutboxEntry> callbacks);
+
     /**
      * Create a new feed in the storage.
      * No subscribers or messages are stored, use storeState() for storing them.
@@ -0,0 +1,70 @@
+package dao;
+
+/**
+ * Interface for the idempotency key DAO.
+ * Manages the keys of the accepted requests and their response statuses, the key is unique in the database.
+ *
+ * @author Jiri Mauritz
+ */
+public interface IdempotencyKeyDao {
+
+    /**
+     * Store new key of a request in progress.
+     *
+     * @param key     idempotency key
+     * @param created time of the request in millis
+     * @throws org.springframework.dao.DuplicateKeyException if the key is already stored
+     */
+    public void create(String key, long created);
+
+    /**
+     * Take over the key of a request in progress that was started before the time, so it is considered abandoned.
+     *
+     * @param key           idempotency key
+     * @param created       time of the new request in millis
+     * @param startedBefore time in millis, the request in progress must be older
+     * @return true if the key was taken over by the new request
+     */
+    public boolean takeOver(String key, long created, long startedBefore);
+
+    /**
+     * Start the request again with the key of a finished request created before the time, the window of the key expired.
+     *
+     * @param key           idempotency key
+     * @param created       time of the new request in millis
+     * @param createdBefore time in millis, the finished request must be older
+     * @return true if the key was started again by the new request
+     */
+    public boolean restart(String key, long created, long createdBefore);
+
+    /**
+     * Retrieve the response status of the request.
+     *
+     * @param key idempotency key
+     * @return response status, 0 if the request is still in progress, null if the key is not stored
+     */
+    public Integer getStatus(String key);
+
+    /**
+     * Store the response status of the finished request.
+     *
+     * @param key    idempotency key
+     * @param status response status
+     */
+    public void complete(String key, int status);
+
+    /**
+     * Remove the key, the request can be repeated.
+     *
+     * @param key idempotency key
+     */
+    public void remove(String key);
+
+    /**
+     * Remove the keys of the requests created before the time.
+     *
+     * @param created time in millis
+     * @return number of removed keys
+     */
+    public int removeOlderThan(long created);
+}
@@ -0,0 +1,165 @@
+package daoImpl;
+
+import core.CallbackOutboxEntry;
+import core.EventFormat;
+import core.Subscription;
+import core.SubscriptionModeEnum;
+import dao.CallbackOutboxDao;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * DAO for the callback outbox entries.
+ * The sen of the entries is stored once in a separate table, the sens without entries are removed when the relay
+ * catches up with the outbox, so the concurrent removals of the entries do not lock each other.
+ * The entries are leased by setting the time and the owner of the claim, the claim updates only the entries
+ * which are still free, so concurrent relays never claim the same entry. On PostgreSQL the relays also skip
+ * the rows locked by each other, other databases (e.g. Derby) lack SKIP LOCKED and rely on the conditional update.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+@Transactional
+public class CallbackOutboxDaoImpl implements CallbackOutboxDao {
+
+    private static final String TABLE_NAME = "scim_callback_outbox";
+    private static final String SEN_TABLE_NAME = "scim_callback_outbox_sen";
+
+    @Inject
+    private JdbcTemplate jdbcTemplate;
+
+    private volatile Boolean skipLocked;
+    private volatile SimpleJdbcInsert senInsert;
+
+    // Row Mapper for the outbox entry
+    private static final class CallbackOutboxEntryMapper implements RowMapper<CallbackOutboxEntry> {
+        public CallbackOutboxEntry mapRow(ResultSet rs, int rowNum) throws SQLException {
+            Subscription subscription = new Subscription(rs.getString("feed_uri"), SubscriptionModeEnum.webCallback,
+                    rs.getString("event_uri"));
+            subscription.setBatching(rs.getInt("batch_size"), rs.getLong("batch_linger"));
+            subscription.setGzip(rs.getBoolean("gzip"));
+            subscription.setFormat(EventFormat.valueOf(rs.getString("format")));
+            CallbackOutboxEntry entry = new CallbackOutboxEntry(subscription, rs.getString("sen_json"));
+            entry.setId(rs.getLong("id"));
+            entry.setSenId(rs.getLong("sen_id"));
+            return entry;
+        }
+    }
+
+    @Override
+    public void create(List<CallbackOutboxEntry> entries) {
+        if (entries == null) throw new NullPointerException("Entries cannot be null.");
+        if (entries.isEmpty()) return;
+        // the entries of the same sen share its row
+        Map<Object, Long> senIds = new IdentityHashMap<>();
+        String SQL = "INSERT INTO " + TABLE_NAME + " (feed_uri, event_uri, batch_size, batch_linger, gzip, format, sen_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        List<Object[]> rows = new ArrayList<>(entries.size());
+        for (CallbackOutboxEntry entry : entries) {
+            Object sen = entry.getSen() != null ? entry.getSen() : entry.getSenJson();
+            Long senId = senIds.get(sen);
+            if (senId == null) {
+                Map<String, Object> params = new HashMap<>();
+                params.put("sen_json", entry.getSenJson());
+                senId = getSenInsert().executeAndReturnKey(params).longValue();
+                senIds.put(sen, senId);
+            }
+            entry.setSenId(senId);
+            Subscription subscription = entry.getSubscription();
+            rows.add(new Object[]{subscription.getFeedUri(), subscription.getEventUri(), subscription.getBatchSize(),
+                    subscription.getBatchLingerMillis(), subscription.isGzip(), subscription.getFormat().name(), senId});
+        }
+        jdbcTemplate.batchUpdate(SQL, rows);
+    }
+
+    @Override
+    public List<CallbackOutboxEntry> claim(int limit, String owner, long leaseMillis) {
+        if (limit <= 0) throw new IllegalArgumentException("Limit must be positive.");
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        long now = System.currentTimeMillis();
+        long expired = now - leaseMillis;
+        String SQL = "SELECT o.id, o.feed_uri, o.event_uri, o.batch_size, o.batch_linger, o.gzip, o.format, o.sen_id, s.sen_json"
+                + " FROM " + TABLE_NAME + " o JOIN " + SEN_TABLE_NAME + " s ON o.sen_id = s.id"
+                + " WHERE o.claimed_at IS NULL OR o.claimed_at < ? ORDER BY o.id FETCH FIRST " + limit + " ROWS ONLY";
+        if (isSkipLocked()) SQL += " FOR UPDATE OF o SKIP LOCKED";
+        List<CallbackOutboxEntry> entries = jdbcTemplate.query(SQL, new CallbackOutboxEntryMapper(), expired);
+        if (entries.size() < limit) {
+            // caught up with the outbox, the sens of the removed entries are not needed anymore
+            jdbcTemplate.update("DELETE FROM " + SEN_TABLE_NAME + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_NAME
+                    + " o WHERE o.sen_id = " + SEN_TABLE_NAME + ".id)");
+        }
+        if (entries.isEmpty()) return entries;
+        List<Object[]> rows = new ArrayList<>(entries.size());
+        for (CallbackOutboxEntry entry : entries) {
+            rows.add(new Object[]{now, owner, entry.getId(), expired});
+        }
+        int[] updated = jdbcTemplate.batchUpdate("UPDATE " + TABLE_NAME + " SET claimed_at=?, claimed_by=?"
+                + " WHERE id=? AND (claimed_at IS NULL OR claimed_at < ?)", rows);
+        List<CallbackOutboxEntry> claimed = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            // entry claimed by another relay meanwhile
+            if (updated[i] == 0) continue;
+            claimed.add(entries.get(i));
+        }
+        return claimed;
+    }
+
+    @Override
+    public int release(String owner) {
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET claimed_at=NULL, claimed_by=NULL WHERE claimed_by=?";
+        return jdbcTemplate.update(SQL, owner);
+    }
+
+    @Override
+    public void remove(List<CallbackOutboxEntry> entries) {
+        if (entries == null) throw new NullPointerException("Entries cannot be null.");
+        if (entries.isEmpty()) return;
+        List<Object[]> ids = new ArrayList<>(entries.size());
+        for (CallbackOutboxEntry entry : entries) {
+            ids.add(new Object[]{entry.getId()});
+        }
+        jdbcTemplate.batchUpdate("DELETE FROM " + TABLE_NAME + " WHERE id=?", ids);
+    }
+
+    @Override
+    public int count() {
+        String SQL = "SELECT COUNT(*) FROM " + TABLE_NAME;
+        return jdbcTemplate.queryForObject(SQL, Integer.class);
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private SimpleJdbcInsert getSenInsert() {
+        if (senInsert == null) {
+            SimpleJdbcInsert insert = new SimpleJdbcInsert(jdbcTemplate).withTableName(SEN_TABLE_NAME).usingGeneratedKeyColumns("id");
+            insert.compile();
+            senInsert = insert;
+        }
+        return senInsert;
+    }
+
+    private boolean isSkipLocked() {
+        if (skipLocked == null) {
+            skipLocked = jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+                @Override
+                public Boolean doInConnection(Connection connection) throws SQLException, DataAccessException {
+                    return "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName());
+                }
+            });
+        }
+        return skipLocked;
+    }
+}
@@ -0,0 +1,191 @@
+package daoImpl;
+
+import core.CallbackOutboxEntry;
+import core.CallbackRetry;
+import core.EventFormat;
+import dao.CallbackOutboxDao;
+import dao.CallbackRetryDao;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DAO for the callback retry object.
+ * The pending retries are leased by the time and the owner of the claim, so the retry queues of several hub instances
+ * sharing the database attempt each retry once. The owner renews the lease of its retries, the retries of an owner
+ * which stopped are claimed by another one after the lease expires. On PostgreSQL the claims skip the rows locked
+ * by each other, other databases (e.g. Derby) rely on the conditional update.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+@Transactional
+public class CallbackRetryDaoImpl implements CallbackRetryDao {
+
+    private static final String TABLE_NAME = "scim_callback_retry";
+    private static final String PENDING = "pending";
+    private static final String DEAD = "dead";
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    @Inject
+    private JdbcTemplate jdbcTemplate;
+
+    @Inject
+    private CallbackOutboxDao outboxDao;
+
+    private volatile Boolean skipLocked;
+
+    // Row Mapper for the callback retry object
+    private static final class CallbackRetryMapper implements RowMapper<CallbackRetry> {
+        public CallbackRetry mapRow(ResultSet rs, int rowNum) throws SQLException {
+            CallbackRetry retry = new CallbackRetry(rs.getString("event_uri"), rs.getString("sen_json"));
+            retry.setId(rs.getLong("id"));
+            retry.setGzip(rs.getBoolean("gzip"));
+            String format = rs.getString("format");
+            retry.setFormat(format == null ? null : EventFormat.valueOf(format));
+            retry.setAttempts(rs.getInt("attempts"));
+            retry.setNextAttempt(rs.getLong("next_attempt"));
+            retry.setLastError(rs.getString("last_error"));
+            return retry;
+        }
+    }
+
+    @Override
+    public void create(CallbackRetry retry, String owner) {
+        if (retry == null) throw new NullPointerException("Retry cannot be null.");
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        Map<String, Object> params = new HashMap<>();
+        params.put("event_uri", retry.getEventUri());
+        params.put("sen_json", retry.getSenJson());
+        params.put("gzip", retry.isGzip());
+        params.put("format", retry.getFormat().name());
+        params.put("attempts", retry.getAttempts());
+        params.put("next_attempt", retry.getNextAttempt());
+        params.put("status", PENDING);
+        params.put("last_error", truncate(retry.getLastError()));
+        params.put("claimed_at", System.currentTimeMillis());
+        params.put("claimed_by", owner);
+        SimpleJdbcInsert jdbcInsert = new SimpleJdbcInsert(jdbcTemplate).withTableName(TABLE_NAME).usingGeneratedKeyColumns("id");
+        Number id = jdbcInsert.executeAndReturnKey(params);
+        retry.setId(id.longValue());
+    }
+
+    @Override
+    public void create(CallbackRetry retry, List<CallbackOutboxEntry> entries, String owner) {
+        if (entries == null) throw new NullPointerException("Entries cannot be null.");
+        create(retry, owner);
+        outboxDao.remove(entries);
+    }
+
+    @Override
+    public boolean update(CallbackRetry retry, String owner) {
+        if (retry == null) throw new NullPointerException("Retry cannot be null.");
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        if (retry.getId() == null) throw new IllegalStateException("Retry is not stored yet.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET attempts=?, next_attempt=?, last_error=?, claimed_at=?"
+                + " WHERE id=? AND claimed_by=? AND status=?";
+        return jdbcTemplate.update(SQL, retry.getAttempts(), retry.getNextAttempt(), truncate(retry.getLastError()),
+                System.currentTimeMillis(), retry.getId(), owner, PENDING) == 1;
+    }
+
+    @Override
+    public List<CallbackRetry> claim(int limit, String owner, long leaseMillis) {
+        if (limit <= 0) throw new IllegalArgumentException("Limit must be positive.");
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        long now = System.currentTimeMillis();
+        long expired = now - leaseMillis;
+        String SQL = "SELECT * FROM " + TABLE_NAME + " WHERE status=? AND (claimed_at IS NULL OR (claimed_at < ? AND claimed_by<>?))"
+                + " ORDER BY next_attempt FETCH FIRST " + limit + " ROWS ONLY";
+        if (isSkipLocked()) SQL += " FOR UPDATE SKIP LOCKED";
+        List<CallbackRetry> retries = jdbcTemplate.query(SQL, new CallbackRetryMapper(), PENDING, expired, owner);
+        if (retries.isEmpty()) return retries;
+        List<Object[]> rows = new ArrayList<>(retries.size());
+        for (CallbackRetry retry : retries) {
+            rows.add(new Object[]{now, owner, retry.getId(), PENDING, expired});
+        }
+        int[] updated = jdbcTemplate.batchUpdate("UPDATE " + TABLE_NAME + " SET claimed_at=?, claimed_by=?"
+                + " WHERE id=? AND status=? AND (claimed_at IS NULL OR claimed_at < ?)", rows);
+        List<CallbackRetry> claimed = new ArrayList<>(retries.size());
+        for (int i = 0; i < retries.size(); i++) {
+            // retry claimed by another owner meanwhile
+            if (updated[i] == 0) continue;
+            claimed.add(retries.get(i));
+        }
+        return claimed;
+    }
+
+    @Override
+    public int renew(String owner) {
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET claimed_at=? WHERE claimed_by=? AND status=?";
+        return jdbcTemplate.update(SQL, System.currentTimeMillis(), owner, PENDING);
+    }
+
+    @Override
+    public int release(String owner) {
+        if (owner == null) throw new NullPointerException("Owner cannot be null.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET claimed_at=NULL, claimed_by=NULL WHERE claimed_by=? AND status=?";
+        return jdbcTemplate.update(SQL, owner, PENDING);
+    }
+
+    @Override
+    public void markDead(CallbackRetry retry) {
+        if (retry == null) throw new NullPointerException("Retry cannot be null.");
+        if (retry.getId() == null) throw new IllegalStateException("Retry is not stored yet.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET attempts=?, last_error=?, status=? WHERE id=?";
+        jdbcTemplate.update(SQL, retry.getAttempts(), truncate(retry.getLastError()), DEAD, retry.getId());
+    }
+
+    @Override
+    public void remove(Long id) {
+        if (id == null) throw new NullPointerException("Id of the retry cannot be null.");
+        String SQL = "DELETE FROM " + TABLE_NAME + " WHERE id=?";
+        jdbcTemplate.update(SQL, id);
+    }
+
+    @Override
+    public List<CallbackRetry> getAllPending() {
+        String SQL = "SELECT * FROM " + TABLE_NAME + " WHERE status=? ORDER BY next_attempt";
+        return jdbcTemplate.query(SQL, new CallbackRetryMapper(), PENDING);
+    }
+
+    @Override
+    public int count(boolean dead) {
+        String SQL = "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE status=?";
+        return jdbcTemplate.queryForObject(SQL, Integer.class, dead ? DEAD : PENDING);
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private static String truncate(String error) {
+        if (error == null || error.length() <= MAX_ERROR_LENGTH) return error;
+        return error.substring(0, MAX_ERROR_LENGTH);
+    }
+
+    private boolean isSkipLocked() {
+        if (skipLocked == null) {
+            skipLocked = jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+                @Override
+                public Boolean doInConnection(Connection connection) throws SQLException, DataAccessException {
+                    return "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName());
+                }
+            });
+        }
+        return skipLocked;
+    }
+}
@@ -1,6 +1,7 @@
 package daoImpl;
 
 import core.*;
+import dao.CallbackOutboxDao;
 import dao.FeedDao;
 import dao.SubscriberDao;
 import dao.SubscriptionDao;
@@ -41,6 +42,9 @@ public class FeedDaoImpl implements FeedDao {
     @Inject
     private ScimEventNotificationDaoImpl senDao;
 
+    @Inject
+    private CallbackOutboxDao outboxDao;
+
     // Row Mapper for the feed object
     private static final class FeedMapper implements RowMapper<Feed> {
         public Feed mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -79,7 +83,12 @@ public class FeedDaoImpl implements FeedDao {
         feed.setId(returned.getId());
         feed.setSlowestPollSubscriber(getSlowestSubscriber(feed));
         feed.setPollSubscribersLastMsg(subscriberDao.getPollSubscribers(feed));
-        feed.setCallbackSubscribers(subscriberDao.getWebCallbackSubscribers(feed));
+        // the webCallback subscribers and their routing table are reloaded only when the subscriptions changed
+        Long version = getSubscriptionsVersion(feed);
+        if (!version.equals(feed.getSubscriptionsVersion())) {
+            feed.setCallbackSubscribers(subscriberDao.getWebCallbackSubscribers(feed));
+            feed.setSubscriptionsVersion(version);
+        }
 
         // update messages
         // get all messages with link to the previous message
@@ -125,25 +134,21 @@ public class FeedDaoImpl implements FeedDao {
             if (subscriber.getId() == null) {
                 subscriberDao.create(subscriber);
             }
-            // store subscription
-            for (Subscription subscription : subscriber.getSubscriptions()) {
-                // find subscription for this feed
-                if (subscription.getFeedUri().equals(feed.getUri())) {
-                    // feed that belongs to our feed
-                    if (subscription.getId() == null) {
-                        // create subscription if not created
-                        subscriptionDao.create(subscription, subscriber, feed);
-                    }
-                    if (subscription.getMode().equals(SubscriptionModeEnum.poll)) {
-                        // store last seen msg if the subscription is in poll mode
-                        ScimEventNotification lastSeenMsg = feed.getPollSubscribersLastMsg().get(subscriber);
-                        if (lastSeenMsg != null) {
-                            subscriptionDao.storeLastSeenMsg(subscription, lastSeenMsg.getId());
-                        }
+            // store subscription for this feed
+            Subscription subscription = subscriber.getSubscription(feed.getUri());
+            if (subscription != null) {
+                if (subscription.getId() == null) {
+                    // create subscription if not created
+                    subscriptionDao.create(subscription, subscriber, feed);
+                }
+                if (subscription.getMode().equals(SubscriptionModeEnum.poll)) {
+                    // store last seen msg if the subscription is in poll mode
+                    ScimEventNotification lastSeenMsg = feed.getPollSubscribersLastMsg().get(subscriber);
+                    if (lastSeenMsg != null) {
+                        subscriptionDao.storeLastSeenMsg(subscription, lastSeenMsg.getId());
                     }
-                    subscriptionsToRemove.remove(subscription.getId());
-                    break;
                 }
+                subscriptionsToRemove.remove(subscription.getId());
             }
         }
         // remove extra subscriptions
@@ -166,12 +171,26 @@ public class FeedDaoImpl implements FeedDao {
         safelyRemoveMsgs(senIdsToRemove, feed.getId());
     }
 
+    @Override
+    public void storeStates(List<Feed> feeds, List<CallbackOutboxEntry> callbacks) {
+        if (feeds == null) throw new NullPointerException("Feeds cannot be null.");
+        if (callbacks == null) throw new NullPointerException("Callbacks cannot be null.");
+        for (Feed feed : feeds) {
+            storeState(feed);
+        }
+        // the sens have their ids now
+        if (!callbacks.isEmpty()) {
+            outboxDao.create(callbacks);
+        }
+    }
+
     @Override
     public void create(Feed feed) {
         if (feed == null) throw new NullPointerException("Feed cannot be null");
         if (feed.getId() != null) throw new IllegalStateException("Feed is already stored.");
         Map<String, Object> params = new HashMap<>();
         params.put("uri", feed.getUri());
+        params.put("subscriptions_version", 0L);
         SimpleJdbcInsert jdbcInsert = new SimpleJdbcInsert(jdbcTemplate).withTableName(TABLE_NAME).usingGeneratedKeyColumns("id");
         Number id = jdbcInsert.executeAndReturnKey(params);
         feed.setId(id.longValue());
@@ -209,6 +228,11 @@ public class FeedDaoImpl implements FeedDao {
         return jdbcTemplate.queryForObject(SQL, new FeedMapper(), uri);
     }
 
+    private Long getSubscriptionsVersion(Feed feed) {
+        String SQL = "SELECT subscriptions_version FROM " + TABLE_NAME + " WHERE id=?";
+        return jdbcTemplate.queryForObject(SQL, Long.class, feed.getId());
+    }
+
     private Subscriber getSlowestSubscriber(Feed feed) {
         String SQL = "SELECT scim_subscriber.id, scim_subscriber.identifier FROM " + TABLE_NAME + " JOIN scim_subscriber ON " +
                 "scim_feed.slowest_subscriber_id=scim_subscriber.id WHERE scim_feed.id=?";
@@ -0,0 +1,77 @@
+package daoImpl;
+
+import dao.IdempotencyKeyDao;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.List;
+
+/**
+ * DAO for the idempotency keys.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+@Transactional
+public class IdempotencyKeyDaoImpl implements IdempotencyKeyDao {
+
+    private static final String TABLE_NAME = "scim_idempotency_key";
+    private static final int IN_PROGRESS = 0;
+
+    @Inject
+    private JdbcTemplate jdbcTemplate;
+
+    @Override
+    public void create(String key, long created) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        String SQL = "INSERT INTO " + TABLE_NAME + " (idempotency_key, status, created) VALUES (?, ?, ?)";
+        jdbcTemplate.update(SQL, key, IN_PROGRESS, created);
+    }
+
+    @Override
+    public boolean takeOver(String key, long created, long startedBefore) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET created=? WHERE idempotency_key=? AND status=? AND created<?";
+        return jdbcTemplate.update(SQL, created, key, IN_PROGRESS, startedBefore) == 1;
+    }
+
+    @Override
+    public boolean restart(String key, long created, long createdBefore) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET status=?, created=? WHERE idempotency_key=? AND status<>? AND created<?";
+        return jdbcTemplate.update(SQL, IN_PROGRESS, created, key, IN_PROGRESS, createdBefore) == 1;
+    }
+
+    @Override
+    public Integer getStatus(String key) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        String SQL = "SELECT status FROM " + TABLE_NAME + " WHERE idempotency_key=?";
+        List<Integer> statuses = jdbcTemplate.queryForList(SQL, Integer.class, key);
+        return statuses.isEmpty() ? null : statuses.get(0);
+    }
+
+    @Override
+    public void complete(String key, int status) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        if (status <= IN_PROGRESS) throw new IllegalArgumentException("Status must be positive.");
+        String SQL = "UPDATE " + TABLE_NAME + " SET status=? WHERE idempotency_key=?";
+        jdbcTemplate.update(SQL, status, key);
+    }
+
+    @Override
+    public void remove(String key) {
+        if (key == null) throw new NullPointerException("Key cannot be null.");
+        String SQL = "DELETE FROM " + TABLE_NAME + " WHERE idempotency_key=?";
+        jdbcTemplate.update(SQL, key);
+    }
+
+    @Override
+    public int removeOlderThan(long created) {
+        String SQL = "DELETE FROM " + TABLE_NAME + " WHERE created<?";
+        return jdbcTemplate.update(SQL, created);
+    }
+}
@@ -1,6 +1,5 @@
 package daoImpl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import core.Feed;
 import core.ScimEventNotification;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -150,7 +149,7 @@ public class ScimEventNotificationDaoImpl {
         SQL = "SELECT name FROM scim_sen_attribute WHERE sen_id=?";
         Set<String> attributes = new HashSet<String>(jdbcTemplate.queryForList(SQL, String.class, id));
 
-        // get values
+        // get values, they are kept in json until they are accessed
         Object senValues = rs.getObject("sen_values");
         String json;
         if (senValues instanceof Clob) {
@@ -158,19 +157,10 @@ public class ScimEventNotificationDaoImpl {
         } else {
             json = (String) senValues;
         }
-        ObjectMapper mapper = new ObjectMapper();
-        Map<String, Object> values;
-        try {
-            values = (Map<String, Object>) mapper.readValue(json, Map.class);
-        } catch (IOException e) {
-            throw new IllegalStateException("Invalid JSON.", e);
-        } catch (ClassCastException e) {
-            throw new IllegalStateException("Invalid JSON.", e);
-        }
 
         // instantiate
-        ScimEventNotification sen = new ScimEventNotification(
-                schemas, feedUris, publisherUri, resourceUris, type, attributes, values);
+        ScimEventNotification sen = ScimEventNotification.withValuesJson(
+                schemas, feedUris, publisherUri, resourceUris, type, attributes, json);
         sen.setId(id);
         return sen;
     }
@@ -196,15 +186,11 @@ public class ScimEventNotificationDaoImpl {
     /* ============ PRIVATE METHODS ============= */
 
     private void storePureSen(ScimEventNotification sen) {
-        ObjectMapper mapper = new ObjectMapper();
         Map<String, Object> params = new HashMap<String, Object>();
         params.put("publisher_uri", sen.getPublisherUri());
         params.put("type", sen.getType().name());
-        try {
-            params.put("sen_values", mapper.writeValueAsString(sen.getValues()));
-        } catch (IOException e) {
-            throw new IllegalStateException("Error when parsing sen values to plain JSON to store it in DB.", e);
-        }
+        // raw json of the values, they are not parsed for the storage
+        params.put("sen_values", sen.getValuesJson());
         SimpleJdbcInsert jdbcInsert = new SimpleJdbcInsert(jdbcTemplate).withTableName(TABLE_NAME).usingGeneratedKeyColumns("id");
         Number id = jdbcInsert.executeAndReturnKey(params);
         sen.setId(id.longValue());
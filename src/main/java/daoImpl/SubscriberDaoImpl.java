@@ -71,7 +71,11 @@ public class SubscriberDaoImpl implements SubscriberDao {
     public void remove(Subscriber subscriber) {
         if (subscriber == null) throw new NullPointerException("Subscriber cannot be null.");
         if (subscriber.getId() == null) throw new IllegalStateException("Subscriber is not stored.");
-        String SQL = "DELETE FROM " + TABLE_NAME + " WHERE id=?";
+        // the subscriptions are removed by the cascade, so the versions of their feeds are incremented here
+        String SQL = "UPDATE scim_feed SET " + SubscriptionDaoImpl.VERSION_INCREMENT + " WHERE id IN " +
+                "(SELECT feed_id FROM " + SubscriptionDaoImpl.TABLE_NAME + " WHERE subscriber_id=?)";
+        jdbcTemplate.update(SQL, subscriber.getId());
+        SQL = "DELETE FROM " + TABLE_NAME + " WHERE id=?";
         int rows = jdbcTemplate.update(SQL, subscriber.getId());
         if (rows > 1) throw new IllegalStateException("More than one subscriber removed.");
     }
@@ -143,11 +147,7 @@ public class SubscriberDaoImpl implements SubscriberDao {
     }
 
     private SubscriptionModeEnum typeOfSubscriber(Subscriber subscriber, Feed feed) {
-        for (Subscription subscription : subscriber.getSubscriptions()) {
-            if (subscription.getFeedUri().equals(feed.getUri())) {
-                return subscription.getMode();
-            }
-        }
-        return null;
+        Subscription subscription = subscriber.getSubscription(feed.getUri());
+        return subscription == null ? null : subscription.getMode();
     }
 }
@@ -1,5 +1,6 @@
 package daoImpl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import core.*;
 import dao.SubscriptionDao;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -10,6 +11,7 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
@@ -28,7 +30,10 @@ import java.util.Set;
 public class SubscriptionDaoImpl implements SubscriptionDao {
 
     static final String TABLE_NAME = "scim_subscription";
-    static final String FIELDS = "scim_subscription.mode, scim_subscription.event_uri, scim_feed.uri";
+    static final String FIELDS = "scim_subscription.mode, scim_subscription.event_uri, scim_subscription.batch_size, " +
+            "scim_subscription.batch_linger, scim_subscription.gzip, scim_subscription.format, scim_subscription.filter_json, scim_feed.uri";
+    // every change of the subscriptions to a feed increments its version, so the feed reloads its subscribers
+    static final String VERSION_INCREMENT = "subscriptions_version=subscriptions_version+1";
 
     @Inject
     private JdbcTemplate jdbcTemplate;
@@ -36,10 +41,26 @@ public class SubscriptionDaoImpl implements SubscriptionDao {
     // Row Mapper for the subscription object
     static final class SubscriptionMapper implements RowMapper<Subscription> {
         public Subscription mapRow(ResultSet rs, int rowNum) throws SQLException {
-            return new Subscription(
+            Subscription subscription = new Subscription(
                     rs.getString("uri"),
                     SubscriptionModeEnum.valueOf(rs.getString("mode")),
                     rs.getString("event_uri"));
+            int batchSize = rs.getInt("batch_size");
+            if (!rs.wasNull()) {
+                subscription.setBatching(batchSize, rs.getLong("batch_linger"));
+            }
+            subscription.setGzip(rs.getBoolean("gzip"));
+            String format = rs.getString("format");
+            subscription.setFormat(format == null ? null : EventFormat.valueOf(format));
+            String filterJson = rs.getString("filter_json");
+            if (filterJson != null) {
+                try {
+                    subscription.setFilter(Json.FILTER_READER.<SubscriptionFilter>readValue(filterJson));
+                } catch (IOException | IllegalArgumentException e) {
+                    throw new SQLException("Invalid filter of the subscription: " + filterJson, e);
+                }
+            }
+            return subscription;
         }
     }
 
@@ -53,6 +74,19 @@ public class SubscriptionDaoImpl implements SubscriptionDao {
         Map<String, Object> params = new HashMap<>();
         params.put("mode", subscription.getMode().name());
         params.put("event_uri", subscription.getEventUri());
+        if (subscription.isBatched()) {
+            params.put("batch_size", subscription.getBatchSize());
+            params.put("batch_linger", subscription.getBatchLingerMillis());
+        }
+        params.put("gzip", subscription.isGzip());
+        params.put("format", subscription.getFormat().name());
+        if (subscription.getFilter() != null) {
+            try {
+                params.put("filter_json", Json.WRITER.writeValueAsString(subscription.getFilter()));
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Cannot serialize the filter of the subscription.", e);
+            }
+        }
         params.put("subscriber_id", subscriber.getId());
         params.put("feed_id", feed.getId());
         ScimEventNotification lastSeenSen = feed.getPollSubscribersLastMsg().get(subscriber);
@@ -60,6 +94,8 @@ public class SubscriptionDaoImpl implements SubscriptionDao {
         SimpleJdbcInsert jdbcInsert = new SimpleJdbcInsert(jdbcTemplate).withTableName(TABLE_NAME).usingGeneratedKeyColumns("id");
         Number id = jdbcInsert.executeAndReturnKey(params);
         subscription.setId(id.longValue());
+        String SQL = "UPDATE scim_feed SET " + VERSION_INCREMENT + " WHERE id=?";
+        jdbcTemplate.update(SQL, feed.getId());
     }
 
     @Override
@@ -83,12 +119,18 @@ public class SubscriptionDaoImpl implements SubscriptionDao {
                 "?) AND feed_id=(SELECT id FROM scim_feed WHERE uri=?)";
         int rows = jdbcTemplate.update(SQL, subscriberIdentifier, feedUri);
         if (rows > 1) throw new IllegalStateException("More than one subscription removed.");
+        if (rows == 1) {
+            SQL = "UPDATE scim_feed SET " + VERSION_INCREMENT + " WHERE uri=?";
+            jdbcTemplate.update(SQL, feedUri);
+        }
     }
 
     @Override
     public void remove(Long id) {
         if (id == null) throw new NullPointerException("Id if the subscriber cannot be null.");
-        String SQL = "DELETE FROM " + TABLE_NAME + " WHERE id=?";
+        String SQL = "UPDATE scim_feed SET " + VERSION_INCREMENT + " WHERE id=(SELECT feed_id FROM " + TABLE_NAME + " WHERE id=?)";
+        jdbcTemplate.update(SQL, id);
+        SQL = "DELETE FROM " + TABLE_NAME + " WHERE id=?";
         jdbcTemplate.update(SQL, id);
     }
 
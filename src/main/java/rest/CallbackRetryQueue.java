@@ -0,0 +1,349 @@
+package rest;
+
+import core.BoundedExecutor;
+import core.CallbackOutboxEntry;
+import core.CallbackRetry;
+import core.EventFormat;
+import core.TimingWheel;
+import dao.CallbackRetryDao;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent queue of the failed webCallback deliveries.
+ * Each failed delivery is stored in the database and attempted again after exponential backoff with jitter,
+ * after the maximal number of attempts it is kept as a dead letter.
+ * The waiting retries are held by a timing wheel and attempted on their own thread pool,
+ * so they do not delay the fresh deliveries.
+ * The queue leases the retries it holds, so the queues of several hub instances sharing the database attempt each
+ * retry once. The pending retries which are not claimed, e.g. left by a stopped instance, are claimed at start
+ * and periodically, the leases of the held retries are renewed at the same time.
+ * The retries are stored in json and sent in the wire format of the failed delivery, compressed if it was.
+ * Retries to a destination with open circuit breaker are postponed without counting the attempt,
+ * they also serve as the probes which close the breaker again.
+ * The deliveries rejected by the subscriber with a client error are not retried, they become dead letters at once,
+ * except for the request timeout and too many requests which are transient.
+ *
+ * @author Jiri Mauritz
+ */
+@Named
+@Singleton
+public class CallbackRetryQueue implements InitializingBean, DisposableBean, ApplicationListener<ContextRefreshedEvent> {
+
+    // delay of the retry which did not fit into the full executor queue
+    private static final long REJECTED_DELAY_MILLIS = 1000;
+    // maximal number of the retries claimed at once
+    private static final int CLAIM_LIMIT = 1000;
+    // how long the count of the dead letters in the database is used, the dead letters of this instance are added
+    private static final long DEAD_COUNT_MILLIS = 60000;
+
+    @Inject
+    private CallbackRetryDao retryDao;
+
+    @Inject
+    private RestClientController restClient;
+
+    @Inject
+    private Environment env;
+
+    private int maxAttempts;
+    private long baseDelayMillis;
+    private long maxDelayMillis;
+    private long leaseMillis;
+    // identifier of the queue in the claims
+    private String owner;
+    private boolean stableOwner;
+    private TimingWheel<CallbackRetry> wheel;
+    private BoundedExecutor executor;
+    private ScheduledThreadPoolExecutor leases;
+    private final AtomicBoolean resumed = new AtomicBoolean();
+    private int deadCount;
+    private long deadCountExpires;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        maxAttempts = env.getProperty("callback.retry.maxAttempts", Integer.class, 10);
+        baseDelayMillis = env.getProperty("callback.retry.baseDelayMillis", Long.class, 1000L);
+        maxDelayMillis = env.getProperty("callback.retry.maxDelayMillis", Long.class, 300000L);
+        leaseMillis = env.getProperty("callback.retry.leaseMillis", Long.class, 300000L);
+        if (leaseMillis < 3) throw new IllegalArgumentException("Property callback.retry.leaseMillis must be at least 3.");
+        owner = env.getProperty("callback.outbox.instanceId");
+        stableOwner = owner != null;
+        if (owner == null) owner = UUID.randomUUID().toString();
+        executor = BoundedExecutor.create("callback-retry", env.getProperty("callback.retry.threads", Integer.class, 4),
+                env.getProperty("callback.retry.queueSize", Integer.class, 10000),
+                env.getProperty("executor.virtualThreads", Boolean.class, false));
+        wheel = new TimingWheel<>("callback-retry-wheel", 100, 512, new TimingWheel.Listener<CallbackRetry>() {
+            @Override
+            public void expired(CallbackRetry retry) {
+                attempt(retry);
+            }
+        });
+        leases = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "callback-retry-lease");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        // waiting retries stay in the database, released for the other instances
+        leases.shutdownNow();
+        wheel.stop();
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) return;
+        try {
+            retryDao.release(owner);
+        } catch (RuntimeException e) {
+            System.err.println("Error while releasing the callback retries of " + owner + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (!resumed.compareAndSet(false, true)) return;
+        if (stableOwner) {
+            // the retries claimed before restart are not held anymore, they need not wait for their lease
+            try {
+                retryDao.release(owner);
+            } catch (RuntimeException e) {
+                System.err.println("Error while releasing the callback retries of " + owner + ": " + e.getMessage());
+            }
+        }
+        // renewed well before the lease expires
+        leases.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renewAndClaim();
+            }
+        }, 0, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Store the failed delivery and schedule its next attempt.
+     * The delivered entries of the outbox are replaced by the retry in one transaction.
+     *
+     * @param eventUri of the subscriber
+     * @param body     scim event notification or array of them which was not delivered, serialized in json
+     * @param gzip     whether the subscription accepts gzip
+     * @param format   wire format of the delivery
+     * @param error    cause of the failure
+     * @param entries  of the outbox which were delivered, empty for the direct webCallback
+     */
+    public void schedule(String eventUri, byte[] body, boolean gzip, EventFormat format, String error, List<CallbackOutboxEntry> entries) {
+        if (eventUri == null) throw new NullPointerException("EventUri cannot be null.");
+        if (body == null) throw new NullPointerException("Body cannot be null.");
+        if (entries == null) throw new NullPointerException("Entries cannot be null.");
+        CallbackRetry retry = new CallbackRetry(eventUri, new String(body, StandardCharsets.UTF_8));
+        retry.setGzip(gzip);
+        retry.setFormat(format);
+        retry.setAttempts(1);
+        retry.setLastError(error);
+        long delay = backoff(1);
+        retry.setNextAttempt(System.currentTimeMillis() + delay);
+        // if the retry is not stored, the entries stay in the outbox and are relayed again,
+        // the direct webCallback is kept in memory at least
+        if (!store(retry, entries) && !entries.isEmpty()) return;
+        wheel.schedule(retry, delay);
+    }
+
+    /**
+     * Store the delivery rejected by the subscriber as a dead letter without any retry.
+     *
+     * @param eventUri of the subscriber
+     * @param body     scim event notification or array of them which was not delivered, serialized in json
+     * @param gzip     whether the subscription accepts gzip
+     * @param format   wire format of the delivery
+     * @param error    cause of the failure
+     * @param entries  of the outbox which were delivered, empty for the direct webCallback
+     */
+    public void deadLetter(String eventUri, byte[] body, boolean gzip, EventFormat format, String error, List<CallbackOutboxEntry> entries) {
+        if (eventUri == null) throw new NullPointerException("EventUri cannot be null.");
+        if (body == null) throw new NullPointerException("Body cannot be null.");
+        if (entries == null) throw new NullPointerException("Entries cannot be null.");
+        System.err.println("Giving up the webCallback to " + eventUri + " rejected by the subscriber: " + error);
+        CallbackRetry retry = new CallbackRetry(eventUri, new String(body, StandardCharsets.UTF_8));
+        retry.setGzip(gzip);
+        retry.setFormat(format);
+        retry.setAttempts(1);
+        retry.setLastError(error);
+        retry.setNextAttempt(System.currentTimeMillis());
+        if (!store(retry, entries)) return;
+        try {
+            retryDao.markDead(retry);
+            deadAdded();
+        } catch (RuntimeException e) {
+            // attempted again and rejected again
+            System.err.println("Error while storing the dead webCallback to " + eventUri + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decide whether the failed delivery would fail again the same way.
+     * A client error response is permanent, except for the request timeout and too many requests.
+     *
+     * @param e cause of the failed delivery
+     * @return true if the delivery should not be retried
+     */
+    public static boolean isPermanent(Exception e) {
+        if (!(e instanceof HttpClientErrorException)) return false;
+        HttpStatus status = ((HttpClientErrorException) e).getStatusCode();
+        return status != HttpStatus.REQUEST_TIMEOUT && status != HttpStatus.TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return number of the retries waiting for the next attempt
+     */
+    public int getPendingCount() {
+        return wheel.size() + executor.getQueueSize();
+    }
+
+    /**
+     * The dead letters are counted in the database at most once a minute, so the dead letters of the other instances
+     * and the removed ones show up with a delay.
+     *
+     * @return number of the deliveries which exhausted all attempts
+     */
+    public synchronized int getDeadCount() {
+        long now = System.currentTimeMillis();
+        if (now >= deadCountExpires) {
+            deadCount = retryDao.count(true);
+            deadCountExpires = now + DEAD_COUNT_MILLIS;
+        }
+        return deadCount;
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    // delay before the next attempt, the exponential backoff randomized between its half and full value
+    private long backoff(int attempts) {
+        long delay = baseDelayMillis << Math.min(attempts - 1, 30);
+        if (delay <= 0 || delay > maxDelayMillis) delay = maxDelayMillis;
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    private void renewAndClaim() {
+        try {
+            retryDao.renew(owner);
+            int claimed;
+            do {
+                List<CallbackRetry> retries = retryDao.claim(CLAIM_LIMIT, owner, leaseMillis);
+                long now = System.currentTimeMillis();
+                for (CallbackRetry retry : retries) {
+                    wheel.schedule(retry, retry.getNextAttempt() - now);
+                }
+                claimed = retries.size();
+            } while (claimed == CLAIM_LIMIT);
+        } catch (RuntimeException e) {
+            System.err.println("Error while claiming the callback retries: " + e.getMessage());
+        }
+    }
+
+    // returns false if the retry is not stored
+    private boolean store(CallbackRetry retry, List<CallbackOutboxEntry> entries) {
+        try {
+            if (entries.isEmpty()) {
+                retryDao.create(retry, owner);
+            } else {
+                retryDao.create(retry, entries, owner);
+            }
+            return true;
+        } catch (RuntimeException e) {
+            System.err.println("Error while storing the retry of the webCallback to " + retry.getEventUri() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // the cached count includes the new dead letter until it is counted in the database again
+    private synchronized void deadAdded() {
+        deadCount++;
+    }
+
+    private void attempt(final CallbackRetry retry) {
+        // the timing wheel thread must not wait for a free slot
+        try {
+            if (!executor.offer(attemptTask(retry))) {
+                // the retry waits on the wheel again without using up the attempts
+                wheel.schedule(retry, REJECTED_DELAY_MILLIS);
+            }
+        } catch (RejectedExecutionException e) {
+            // stopping, the retry stays in the database
+        }
+    }
+
+    private Runnable attemptTask(final CallbackRetry retry) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EventFormat format = retry.getFormat();
+                    byte[] body = format.transcode(retry.getSenJson().getBytes(StandardCharsets.UTF_8));
+                    restClient.post(retry.getEventUri(), body, restClient.compress(body, retry.isGzip()), format);
+                } catch (CircuitOpenException e) {
+                    // not attempted, wait for the breaker without using up the attempts
+                    wheel.schedule(retry, backoff(retry.getAttempts()));
+                    return;
+                } catch (Exception e) {
+                    failed(retry, e.getMessage(), isPermanent(e));
+                    return;
+                }
+                try {
+                    if (retry.getId() != null) retryDao.remove(retry.getId());
+                } catch (RuntimeException e) {
+                    System.err.println("Error while removing the delivered retry " + retry.getId() + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    private void failed(CallbackRetry retry, String error, boolean permanent) {
+        retry.setAttempts(retry.getAttempts() + 1);
+        retry.setLastError(error);
+        if (permanent || retry.getAttempts() >= maxAttempts) {
+            System.err.println("Giving up the webCallback to " + retry.getEventUri() + " after " + retry.getAttempts() + " attempts: " + error);
+            try {
+                if (retry.getId() != null) {
+                    retryDao.markDead(retry);
+                    deadAdded();
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error while storing the dead webCallback to " + retry.getEventUri() + ": " + e.getMessage());
+            }
+            return;
+        }
+        long delay = backoff(retry.getAttempts());
+        retry.setNextAttempt(System.currentTimeMillis() + delay);
+        try {
+            if (retry.getId() != null && !retryDao.update(retry, owner)) {
+                // the lease expired, another instance attempts the retry
+                return;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error while storing the retry of the webCallback to " + retry.getEventUri() + ": " + e.getMessage());
+        }
+        wheel.schedule(retry, delay);
+    }
+}
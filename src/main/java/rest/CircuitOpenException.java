@@ -0,0 +1,15 @@
+package rest;
+
+import org.springframework.web.client.RestClientException;
+
+/**
+ * Delivery was not attempted, because the circuit breaker of its destination is open.
+ *
+ * @author Jiri Mauritz
+ */
+public class CircuitOpenException extends RestClientException {
+
+    public CircuitOpenException(String destination) {
+        super("Circuit breaker of " + destination + " is open.");
+    }
+}
@@ -0,0 +1,165 @@
+package rest;
+
+import core.Gzip;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Filter decompressing the request bodies sent with 'Content-Encoding: gzip'.
+ * The decompressed body is limited, so a small compressed request cannot exhaust the memory.
+ *
+ * @author Jiri Mauritz
+ */
+public class GzipRequestFilter extends OncePerRequestFilter {
+
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long maxBytes;
+
+    public GzipRequestFilter() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes maximal size of the decompressed body
+     */
+    public GzipRequestFilter(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Maximal size must be positive.");
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String encoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (encoding == null || !encoding.trim().equalsIgnoreCase(Gzip.ENCODING)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        filterChain.doFilter(new DecompressedRequest(request), response);
+    }
+
+    // request with the decompressed body and without the content encoding
+    private final class DecompressedRequest extends HttpServletRequestWrapper {
+        private ServletInputStream inputStream;
+
+        private DecompressedRequest(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                inputStream = new DecompressedInputStream(new GZIPInputStream(super.getInputStream()));
+            }
+            return inputStream;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            String characterEncoding = getCharacterEncoding();
+            Charset charset = characterEncoding == null ? StandardCharsets.UTF_8 : Charset.forName(characterEncoding);
+            return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (isRemovedHeader(name)) return null;
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (isRemovedHeader(name)) return Collections.emptyEnumeration();
+            return super.getHeaders(name);
+        }
+
+        private boolean isRemovedHeader(String name) {
+            return HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+        }
+    }
+
+    private final class DecompressedInputStream extends ServletInputStream {
+        private final InputStream in;
+        private long read;
+        private boolean finished;
+
+        private DecompressedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                finished = true;
+            } else {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n < 0) {
+                finished = true;
+            } else {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException("Asynchronous reading of the compressed body is not supported.");
+        }
+
+        private void count(int n) throws IOException {
+            read += n;
+            if (read > maxBytes) throw new IOException("Decompressed body exceeds " + maxBytes + " bytes.");
+        }
+    }
+}
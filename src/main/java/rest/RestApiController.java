@@ -1,13 +1,16 @@
 package rest;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import core.*;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -15,8 +18,13 @@ import javax.inject.Inject;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.springframework.web.bind.annotation.RequestMethod.*;
 
@@ -31,6 +39,21 @@ public class RestApiController {
     @Inject
     private Manager manager;
 
+    @Inject
+    private IngestPipeline ingestPipeline;
+
+    @Inject
+    private RestClientController restClient;
+
+    @Inject
+    private CallbackRetryQueue retryQueue;
+
+    @Inject
+    private IdempotencyGuard idempotency;
+
+    @Inject
+    private Metrics metrics;
+
     @Inject
     private Environment env;
 
@@ -38,6 +61,8 @@ public class RestApiController {
 
     private static final String WEB_CALLBACK = "urn:ietf:params:scimnotify:api:messages:2.0:webCallback";
     private static final String POLL = "urn:ietf:params:scimnotify:api:messages:2.0:poll";
+    static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
 
 
     /**
@@ -83,10 +108,9 @@ public class RestApiController {
      */
     @RequestMapping(value = "/Subscriptions", method = POST)
     public ResponseEntity<String> createSubscription(@RequestBody String body) {
-        ObjectMapper mapper = new ObjectMapper();
         String sbscId;
         try {
-            Map<String, Object> json = (Map<String, Object>) mapper.readValue(body, Map.class);
+            Map<String, Object> json = Json.MAP_READER.readValue(body);
             String feedUri = (String) json.get("feedUri");
             String modeString = (String) json.get("mode");
             SubscriptionModeEnum mode;
@@ -98,11 +122,31 @@ public class RestApiController {
                 throw new IOException("Wrong subscription mode.");
             }
             String eventUri = (String) json.get("eventUri");
+            Subscription subscription = new Subscription(feedUri, mode, eventUri);
+            Number batchSize = (Number) json.get("batchSize");
+            if (batchSize != null) {
+                Number batchLinger = (Number) json.get("batchLingerMillis");
+                subscription.setBatching(batchSize.intValue(), batchLinger == null ? 0 : batchLinger.longValue());
+            }
+            Boolean gzip = (Boolean) json.get("gzip");
+            if (gzip != null) {
+                subscription.setGzip(gzip);
+            }
+            String formatType = (String) json.get("format");
+            if (formatType != null) {
+                EventFormat format = EventFormat.fromMediaType(formatType);
+                if (format == null) throw new IllegalArgumentException("Unsupported format '" + formatType + "'.");
+                subscription.setFormat(format);
+            }
+            Object filter = json.get("filter");
+            if (filter != null) {
+                subscription.setFilter(Json.convert(filter, SubscriptionFilter.class));
+            }
 
             // generate subscription id
             sbscId = nextSubscriptionId();
 
-            manager.newSubscription(sbscId, feedUri, mode, eventUri);
+            manager.newSubscription(sbscId, subscription);
         } catch (IOException | ClassCastException e) {
             e.printStackTrace();
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
@@ -138,37 +182,242 @@ public class RestApiController {
     /**
      * POST /Events
      * Create a new scim event notification.
+     * In the asynchronous mode, the event is only validated and enqueued for processing.
+     * With the idempotency enabled, the repeated request gets the status of the original one and the event is not created again.
      *
-     * @param senJson scim event notification according to the schema 'urn:ietf:params:scim:schemas:notify:2.0:Event'
-     * @return status 204 or status 400 if the event json is not valid
+     * @param senJson        scim event notification according to the schema 'urn:ietf:params:scim:schemas:notify:2.0:Event',
+     *                       the raw body is parsed without decoding it into a string
+     * @param contentType    media type of the body, CBOR ('application/cbor') and Smile ('application/x-jackson-smile')
+     *                       are parsed in their format, any other type as json
+     * @param idempotencyKey key of the request, the digest of the body is used without it
+     * @return status 204 (202 in the asynchronous mode), status 400 if the event json is not valid,
+     * status 409 if the same request is still in progress or status 503 if the asynchronous pipeline is full
      */
     @RequestMapping(value = "/Events", method = POST)
-    public ResponseEntity<?> createScimEvent(@RequestBody String senJson) {
-        try {
-            manager.newMessage(senJson);
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-            return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
-        }
-        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    public ResponseEntity<?> createScimEvent(@RequestBody final byte[] senJson,
+                                             @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+                                             @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        EventFormat requested = EventFormat.fromMediaType(contentType);
+        final EventFormat format = requested == null ? EventFormat.JSON : requested;
+        return idempotent(idempotencyKey, senJson, new EventRequest() {
+            @Override
+            public ResponseEntity<?> process() {
+                try {
+                    if (ingestPipeline.isEnabled()) {
+                        ingestPipeline.submit(senJson, format);
+                        return new ResponseEntity<>(HttpStatus.ACCEPTED);
+                    }
+                    manager.newMessage(senJson, format);
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                    return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+                } catch (RejectedExecutionException e) {
+                    return new ResponseEntity<>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+                }
+                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            }
+        });
+    }
+
+    /**
+     * POST /Events/Batch
+     * Create multiple scim event notifications at once, they are processed together.
+     * The body is either a json array of events or newline delimited json (one event per line).
+     * With the idempotency enabled, the repeated request gets the status of the original one and the events are not created again.
+     *
+     * @param body           events according to the schema 'urn:ietf:params:scim:schemas:notify:2.0:Event'
+     * @param idempotencyKey key of the request, the digest of the body is used without it
+     * @return status 204 (202 in the asynchronous mode), status 400 if any of the events is not valid,
+     * status 409 if the same request is still in progress or status 503 if the asynchronous pipeline is full
+     */
+    @RequestMapping(value = "/Events/Batch", method = POST)
+    public ResponseEntity<?> createScimEvents(@RequestBody final byte[] body,
+                                              @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, body, new EventRequest() {
+            @Override
+            public ResponseEntity<?> process() {
+                try {
+                    List<byte[]> senJsons = splitEvents(body);
+                    if (ingestPipeline.isEnabled()) {
+                        ingestPipeline.submitAll(senJsons);
+                        return new ResponseEntity<>(HttpStatus.ACCEPTED);
+                    }
+                    manager.newMessageBodies(senJsons);
+                } catch (IOException | IllegalArgumentException e) {
+                    e.printStackTrace();
+                    return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+                } catch (RejectedExecutionException e) {
+                    return new ResponseEntity<>(e.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+                }
+                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+            }
+        });
     }
 
     /**
      * GET /Poll/{identifier}
      * Perform poll of the messages for the specified subscription.
+     * The response is compressed by gzip if the client accepts it and it is over the size threshold.
+     * The messages are sent in CBOR or Smile if the client prefers it, in json otherwise.
      *
-     * @param sbscId subscription identifier
+     * @param sbscId         subscription identifier
+     * @param accept         media types accepted by the client
+     * @param acceptEncoding encodings accepted by the client
      * @return status 200
      */
     @RequestMapping(value = "/Poll/{sbscId}", method = GET)
-    public ResponseEntity<?> poll(@PathVariable("sbscId") String sbscId) {
+    public ResponseEntity<?> poll(@PathVariable("sbscId") String sbscId,
+                                  @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                  @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
         Set<ScimEventNotification> msgs;
         try {
             msgs = manager.poll(sbscId);
         } catch (IllegalArgumentException e) {
             return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST); // TODO: add exception message to the response
         }
-        return new ResponseEntity<>(msgs, HttpStatus.OK);
+        // the json array is composed of the cached json forms of the sens
+        EventFormat format = acceptedFormat(accept);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(format == EventFormat.JSON ? MediaType.APPLICATION_JSON_UTF8 : MediaType.parseMediaType(format.getMediaType()));
+        headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING);
+        byte[] body = format.writeArray(msgs);
+        if (env.getProperty("poll.gzip.enabled", Boolean.class, true)
+                && body.length >= env.getProperty("poll.gzip.minBytes", Integer.class, 1024)
+                && Gzip.isAccepted(acceptEncoding)) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, Gzip.ENCODING);
+            body = Gzip.compress(body);
+        }
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
+    }
+
+    /**
+     * GET /Admin/CallbackPool
+     * Statistics of the connection pool used for the webCallbacks.
+     *
+     * @return status 200 and the statistics
+     */
+    @RequestMapping(value = "/Admin/CallbackPool", method = GET)
+    public ResponseEntity<Map<String, Long>> callbackPool() {
+        return new ResponseEntity<>(restClient.getPoolStats(), HttpStatus.OK);
+    }
+
+    /**
+     * GET /Admin/CallbackRetries
+     * Number of the failed webCallbacks waiting for the next attempt and of the dead letters.
+     *
+     * @return status 200 and the counts
+     */
+    @RequestMapping(value = "/Admin/CallbackRetries", method = GET)
+    public ResponseEntity<Map<String, Integer>> callbackRetries() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        counts.put("pending", retryQueue.getPendingCount());
+        counts.put("dead", retryQueue.getDeadCount());
+        return new ResponseEntity<>(counts, HttpStatus.OK);
+    }
+
+    /**
+     * GET /Admin/CircuitBreakers
+     * State of the circuit breakers of the webCallback destinations.
+     *
+     * @return status 200 and the breaker state and counters by the destination
+     */
+    @RequestMapping(value = "/Admin/CircuitBreakers", method = GET)
+    public ResponseEntity<Map<String, Map<String, Object>>> circuitBreakers() {
+        return new ResponseEntity<>(restClient.getCircuitBreakers(), HttpStatus.OK);
+    }
+
+    /**
+     * GET /Admin/Metrics
+     * Metrics of the hub in the Prometheus text format.
+     *
+     * @return status 200 and the metrics
+     */
+    @RequestMapping(value = "/Admin/Metrics", method = GET)
+    public ResponseEntity<String> metrics() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        return new ResponseEntity<>(metrics.scrape(), headers, HttpStatus.OK);
+    }
+
+    // process the request once, the repeated requests get the original status
+    private ResponseEntity<?> idempotent(String idempotencyKey, byte[] body, EventRequest request) {
+        if (!idempotency.isEnabled()) return request.process();
+        String key = IdempotencyGuard.keyOf(idempotencyKey, body);
+        Integer original = idempotency.begin(key);
+        if (original != null) {
+            if (original == IdempotencyGuard.IN_PROGRESS) {
+                return new ResponseEntity<>("The same request is still in progress.", HttpStatus.CONFLICT);
+            }
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(IDEMPOTENT_REPLAYED, "true");
+            return new ResponseEntity<>(headers, HttpStatus.valueOf(original));
+        }
+        ResponseEntity<?> response;
+        try {
+            response = request.process();
+        } catch (RuntimeException | Error e) {
+            idempotency.finish(key, HttpStatus.INTERNAL_SERVER_ERROR.value());
+            throw e;
+        }
+        idempotency.finish(key, response.getStatusCode().value());
+        return response;
+    }
+
+    // processing of a request creating the events
+    private interface EventRequest {
+        ResponseEntity<?> process();
+    }
+
+    // bytes of each event, parsed only once later
+    private List<byte[]> splitEvents(byte[] body) throws IOException {
+        if (startsWithArray(body)) {
+            return Json.splitArray(body);
+        }
+        // newline delimited json
+        List<byte[]> senJsons = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= body.length; i++) {
+            if (i == body.length || body[i] == '\n') {
+                if (!isBlank(body, start, i)) {
+                    senJsons.add(Arrays.copyOfRange(body, start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return senJsons;
+    }
+
+    private static boolean isBlank(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(bytes[i])) return false;
+        }
+        return true;
+    }
+
+    // the most preferred supported format, json for no preference
+    private static EventFormat acceptedFormat(String accept) {
+        if (accept == null) return EventFormat.JSON;
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return EventFormat.JSON;
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() == 0) continue;
+            EventFormat format = EventFormat.fromMediaType(mediaType.getType() + "/" + mediaType.getSubtype());
+            if (format != null) return format;
+            if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) return EventFormat.JSON;
+        }
+        return EventFormat.JSON;
+    }
+
+    private static boolean startsWithArray(byte[] body) {
+        for (byte b : body) {
+            if (!Character.isWhitespace(b)) return b == '[';
+        }
+        return false;
     }
 
     private String nextSubscriptionId() {
@@ -1,40 +1,777 @@
 package rest;
 
 
+import core.BoundedExecutor;
+import core.CallbackOutboxEntry;
+import core.CallbackOutboxRelay;
+import core.CircuitBreaker;
+import core.EventFormat;
+import core.Gzip;
+import core.Metrics;
 import core.ScimEventNotification;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import core.Subscription;
+import core.VirtualThreads;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
-import java.util.Set;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Rest client controller.
+ * Delivers the webCallbacks concurrently on its own thread pool, so the caller does not wait for the subscribers.
+ * The number of concurrent deliveries is limited globally and for each destination (host and port of the event uri),
+ * deliveries over the destination limit wait in the order of arrival.
+ * When too many deliveries are pending, the caller waits for a free slot.
+ * The deliveries share a pool of keep-alive connections, limited in total and for each route.
+ * Failed deliveries are handed over to the retry queue.
+ * Each destination has its circuit breaker, while it is open the deliveries go directly to the retry queue.
+ * Subscriptions with batching receive their events as json arrays, one batch at a time for each event uri,
+ * so the batches arrive in order.
+ * Subscriptions with gzip receive the bodies over the size threshold compressed, the retries too.
+ * Subscriptions with a binary format receive the bodies in that format, the retries too.
  *
  * @author Jiri Mauritz
  */
 @Named
 @Singleton
-public class RestClientController {
+public class RestClientController implements InitializingBean, DisposableBean {
 
-    public static RestTemplate restTemplate;
+    private static volatile RestClientController instance;
 
-    public RestClientController() {
-        restTemplate = new RestTemplate();
-        SimpleClientHttpRequestFactory rf = (SimpleClientHttpRequestFactory) restTemplate.getRequestFactory();
-        rf.setConnectTimeout(1 * 1000);
+    @Inject
+    private CallbackRetryQueue retryQueue;
+
+    @Inject
+    private CallbackOutboxRelay outbox;
+
+    @Inject
+    private Environment env;
+
+    @Inject
+    private Metrics metrics;
+
+    private RestTemplate restTemplate;
+    private CloseableHttpClient httpClient;
+    private PoolingHttpClientConnectionManager connectionManager;
+    // aborts the requests exceeding the total timeout and flushes the batches
+    private ScheduledThreadPoolExecutor scheduler;
+    private final ThreadLocal<ScheduledFuture<?>> pendingTimeout = new ThreadLocal<>();
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+    private BoundedExecutor executor;
+    private Semaphore capacity;
+    private int queueSize;
+    private int maxPerDestination;
+    private int gzipMinBytes;
+
+    // destination mapped on its deliveries, guarded by itself
+    private final Map<String, Destination> destinations = new HashMap<>();
+
+    // event uri mapped on its batch, guarded by itself
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    // destination mapped on its circuit breaker
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private int breakerFailureThreshold;
+    private long breakerOpenMillis;
+
+    // latency of the webCallbacks and their results
+    private Metrics.Histogram callbackTimer;
+    private Metrics.Counter delivered;
+    private Metrics.Counter rejected;
+    private Metrics.Counter failed;
+    private Metrics.Counter circuitOpen;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        boolean virtual = env.getProperty("executor.virtualThreads", Boolean.class, false) && VirtualThreads.isAvailable();
+        // a delivery waiting for the subscriber holds only its virtual thread, so many more can be in progress
+        int maxConcurrency = env.getProperty("callback.maxConcurrency", Integer.class, virtual ? 4096 : 256);
+        maxPerDestination = env.getProperty("callback.maxPerDestination", Integer.class, 8);
+        // a delivery beyond the connection pool would just wait for the lease, so the pool limits the concurrency
+        int maxTotal = env.getProperty("callback.pool.maxTotal", Integer.class, maxConcurrency);
+        int maxPerRoute = env.getProperty("callback.pool.maxPerRoute", Integer.class, maxPerDestination);
+        if (maxTotal < maxConcurrency) {
+            System.err.println("Connection pool of " + maxTotal + " limits the callback.maxConcurrency of " + maxConcurrency + ".");
+            maxConcurrency = maxTotal;
+        }
+        if (maxPerRoute < maxPerDestination) {
+            System.err.println("Connection pool of " + maxPerRoute + " per route limits the callback.maxPerDestination of " + maxPerDestination + ".");
+            maxPerDestination = maxPerRoute;
+        }
+        breakerFailureThreshold = env.getProperty("callback.breaker.failureThreshold", Integer.class, 5);
+        breakerOpenMillis = env.getProperty("callback.breaker.openMillis", Long.class, 30000L);
+        gzipMinBytes = env.getProperty("callback.gzip.minBytes", Integer.class, 1024);
+        initHttpClient(maxTotal, maxPerRoute);
+
+        queueSize = env.getProperty("callback.queueSize", Integer.class, 10000);
+        // every pending delivery holds a permit, so the executor queue never overflows
+        capacity = new Semaphore(queueSize);
+        executor = BoundedExecutor.create("callback", maxConcurrency, queueSize, virtual);
+        initMetrics();
+        instance = this;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (instance == this) instance = null;
+        // send the lingering batches
+        List<Delivery> deliveries = new ArrayList<>();
+        synchronized (batches) {
+            for (Batch batch : batches.values()) {
+                Delivery delivery = batch.seal();
+                if (delivery != null) deliveries.add(delivery);
+            }
+        }
+        for (Delivery delivery : deliveries) {
+            start(delivery);
+        }
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+        httpClient.close();
     }
 
+    /**
+     * Enqueue the scim event notification for the delivery to all the event uris.
+     * Returns when the deliveries are enqueued, it waits only if too many deliveries are pending.
+     *
+     * @param eventUris to be informed about scim event
+     * @param sen       which defines the scim event
+     */
     public static void webCallback(Set<String> eventUris, ScimEventNotification sen) {
+        webCallback(eventUris, sen, false);
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to all the event uris.
+     * Returns when the deliveries are enqueued, it waits only if too many deliveries are pending.
+     *
+     * @param eventUris to be informed about scim event
+     * @param sen       which defines the scim event
+     * @param gzip      compress the bodies over the size threshold
+     */
+    public static void webCallback(Set<String> eventUris, ScimEventNotification sen, boolean gzip) {
+        if (eventUris.isEmpty()) return;
+        RestClientController controller = instance;
+        if (controller == null) {
+            System.err.println("Rest client is not initialized, dropping webCallbacks to " + eventUris + ".");
+            return;
+        }
+        controller.dispatch(eventUris, sen, gzip);
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to the subscriptions, each in its format.
+     * Returns when the deliveries are enqueued, it waits only if too many deliveries are pending.
+     *
+     * @param subscriptions without batching, each with different event uri
+     * @param sen           which defines the scim event
+     */
+    public static void webCallbackEncoded(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        if (subscriptions.isEmpty()) return;
+        RestClientController controller = instance;
+        if (controller == null) {
+            System.err.println("Rest client is not initialized, dropping webCallbacks to " + subscriptions + ".");
+            return;
+        }
+        controller.dispatchEncoded(subscriptions, sen);
+    }
+
+    /**
+     * Add the scim event notification to the batches of the subscriptions.
+     * Returns when the event is added, it waits only if too many deliveries are pending.
+     *
+     * @param subscriptions with batching, each with different event uri
+     * @param sen           which defines the scim event
+     */
+    public static void webCallbackBatch(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        if (subscriptions.isEmpty()) return;
+        RestClientController controller = instance;
+        if (controller == null) {
+            System.err.println("Rest client is not initialized, dropping batched webCallbacks to " + subscriptions + ".");
+            return;
+        }
+        controller.batch(subscriptions, sen);
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to the subscriptions of the outbox entries.
+     * The entries are removed from the outbox when they are delivered or moved to the retries.
+     * Returns when the deliveries are enqueued, it waits only if too many deliveries are pending.
+     *
+     * @param entries of the outbox with the sen, each with different event uri
+     * @param sen     which defines the scim event
+     */
+    public static void webCallbackOutbox(List<CallbackOutboxEntry> entries, ScimEventNotification sen) {
+        if (entries.isEmpty()) return;
+        RestClientController controller = instance;
+        if (controller == null) {
+            // the entries are relayed again after their lease expires
+            System.err.println("Rest client is not initialized, postponing webCallbacks " + entries + ".");
+            return;
+        }
+        controller.dispatchOutbox(entries, sen);
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to all the event uris.
+     *
+     * @param eventUris to be informed about scim event
+     * @param sen       which defines the scim event
+     */
+    public void dispatch(Set<String> eventUris, ScimEventNotification sen) {
+        dispatch(eventUris, sen, false);
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to all the event uris.
+     *
+     * @param eventUris to be informed about scim event
+     * @param sen       which defines the scim event
+     * @param gzip      compress the bodies over the size threshold
+     */
+    public void dispatch(Set<String> eventUris, ScimEventNotification sen, boolean gzip) {
+        if (eventUris == null) throw new NullPointerException("EventUris cannot be null.");
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
         for (String eventUri : eventUris) {
+            if (!acquire(eventUris)) return;
+            start(new Delivery(eventUri, Collections.singletonList(sen), null, gzip, EventFormat.JSON,
+                    Collections.<CallbackOutboxEntry>emptyList()));
+        }
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to the subscriptions, each with its gzip and format.
+     *
+     * @param subscriptions without batching, each with different event uri
+     * @param sen           which defines the scim event
+     */
+    public void dispatchEncoded(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        if (subscriptions == null) throw new NullPointerException("Subscriptions cannot be null.");
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
+        for (Subscription subscription : subscriptions) {
+            if (!acquire(subscriptions)) return;
+            start(new Delivery(subscription.getEventUri(), Collections.singletonList(sen), null, subscription.isGzip(),
+                    subscription.getFormat(), Collections.<CallbackOutboxEntry>emptyList()));
+        }
+    }
+
+    /**
+     * Enqueue the scim event notification for the delivery to the subscriptions of the outbox entries,
+     * each with its batching, gzip and format.
+     *
+     * @param entries of the outbox with the sen, each with different event uri
+     * @param sen     which defines the scim event
+     */
+    public void dispatchOutbox(List<CallbackOutboxEntry> entries, ScimEventNotification sen) {
+        if (entries == null) throw new NullPointerException("Entries cannot be null.");
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
+        for (CallbackOutboxEntry entry : entries) {
+            if (!acquire(entries)) return;
+            Subscription subscription = entry.getSubscription();
+            if (subscription.isBatched()) {
+                addToBatch(subscription, sen, entry);
+            } else {
+                start(new Delivery(subscription.getEventUri(), Collections.singletonList(sen), null, subscription.isGzip(),
+                        subscription.getFormat(), Collections.singletonList(entry)));
+            }
+        }
+    }
+
+    /**
+     * Add the scim event notification to the batches of the subscriptions.
+     * The batch is delivered when it is full or after the linger time of its first event.
+     *
+     * @param subscriptions with batching, each with different event uri
+     * @param sen           which defines the scim event
+     */
+    public void batch(Set<Subscription> subscriptions, ScimEventNotification sen) {
+        if (subscriptions == null) throw new NullPointerException("Subscriptions cannot be null.");
+        if (sen == null) throw new NullPointerException("Sen cannot be null.");
+        for (Subscription subscription : subscriptions) {
+            if (!acquire(subscriptions)) return;
+            addToBatch(subscription, sen, null);
+        }
+    }
+
+    /**
+     * Number of the deliveries enqueued or in progress.
+     *
+     * @return number of pending deliveries
+     */
+    public int getPendingCount() {
+        return queueSize - capacity.availablePermits();
+    }
+
+    /**
+     * Statistics of the connection pool: connections leased, available, requests waiting for a connection,
+     * maximal number of connections and number of requests that timed out waiting for a connection.
+     *
+     * @return statistics by the name
+     */
+    public Map<String, Long> getPoolStats() {
+        PoolStats stats = connectionManager.getTotalStats();
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("leased", (long) stats.getLeased());
+        result.put("available", (long) stats.getAvailable());
+        result.put("pending", (long) stats.getPending());
+        result.put("max", (long) stats.getMax());
+        result.put("leaseTimeouts", leaseTimeouts.get());
+        return result;
+    }
+
+    /**
+     * State of the circuit breaker of each destination.
+     *
+     * @return breaker statistics by the destination
+     */
+    public Map<String, Map<String, Object>> getCircuitBreakers() {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return result;
+    }
+
+    /**
+     * Compress the body for the subscription with gzip, if it reaches the size threshold.
+     *
+     * @param body serialized scim event notification or array of them
+     * @param gzip whether the subscription accepts gzip
+     * @return gzip of the body to be sent instead of it, null to send the body
+     */
+    byte[] compress(byte[] body, boolean gzip) {
+        return gzip && body.length >= gzipMinBytes ? Gzip.compress(body) : null;
+    }
+
+    /**
+     * Deliver the body to the event uri on the calling thread.
+     *
+     * @param eventUri of the subscriber
+     * @param body     serialized scim event notification or json array of them
+     * @throws CircuitOpenException if the circuit breaker of the destination is open
+     * @throws RestClientException  if the delivery failed
+     */
+    void post(String eventUri, byte[] body) {
+        post(eventUri, body, null);
+    }
+
+    /**
+     * Deliver the body to the event uri on the calling thread.
+     *
+     * @param eventUri   of the subscriber
+     * @param body       serialized scim event notification or json array of them
+     * @param compressed gzip of the body to be sent instead of it, null to send the body
+     * @throws CircuitOpenException if the circuit breaker of the destination is open
+     * @throws RestClientException  if the delivery failed
+     */
+    void post(String eventUri, byte[] body, byte[] compressed) {
+        post(eventUri, body, compressed, EventFormat.JSON);
+    }
+
+    /**
+     * Deliver the body to the event uri on the calling thread.
+     *
+     * @param eventUri   of the subscriber
+     * @param body       serialized scim event notification or array of them
+     * @param compressed gzip of the body to be sent instead of it, null to send the body
+     * @param format     wire format of the body
+     * @throws CircuitOpenException if the circuit breaker of the destination is open
+     * @throws RestClientException  if the delivery failed
+     */
+    void post(String eventUri, byte[] body, byte[] compressed, EventFormat format) {
+        String destination = destinationOf(eventUri);
+        CircuitBreaker breaker = breakerOf(destination);
+        if (!breaker.allowRequest()) {
+            circuitOpen.increment();
+            throw new CircuitOpenException(destination);
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(format == EventFormat.JSON ? MediaType.APPLICATION_JSON : MediaType.parseMediaType(format.getMediaType()));
+        if (compressed != null) headers.set(HttpHeaders.CONTENT_ENCODING, Gzip.ENCODING);
+        boolean reachable = false;
+        Metrics.Counter result = failed;
+        long start = System.nanoTime();
+        try {
+            restTemplate.postForEntity(eventUri, new HttpEntity<>(compressed == null ? body : compressed, headers), Void.class);
+            reachable = true;
+            result = delivered;
+        } catch (HttpClientErrorException e) {
+            // the subscriber is up, it rejected the event
+            reachable = true;
+            result = rejected;
+            throw e;
+        } catch (ResourceAccessException e) {
+            if (e.getCause() instanceof ConnectionPoolTimeoutException) leaseTimeouts.incrementAndGet();
+            throw e;
+        } finally {
+            callbackTimer.recordSince(start);
+            result.increment();
+            if (reachable) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure();
+            }
+            ScheduledFuture<?> timeout = pendingTimeout.get();
+            if (timeout != null) {
+                timeout.cancel(false);
+                pendingTimeout.remove();
+            }
+        }
+    }
+
+    /* ============ PRIVATE METHODS ============= */
+
+    private void initMetrics() {
+        String help = "WebCallbacks by the result: delivered, rejected by the subscriber, failed or not sent for the open circuit.";
+        callbackTimer = metrics.timer("hub_callback_seconds", "Latency of the webCallback requests.", "");
+        delivered = metrics.counter("hub_callbacks_total", help, Metrics.labels("result", "delivered"));
+        rejected = metrics.counter("hub_callbacks_total", help, Metrics.labels("result", "rejected"));
+        failed = metrics.counter("hub_callbacks_total", help, Metrics.labels("result", "failed"));
+        circuitOpen = metrics.counter("hub_callbacks_total", help, Metrics.labels("result", "circuit_open"));
+        metrics.gauge("hub_callback_pending", "WebCallback deliveries enqueued or in progress.", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return getPendingCount();
+            }
+        });
+        metrics.gauges("hub_callback_pool", "Connections of the webCallback pool by the state.", new Metrics.GaugeFamily() {
+            @Override
+            public Map<String, Long> values() {
+                Map<String, Long> values = new HashMap<>();
+                for (Map.Entry<String, Long> entry : getPoolStats().entrySet()) {
+                    values.put(Metrics.labels("state", entry.getKey()), entry.getValue());
+                }
+                return values;
+            }
+        });
+        metrics.gauge("hub_callback_breakers_open", "Destinations with the circuit breaker open.", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                int open = 0;
+                for (CircuitBreaker breaker : breakers.values()) {
+                    if (breaker.getState() == CircuitBreaker.State.open) open++;
+                }
+                return open;
+            }
+        });
+        String retriesHelp = "Failed webCallbacks waiting for the next attempt and the dead letters.";
+        metrics.gauge("hub_callback_retries", retriesHelp, Metrics.labels("state", "pending"),
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return retryQueue.getPendingCount();
+                    }
+                });
+        metrics.gauge("hub_callback_retries", retriesHelp, Metrics.labels("state", "dead"),
+                new Metrics.Gauge() {
+                    @Override
+                    public double value() {
+                        return retryQueue.getDeadCount();
+                    }
+                });
+    }
+
+    private void initHttpClient(int maxTotal, int maxPerRoute) {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        // keep-alive connections closed by the server are detected before reuse
+        connectionManager.setValidateAfterInactivity(2000);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(env.getProperty("callback.connectTimeoutMillis", Integer.class, 1000))
+                .setSocketTimeout(env.getProperty("callback.readTimeoutMillis", Integer.class, 5000))
+                .setConnectionRequestTimeout(env.getProperty("callback.pool.leaseTimeoutMillis", Integer.class, 5000))
+                .build();
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(env.getProperty("callback.pool.idleMillis", Long.class, 30000L), TimeUnit.MILLISECONDS)
+                .build();
+
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "callback-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // every callback cancels its abort task, so the cancelled ones must not wait in the queue for the deadline
+        scheduler.setRemoveOnCancelPolicy(true);
+        final long totalTimeout = env.getProperty("callback.totalTimeoutMillis", Long.class, 10000L);
+        restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient) {
+            @Override
+            protected void postProcessHttpRequest(final HttpUriRequest request) {
+                pendingTimeout.set(scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        request.abort();
+                    }
+                }, totalTimeout, TimeUnit.MILLISECONDS));
+            }
+        });
+    }
+
+    private CircuitBreaker breakerOf(String destination) {
+        CircuitBreaker breaker = breakers.get(destination);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(breakerFailureThreshold, breakerOpenMillis);
+            breaker = breakers.putIfAbsent(destination, created);
+            if (breaker == null) breaker = created;
+        }
+        return breaker;
+    }
+
+    private static String destinationOf(String eventUri) {
+        try {
+            URI uri = URI.create(eventUri);
+            if (uri.getHost() != null) return uri.getHost().toLowerCase() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            // invalid uri fails at the delivery
+        }
+        return eventUri;
+    }
+
+    // the entry of the outbox is null for the direct webCallback
+    private void addToBatch(Subscription subscription, ScimEventNotification sen, CallbackOutboxEntry entry) {
+        Delivery ready;
+        synchronized (batches) {
+            Batch batch = batches.get(subscription.getEventUri());
+            if (batch == null) {
+                batch = new Batch(subscription.getEventUri());
+                batches.put(subscription.getEventUri(), batch);
+            }
+            ready = batch.add(sen, entry, subscription.getBatchSize(), subscription.getBatchLingerMillis(),
+                    subscription.isGzip(), subscription.getFormat());
+        }
+        if (ready != null) start(ready);
+    }
+
+    // waits for a free slot, returns false if interrupted
+    private boolean acquire(Object recipients) {
+        try {
+            capacity.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while enqueueing webCallbacks, dropping the rest of " + recipients + ".");
+            return false;
+        }
+    }
+
+    private void start(Delivery delivery) {
+        if (admit(delivery)) {
+            executor.execute(delivery);
+        }
+    }
+
+    // returns true if the delivery can start now, otherwise it waits for its destination
+    private boolean admit(Delivery delivery) {
+        synchronized (destinations) {
+            Destination destination = destinations.get(delivery.destination);
+            if (destination == null) {
+                destination = new Destination();
+                destinations.put(delivery.destination, destination);
+            }
+            if (destination.inFlight < maxPerDestination) {
+                destination.inFlight++;
+                return true;
+            }
+            destination.waiting.add(delivery);
+            return false;
+        }
+    }
+
+    private void complete(Delivery delivery) {
+        capacity.release(delivery.sens.size());
+        Delivery next;
+        synchronized (destinations) {
+            Destination destination = destinations.get(delivery.destination);
+            next = destination.waiting.poll();
+            if (next == null && --destination.inFlight == 0) {
+                destinations.remove(delivery.destination);
+            }
+        }
+        if (next != null) {
+            executor.execute(next);
+        }
+        if (delivery.batch != null) {
+            Delivery nextBatch;
+            synchronized (batches) {
+                nextBatch = delivery.batch.sent();
+            }
+            if (nextBatch != null) start(nextBatch);
+        }
+    }
+
+    private void send(Delivery delivery, byte[] body, byte[] compressed) {
+        String eventUri = delivery.eventUri;
+        try {
+            post(eventUri, body, compressed, delivery.format);
+        } catch (CircuitOpenException e) {
+            retryQueue.schedule(eventUri, delivery.retryBody(body), delivery.gzip, delivery.format, e.getMessage(), delivery.entries);
+            return;
+        } catch (Exception e) {
+            if (CallbackRetryQueue.isPermanent(e)) {
+                retryQueue.deadLetter(eventUri, delivery.retryBody(body), delivery.gzip, delivery.format, e.getMessage(), delivery.entries);
+                return;
+            }
+            // time out or error response, try again later
+            System.err.println("Error while connecting to the uri " + eventUri + ": " + e.getMessage());
+            retryQueue.schedule(eventUri, delivery.retryBody(body), delivery.gzip, delivery.format, e.getMessage(), delivery.entries);
+            return;
+        }
+        if (!delivery.entries.isEmpty()) outbox.delivered(delivery.entries);
+    }
+
+    private static final class Destination {
+        private int inFlight;
+        private final Deque<Delivery> waiting = new ArrayDeque<>();
+    }
+
+    private final class Delivery implements Runnable {
+        private final String destination;
+        private final String eventUri;
+        private final List<ScimEventNotification> sens;
+        // null for the delivery of a single event
+        private final Batch batch;
+        private final boolean gzip;
+        private final EventFormat format;
+        // entries of the outbox removed after the delivery, empty for the direct webCallbacks
+        private final List<CallbackOutboxEntry> entries;
+
+        private Delivery(String eventUri, List<ScimEventNotification> sens, Batch batch, boolean gzip, EventFormat format,
+                         List<CallbackOutboxEntry> entries) {
+            this.destination = destinationOf(eventUri);
+            this.eventUri = eventUri;
+            this.sens = sens;
+            this.batch = batch;
+            this.gzip = gzip;
+            this.format = format;
+            this.entries = entries;
+        }
+
+        @Override
+        public void run() {
             try {
-                restTemplate.postForEntity(eventUri, sen, ScimEventNotification.class);
-            } catch (Exception e) {
-                // time out, log and continue
-                System.err.println("Error while connecting to the uri " + eventUri + ": " + e.getMessage());
+                byte[] body;
+                byte[] compressed = null;
+                if (batch == null) {
+                    // serialized and compressed once, shared by all the event uris
+                    body = sens.get(0).toBytes(format);
+                    if (gzip && body.length >= gzipMinBytes) {
+                        compressed = format == EventFormat.JSON ? sens.get(0).toGzipJsonBytes() : Gzip.compress(body);
+                    }
+                } else {
+                    body = format.writeArray(sens);
+                    compressed = compress(body, gzip);
+                }
+                send(this, body, compressed);
+            } finally {
+                complete(this);
             }
         }
+
+        // the retry queue stores json
+        private byte[] retryBody(byte[] body) {
+            if (format == EventFormat.JSON) return body;
+            return batch == null ? sens.get(0).toJsonBytes() : ScimEventNotification.toJsonArrayBytes(sens);
+        }
     }
 
+    // events waiting for the delivery to one event uri, guarded by the batches map
+    private final class Batch {
+        private final String eventUri;
+        private List<ScimEventNotification> current = new ArrayList<>();
+        private List<CallbackOutboxEntry> currentEntries = new ArrayList<>();
+        private final Deque<List<ScimEventNotification>> sealed = new ArrayDeque<>();
+        private final Deque<List<CallbackOutboxEntry>> sealedEntries = new ArrayDeque<>();
+        private boolean sending;
+        private boolean gzip;
+        private EventFormat format;
+        private ScheduledFuture<?> linger;
+
+        private Batch(String eventUri) {
+            this.eventUri = eventUri;
+        }
+
+        // returns the delivery to be started, if any
+        private Delivery add(ScimEventNotification sen, CallbackOutboxEntry entry, int maxSize, long lingerMillis,
+                             boolean gzip, EventFormat format) {
+            this.gzip = gzip;
+            this.format = format;
+            current.add(sen);
+            if (entry != null) currentEntries.add(entry);
+            if (current.size() >= maxSize) return seal();
+            if (linger == null) {
+                linger = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Delivery ready;
+                        synchronized (batches) {
+                            linger = null;
+                            ready = seal();
+                        }
+                        if (ready != null) start(ready);
+                    }
+                }, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+            return null;
+        }
+
+        private Delivery seal() {
+            if (linger != null) {
+                linger.cancel(false);
+                linger = null;
+            }
+            if (!current.isEmpty()) {
+                sealed.add(current);
+                sealedEntries.add(currentEntries);
+                current = new ArrayList<>();
+                currentEntries = new ArrayList<>();
+            }
+            return next();
+        }
+
+        // previous batch is delivered
+        private Delivery sent() {
+            sending = false;
+            Delivery next = next();
+            if (next == null && current.isEmpty() && linger == null) {
+                batches.remove(eventUri);
+            }
+            return next;
+        }
+
+        private Delivery next() {
+            // one batch at a time keeps the order
+            if (sending || sealed.isEmpty()) return null;
+            sending = true;
+            return new Delivery(eventUri, sealed.poll(), this, gzip, format, sealedEntries.poll());
+        }
+    }
 }
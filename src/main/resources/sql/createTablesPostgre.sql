@@ -6,7 +6,8 @@ CREATE TABLE scim_subscriber (
 CREATE TABLE scim_feed (
   id                    SERIAL PRIMARY KEY,
   uri                   VARCHAR(2083) NOT NULL UNIQUE,
-  slowest_subscriber_id BIGINT REFERENCES scim_subscriber (id)
+  slowest_subscriber_id BIGINT REFERENCES scim_subscriber (id),
+  subscriptions_version BIGINT        NOT NULL DEFAULT 0
 );
 
 CREATE TABLE scim_event_notification (
@@ -20,6 +21,11 @@ CREATE TABLE scim_subscription (
   id            SERIAL PRIMARY KEY,
   mode          VARCHAR(64)   NOT NULL,
   event_uri     VARCHAR(2083) NOT NULL,
+  batch_size    INT,
+  batch_linger  BIGINT,
+  gzip          BOOLEAN,
+  format        VARCHAR(64),
+  filter_json   TEXT,
   last_seen_msg BIGINT REFERENCES scim_event_notification (id),
   subscriber_id BIGINT        NOT NULL REFERENCES scim_subscriber (id)
   ON DELETE CASCADE,
@@ -51,3 +57,41 @@ CREATE TABLE scim_sen_schema (
   sen_id BIGINT       NOT NULL REFERENCES scim_event_notification (id)
   ON DELETE CASCADE
 );
+
+CREATE TABLE scim_callback_retry (
+  id           SERIAL PRIMARY KEY,
+  event_uri    VARCHAR(2083) NOT NULL,
+  sen_json     TEXT          NOT NULL,
+  gzip         BOOLEAN,
+  format       VARCHAR(64),
+  attempts     INT           NOT NULL,
+  next_attempt BIGINT        NOT NULL,
+  status       VARCHAR(16)   NOT NULL,
+  last_error   VARCHAR(1024),
+  claimed_at   BIGINT,
+  claimed_by   VARCHAR(255)
+);
+
+CREATE TABLE scim_callback_outbox_sen (
+  id       SERIAL PRIMARY KEY,
+  sen_json TEXT NOT NULL
+);
+
+CREATE TABLE scim_callback_outbox (
+  id           SERIAL PRIMARY KEY,
+  feed_uri     VARCHAR(2083) NOT NULL,
+  event_uri    VARCHAR(2083) NOT NULL,
+  batch_size   INT           NOT NULL,
+  batch_linger BIGINT        NOT NULL,
+  gzip         BOOLEAN       NOT NULL,
+  format       VARCHAR(64)   NOT NULL,
+  sen_id       BIGINT        NOT NULL REFERENCES scim_callback_outbox_sen (id),
+  claimed_at   BIGINT,
+  claimed_by   VARCHAR(255)
+);
+
+CREATE TABLE scim_idempotency_key (
+  idempotency_key VARCHAR(255) NOT NULL PRIMARY KEY,
+  status          INT          NOT NULL,
+  created         BIGINT       NOT NULL
+);
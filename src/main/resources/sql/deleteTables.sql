@@ -6,3 +6,7 @@ DELETE FROM scim_subscription;
 DELETE FROM scim_event_notification;
 DELETE FROM scim_feed;
 DELETE FROM scim_subscriber;
+DELETE FROM scim_callback_retry;
+DELETE FROM scim_callback_outbox;
+DELETE FROM scim_callback_outbox_sen;
+DELETE FROM scim_idempotency_key;
@@ -6,3 +6,7 @@ DROP TABLE scim_subscription;
 DROP TABLE scim_event_notification;
 DROP TABLE scim_feed;
 DROP TABLE scim_subscriber;
+DROP TABLE scim_callback_retry;
+DROP TABLE scim_callback_outbox;
+DROP TABLE scim_callback_outbox_sen;
+DROP TABLE scim_idempotency_key;
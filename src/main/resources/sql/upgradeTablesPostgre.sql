@@ -0,0 +1,48 @@
+-- Upgrade of the schema created by the previous release, the new columns of the existing tables and the new tables.
+-- Run once on the existing database before starting the new release.
+
+ALTER TABLE scim_feed ADD COLUMN subscriptions_version BIGINT NOT NULL DEFAULT 0;
+
+ALTER TABLE scim_subscription ADD COLUMN batch_size INT;
+ALTER TABLE scim_subscription ADD COLUMN batch_linger BIGINT;
+ALTER TABLE scim_subscription ADD COLUMN gzip BOOLEAN;
+ALTER TABLE scim_subscription ADD COLUMN format VARCHAR(64);
+ALTER TABLE scim_subscription ADD COLUMN filter_json TEXT;
+
+CREATE TABLE scim_callback_retry (
+  id           SERIAL PRIMARY KEY,
+  event_uri    VARCHAR(2083) NOT NULL,
+  sen_json     TEXT          NOT NULL,
+  gzip         BOOLEAN,
+  format       VARCHAR(64),
+  attempts     INT           NOT NULL,
+  next_attempt BIGINT        NOT NULL,
+  status       VARCHAR(16)   NOT NULL,
+  last_error   VARCHAR(1024),
+  claimed_at   BIGINT,
+  claimed_by   VARCHAR(255)
+);
+
+CREATE TABLE scim_callback_outbox_sen (
+  id       SERIAL PRIMARY KEY,
+  sen_json TEXT NOT NULL
+);
+
+CREATE TABLE scim_callback_outbox (
+  id           SERIAL PRIMARY KEY,
+  feed_uri     VARCHAR(2083) NOT NULL,
+  event_uri    VARCHAR(2083) NOT NULL,
+  batch_size   INT           NOT NULL,
+  batch_linger BIGINT        NOT NULL,
+  gzip         BOOLEAN       NOT NULL,
+  format       VARCHAR(64)   NOT NULL,
+  sen_id       BIGINT        NOT NULL REFERENCES scim_callback_outbox_sen (id),
+  claimed_at   BIGINT,
+  claimed_by   VARCHAR(255)
+);
+
+CREATE TABLE scim_idempotency_key (
+  idempotency_key VARCHAR(255) NOT NULL PRIMARY KEY,
+  status          INT          NOT NULL,
+  created         BIGINT       NOT NULL
+);
@@ -0,0 +1,162 @@
+package core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the bounded executor.
+ *
+ * @author Jiri Mauritz
+ */
+public class BoundedExecutorTest {
+
+    private final AtomicInteger completed = new AtomicInteger();
+
+    @Test
+    public void submitterWaitsWhenQueueIsFull() throws Exception {
+        submitterWaitsWhenQueueIsFull(BoundedExecutor.create("test", 1, 1));
+    }
+
+    @Test
+    public void submitterWaitsWhenPerTaskQueueIsFull() throws Exception {
+        submitterWaitsWhenQueueIsFull(perTask(1, 1));
+    }
+
+    @Test
+    public void offerDoesNotWait() throws Exception {
+        offerDoesNotWait(BoundedExecutor.create("test", 1, 1));
+    }
+
+    @Test
+    public void perTaskOfferDoesNotWait() throws Exception {
+        offerDoesNotWait(perTask(1, 1));
+    }
+
+    private void offerDoesNotWait(BoundedExecutor executor) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            assertTrue(executor.offer(blocking(release)));
+            assertTrue(executor.offer(blocking(release)));
+            assertFalse(executor.offer(blocking(release)));
+            assertEquals(0, executor.getRemainingCapacity());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void offerToStoppedExecutor() throws Exception {
+        BoundedExecutor executor = BoundedExecutor.create("test", 1, 1);
+        executor.shutdown();
+        executor.offer(blocking(new CountDownLatch(0)));
+    }
+
+    @Test
+    public void perTaskThreadsAreLimited() throws Exception {
+        BoundedExecutor executor = perTask(2, 100);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        try {
+            for (int i = 0; i < 20; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int current = running.incrementAndGet();
+                        synchronized (peak) {
+                            if (current > peak.get()) peak.set(current);
+                        }
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(peak.get() <= 2);
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private void submitterWaitsWhenQueueIsFull(final BoundedExecutor executor) throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch submitted = new CountDownLatch(1);
+        try {
+            executor.execute(blocking(release));
+            executor.execute(blocking(release));
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    executor.execute(blocking(release));
+                    submitted.countDown();
+                }
+            });
+            producer.start();
+            // the thread and the queue are occupied
+            assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+            assertEquals(1, executor.getQueueSize());
+            release.countDown();
+            assertTrue(submitted.await(1, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(3, completed.get());
+    }
+
+    @Test
+    public void virtualThreadsOrFallback() throws Exception {
+        BoundedExecutor executor = BoundedExecutor.create("test", 2, 10, true);
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    threadName[0] = Thread.currentThread().getName();
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(1, TimeUnit.SECONDS));
+            assertTrue(threadName[0].startsWith("test-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // virtual threads if available, the platform threads test the same executor on older JDKs
+    private static BoundedExecutor perTask(int threads, int queueSize) {
+        if (VirtualThreads.isAvailable()) return BoundedExecutor.create("test", threads, queueSize, true);
+        return BoundedExecutor.perTask(Executors.defaultThreadFactory(), threads, queueSize);
+    }
+
+    private Runnable blocking(final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                completed.incrementAndGet();
+            }
+        };
+    }
+}
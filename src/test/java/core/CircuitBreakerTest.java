@@ -0,0 +1,89 @@
+package core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the circuit breaker.
+ *
+ * @author Jiri Mauritz
+ */
+public class CircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 50;
+
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() throws Exception {
+        breaker = new CircuitBreaker(3, OPEN_MILLIS);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws Exception {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.closed, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.open, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1L, breaker.getStats().get("openCount"));
+        assertEquals(1L, breaker.getStats().get("rejectedCount"));
+    }
+
+    @Test
+    public void successResetsFailures() throws Exception {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.closed, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void singleProbeAfterOpenPeriod() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.halfOpen, breaker.getState());
+        // only the probe passes
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successfulProbeCloses() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.closed, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.open, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2L, breaker.getStats().get("openCount"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidThreshold() throws Exception {
+        new CircuitBreaker(0, OPEN_MILLIS);
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.open, breaker.getState());
+    }
+}
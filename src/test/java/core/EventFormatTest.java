@@ -0,0 +1,93 @@
+package core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Testing the binary wire formats of the sens.
+ *
+ * @author Jiri Mauritz
+ */
+public class EventFormatTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        ScimEventNotification sen = load("sen1.json");
+        for (EventFormat format : EventFormat.values()) {
+            byte[] bytes = sen.toBytes(format);
+            Assert.assertSame(bytes, sen.toBytes(format));
+            ScimEventNotification parsed = format.read(bytes);
+            Assert.assertEquals(format.name(), sen, parsed);
+            Assert.assertEquals(format.name(), sen.getValues(), parsed.getValues());
+        }
+        // the binary forms are smaller
+        Assert.assertTrue(sen.toBytes(EventFormat.CBOR).length < sen.toJsonBytes().length);
+        Assert.assertTrue(sen.toBytes(EventFormat.SMILE).length < sen.toJsonBytes().length);
+    }
+
+    @Test
+    public void bytesChangeWithId() throws Exception {
+        ScimEventNotification sen = load("sen1.json");
+        byte[] bytes = sen.toBytes(EventFormat.CBOR);
+        sen.setId(42L);
+        Assert.assertNotSame(bytes, sen.toBytes(EventFormat.CBOR));
+        Assert.assertEquals(Long.valueOf(42L), EventFormat.CBOR.read(sen.toBytes(EventFormat.CBOR)).getId());
+    }
+
+    @Test
+    public void writeArray() throws Exception {
+        ScimEventNotification sen1 = load("sen1.json");
+        ScimEventNotification sen2 = load("sen2.json");
+        for (EventFormat format : EventFormat.values()) {
+            byte[] bytes = format.writeArray(Arrays.asList(sen1, sen2));
+            ScimEventNotification[] parsed = new ObjectMapper(factoryOf(format)).readValue(bytes, ScimEventNotification[].class);
+            Assert.assertArrayEquals(format.name(), new ScimEventNotification[]{sen1, sen2}, parsed);
+        }
+    }
+
+    @Test
+    public void transcode() throws Exception {
+        ScimEventNotification sen1 = load("sen1.json");
+        ScimEventNotification sen2 = load("sen2.json");
+        byte[] json = sen1.toJsonBytes();
+        Assert.assertSame(json, EventFormat.JSON.transcode(json));
+        byte[] jsonArray = ScimEventNotification.toJsonArrayBytes(Arrays.asList(sen1, sen2));
+        for (EventFormat format : EventFormat.values()) {
+            Assert.assertEquals(format.name(), sen1, format.read(format.transcode(json)));
+            ScimEventNotification[] parsed = new ObjectMapper(factoryOf(format)).readValue(format.transcode(jsonArray), ScimEventNotification[].class);
+            Assert.assertArrayEquals(format.name(), new ScimEventNotification[]{sen1, sen2}, parsed);
+        }
+    }
+
+    @Test
+    public void fromMediaType() throws Exception {
+        Assert.assertEquals(EventFormat.JSON, EventFormat.fromMediaType("application/json; charset=UTF-8"));
+        Assert.assertEquals(EventFormat.CBOR, EventFormat.fromMediaType("Application/CBOR"));
+        Assert.assertEquals(EventFormat.SMILE, EventFormat.fromMediaType("application/x-jackson-smile"));
+        Assert.assertNull(EventFormat.fromMediaType("text/plain"));
+        Assert.assertNull(EventFormat.fromMediaType(null));
+    }
+
+    private JsonFactory factoryOf(EventFormat format) {
+        switch (format) {
+            case CBOR:
+                return new CBORFactory();
+            case SMILE:
+                return new SmileFactory();
+            default:
+                return new JsonFactory();
+        }
+    }
+
+    private ScimEventNotification load(String fileName) throws Exception {
+        return Json.SEN_READER.readValue(Files.readAllBytes(Paths.get(ClassLoader.getSystemResource(fileName).toURI())));
+    }
+}
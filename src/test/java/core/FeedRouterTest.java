@@ -0,0 +1,82 @@
+package core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the router of the wildcard feeds.
+ *
+ * @author Jiri Mauritz
+ */
+public class FeedRouterTest {
+
+    private static final String GROUPS = "https://idp/feeds/groups/*";
+    private static final String ALL = "https://idp/feeds/*";
+    private static final String MEMBERS = "https://idp/feeds/*/members";
+
+    @Test
+    public void isWildcard() throws Exception {
+        assertTrue(FeedRouter.isWildcard(GROUPS));
+        assertTrue(FeedRouter.isWildcard(MEMBERS));
+        assertFalse(FeedRouter.isWildcard("https://idp/feeds/groups"));
+        assertFalse(FeedRouter.isWildcard("https://idp/feeds/groups*"));
+    }
+
+    @Test
+    public void route() throws Exception {
+        FeedRouter router = new FeedRouter();
+        router.add(GROUPS);
+        router.add(ALL);
+        router.add(MEMBERS);
+        router.add("https://idp/feeds/groups/1");
+
+        assertEquals(new HashSet<>(Arrays.asList(GROUPS, ALL)), router.route("https://idp/feeds/groups/1"));
+        assertEquals(new HashSet<>(Arrays.asList(GROUPS, ALL)), router.route("https://idp/feeds/groups/1/admins"));
+        assertEquals(new HashSet<>(Arrays.asList(GROUPS, ALL, MEMBERS)), router.route("https://idp/feeds/groups/members"));
+        assertEquals(new HashSet<>(Arrays.asList(ALL, MEMBERS)), router.route("https://idp/feeds/vos/members"));
+        // the wildcard needs at least one segment
+        assertEquals(Collections.singleton(ALL), router.route("https://idp/feeds/groups"));
+        assertTrue(router.route("https://idp/feeds").isEmpty());
+        assertTrue(router.route("https://other/feeds/groups/1").isEmpty());
+    }
+
+    @Test
+    public void wildcardDoesNotMatchEmptySegment() throws Exception {
+        FeedRouter router = new FeedRouter();
+        router.add(GROUPS);
+        router.add(ALL);
+        router.add(MEMBERS);
+
+        // the trailing slash leaves an empty segment, which is not a feed below 'groups'
+        assertEquals(Collections.singleton(ALL), router.route("https://idp/feeds/groups/"));
+        assertTrue(router.route("https://idp/feeds/").isEmpty());
+        assertTrue(router.route("https://idp/feeds//members").isEmpty());
+        // empty segment after a non-empty one is taken by the trailing wildcard
+        assertEquals(new HashSet<>(Arrays.asList(GROUPS, ALL)), router.route("https://idp/feeds/groups/1/"));
+    }
+
+    @Test
+    public void routeWithoutWildcardFeeds() throws Exception {
+        FeedRouter router = new FeedRouter();
+        router.add("https://idp/feeds/groups");
+        assertSame(Collections.emptySet(), router.route("https://idp/feeds/groups"));
+    }
+
+    @Test
+    public void remove() throws Exception {
+        FeedRouter router = new FeedRouter();
+        router.add(GROUPS);
+        router.add(ALL);
+        router.remove(GROUPS);
+        assertEquals(Collections.singleton(ALL), router.route("https://idp/feeds/groups/1"));
+        router.remove(ALL);
+        assertTrue(router.route("https://idp/feeds/groups/1").isEmpty());
+        // removing unknown feed is ignored
+        router.remove(MEMBERS);
+    }
+}
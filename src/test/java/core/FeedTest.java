@@ -9,7 +9,12 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -68,6 +73,29 @@ public class FeedTest {
         }
     }
 
+    @Test
+    public void lag() throws Exception {
+        Subscriber first = new Subscriber("first");
+        first.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.poll, FEED1));
+        feed.addSubscriber(first);
+        Subscriber second = new Subscriber("second");
+        second.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.poll, FEED1));
+        feed.addSubscriber(second);
+        feed.newMsg(sens.get(0));
+        feed.newMsg(sens.get(1));
+        assertEquals(2, feed.getLag(first));
+        assertEquals(2, feed.getLag(second));
+
+        // the first catches up, the second still lags behind
+        feed.poll(first);
+        feed.newMsg(sens.get(2));
+        assertEquals(1, feed.getLag(first));
+        assertEquals(3, feed.getLag(second));
+
+        // not a poll subscriber of the feed
+        assertEquals(0, feed.getLag(new Subscriber("third")));
+    }
+
     @Test
     public void manageSubscribers() throws Exception {
         // webCallback subscriber
@@ -106,6 +134,96 @@ public class FeedTest {
         }
     }
 
+    @Test
+    public void routeMsg() throws Exception {
+        Subscriber sbsc = new Subscriber("first");
+        Subscription subscription = new Subscription(FEED1, SubscriptionModeEnum.webCallback, "https://subscribers.link.com");
+        sbsc.addSubscription(subscription);
+        sbsc.addSubscription(new Subscription(FEED2, SubscriptionModeEnum.webCallback, "https://subscribers.link.com"));
+        feed.addSubscriber(sbsc);
+
+        Subscription[] routes = feed.routeMsg(sens.get(0));
+        assertArrayEquals(new Subscription[]{subscription}, routes);
+        assertSame(routes, feed.routeMsg(sens.get(1)));
+
+        // reloading the same subscribers keeps the table
+        Subscriber reloaded = new Subscriber("first");
+        reloaded.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.webCallback, "https://subscribers.link.com"));
+        feed.setCallbackSubscribers(new HashSet<>(Collections.singleton(reloaded)));
+        assertSame(routes, feed.routeMsg(sens.get(2)));
+
+        // new subscriber rebuilds it
+        Subscriber second = new Subscriber("second");
+        second.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.webCallback, "https://second.link.com"));
+        feed.addSubscriber(second);
+        assertEquals(2, feed.routeMsg(sens.get(2)).length);
+    }
+
+    @Test
+    public void webCallbackFilter() throws Exception {
+        Subscriber all = new Subscriber("all");
+        all.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.webCallback, "https://all.link.com"));
+        feed.addSubscriber(all);
+        Subscriber groups = new Subscriber("groups");
+        Subscription subscription = new Subscription(FEED1, SubscriptionModeEnum.webCallback, "https://groups.link.com");
+        subscription.setFilter(new SubscriptionFilter(null, Collections.singleton("https://perun.cesnet.cz/api/v2/Groups/"), null));
+        groups.addSubscription(subscription);
+        feed.addSubscriber(groups);
+
+        assertFalse(feed.newMsg(sens.get(0)).contains(groups));
+        assertTrue(feed.newMsg(sens.get(1)).contains(groups));
+        assertTrue(feed.newMsg(sens.get(2)).contains(all));
+        assertFalse(feed.newMsg(sens.get(2)).contains(groups));
+    }
+
+    @Test
+    public void pollFilter() throws Exception {
+        Subscriber sbsc = new Subscriber("first");
+        Subscription subscription = new Subscription(FEED1, SubscriptionModeEnum.poll, FEED1);
+        subscription.setFilter(new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.DELETE), null, null));
+        sbsc.addSubscription(subscription);
+        feed.addSubscriber(sbsc);
+        for (ScimEventNotification sen : sens) {
+            feed.newMsg(sen);
+        }
+
+        List<ScimEventNotification> returned = feed.poll(sbsc);
+        assertEquals(1, returned.size());
+        assertEquals(sens.get(2), returned.get(0));
+        // the filtered messages are read as well
+        assertTrue(feed.getMessages().isEmpty());
+    }
+
+    @Test
+    public void coalescePendingMessages() throws Exception {
+        feed.setCoalescing(true);
+        Subscriber sbsc = new Subscriber("first");
+        sbsc.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.poll, FEED1));
+        feed.addSubscriber(sbsc);
+
+        // sen1 creates the user 3104, sen2 has other resources, the last one modifies the user 3104
+        feed.newMsg(sens.get(0));
+        feed.newMsg(sens.get(1));
+        feed.newMsg(modify(sens.get(0)));
+        assertEquals(2, feed.getMessages().size());
+        ScimEventNotification merged = feed.getMessages().get(0);
+        assertEquals(ScimEventTypeEnum.CREATE, merged.getType());
+        assertEquals("changed", merged.getValues().get("userName"));
+
+        // polled messages are not merged
+        assertEquals(2, feed.poll(sbsc).size());
+        feed.newMsg(modify(sens.get(0)));
+        feed.newMsg(modify(sens.get(0)));
+        assertEquals(1, feed.poll(sbsc).size());
+    }
+
+    private ScimEventNotification modify(ScimEventNotification sen) {
+        Map<String, Object> values = new HashMap<>(sen.getValues());
+        values.put("userName", "changed");
+        return new ScimEventNotification(sen.getSchemas(), sen.getFeedUris(), sen.getPublisherUri(), sen.getResourceUris(),
+                ScimEventTypeEnum.MODIFY.name(), sen.getAttributes(), values);
+    }
+
     @Test
     public void poll() throws Exception {
         // poll subscriber
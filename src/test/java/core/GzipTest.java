@@ -0,0 +1,45 @@
+package core;
+
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the gzip compression and negotiation.
+ *
+ * @author Jiri Mauritz
+ */
+public class GzipTest {
+
+    @Test
+    public void compress() throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"member\":\"user").append(i).append("\"},");
+        }
+        byte[] bytes = json.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Gzip.compress(bytes);
+        assertTrue(compressed.length < bytes.length / 4);
+        assertArrayEquals(bytes, StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void isAccepted() throws Exception {
+        assertTrue(Gzip.isAccepted("gzip"));
+        assertTrue(Gzip.isAccepted("deflate, GZIP;q=0.5"));
+        assertTrue(Gzip.isAccepted("br;q=1.0, *;q=0.1"));
+        assertFalse(Gzip.isAccepted(null));
+        assertFalse(Gzip.isAccepted("identity"));
+        assertFalse(Gzip.isAccepted("gzip;q=0"));
+        assertFalse(Gzip.isAccepted("gzip;q=x"));
+        assertFalse(Gzip.isAccepted("gzip;q=0, *"));
+        assertFalse(Gzip.isAccepted("*, gzip;q=0"));
+        assertTrue(Gzip.isAccepted("gzip;q=0.2, *;q=0"));
+        assertFalse(Gzip.isAccepted("*;q=0"));
+    }
+}
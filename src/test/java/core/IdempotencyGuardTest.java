@@ -0,0 +1,144 @@
+package core;
+
+import dao.IdempotencyKeyDao;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.geq;
+import static org.mockito.AdditionalMatchers.leq;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test of the detection of the repeated requests.
+ *
+ * @author Jiri Mauritz
+ */
+public class IdempotencyGuardTest {
+
+    @InjectMocks
+    private IdempotencyGuard guard;
+
+    @Mock
+    private IdempotencyKeyDao keyDao;
+
+    @Spy
+    private MockEnvironment env = new MockEnvironment().withProperty("idempotency.enabled", "true")
+            .withProperty("idempotency.digestWindowMillis", "50");
+
+    private static final String KEY = "key:request";
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        guard.afterPropertiesSet();
+    }
+
+    @Test
+    public void keyOf() throws Exception {
+        assertEquals("key:abc", IdempotencyGuard.keyOf(" abc ", bytes("{}")));
+        assertEquals(IdempotencyGuard.keyOf(null, bytes("{\"a\":1}")), IdempotencyGuard.keyOf("", bytes("{\"a\":1}")));
+        assertNotEquals(IdempotencyGuard.keyOf(null, bytes("{\"a\":1}")), IdempotencyGuard.keyOf(null, bytes("{\"a\":2}")));
+        assertTrue(IdempotencyGuard.keyOf(null, bytes("{}")).startsWith("sha256:"));
+        // too long keys are hashed
+        StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < 300; i++) longKey.append('k');
+        assertTrue(IdempotencyGuard.keyOf(longKey.toString(), bytes("{}")).length() <= 255);
+    }
+
+    @Test
+    public void repeatedRequestGetsOriginalStatus() throws Exception {
+        assertNull(guard.begin(KEY));
+        verify(keyDao).create(eq(KEY), anyLong());
+        guard.finish(KEY, 204);
+        verify(keyDao).complete(KEY, 204);
+
+        // answered from the cache
+        assertEquals(Integer.valueOf(204), guard.begin(KEY));
+        verify(keyDao, times(1)).create(eq(KEY), anyLong());
+        verify(keyDao, never()).getStatus(KEY);
+    }
+
+    @Test
+    public void failedRequestCanBeRepeated() throws Exception {
+        assertNull(guard.begin(KEY));
+        guard.finish(KEY, 503);
+        verify(keyDao).remove(KEY);
+        verify(keyDao, never()).complete(eq(KEY), anyInt());
+    }
+
+    @Test
+    public void requestOfAnotherInstance() throws Exception {
+        doThrow(new DuplicateKeyException("duplicate")).when(keyDao).create(eq(KEY), anyLong());
+        when(keyDao.getStatus(KEY)).thenReturn(IdempotencyGuard.IN_PROGRESS);
+        assertEquals(Integer.valueOf(IdempotencyGuard.IN_PROGRESS), guard.begin(KEY));
+
+        when(keyDao.getStatus(KEY)).thenReturn(202);
+        assertEquals(Integer.valueOf(202), guard.begin(KEY));
+    }
+
+    @Test
+    public void abandonedRequestIsTakenOver() throws Exception {
+        doThrow(new DuplicateKeyException("duplicate")).when(keyDao).create(eq(KEY), anyLong());
+        when(keyDao.getStatus(KEY)).thenReturn(IdempotencyGuard.IN_PROGRESS);
+        when(keyDao.takeOver(eq(KEY), anyLong(), anyLong())).thenReturn(true);
+        long before = System.currentTimeMillis();
+        assertNull(guard.begin(KEY));
+        verify(keyDao).takeOver(eq(KEY), geq(before), leq(System.currentTimeMillis() - 60 * 1000L));
+
+        // the key is known now, the database answers first
+        when(keyDao.takeOver(eq(KEY), anyLong(), anyLong())).thenReturn(false);
+        assertEquals(Integer.valueOf(IdempotencyGuard.IN_PROGRESS), guard.begin(KEY));
+        verify(keyDao, times(1)).create(eq(KEY), anyLong());
+    }
+
+    @Test
+    public void identicalBodiesOutsideDigestWindow() throws Exception {
+        String digest = IdempotencyGuard.keyOf(null, bytes("{\"a\":1}"));
+        assertNull(guard.begin(digest));
+        guard.finish(digest, 202);
+        // repeated within the window
+        when(keyDao.getStatus(digest)).thenReturn(202);
+        assertEquals(Integer.valueOf(202), guard.begin(digest));
+        verify(keyDao, never()).restart(eq(digest), anyLong(), anyLong());
+
+        // the same body later is a new event
+        Thread.sleep(100);
+        when(keyDao.restart(eq(digest), anyLong(), anyLong())).thenReturn(true);
+        long before = System.currentTimeMillis();
+        assertNull(guard.begin(digest));
+        verify(keyDao).restart(eq(digest), geq(before), leq(System.currentTimeMillis() - 50));
+    }
+
+    @Test
+    public void explicitKeyKeepsLongWindow() throws Exception {
+        assertNull(guard.begin(KEY));
+        guard.finish(KEY, 202);
+        Thread.sleep(100);
+        assertEquals(Integer.valueOf(202), guard.begin(KEY));
+        verify(keyDao, never()).restart(eq(KEY), anyLong(), anyLong());
+    }
+
+    @Test
+    public void seenKeyIsLookedUpFirst() throws Exception {
+        assertNull(guard.begin(KEY));
+        // the key is in the Bloom filter, the database answers without storing the key again
+        when(keyDao.getStatus(KEY)).thenReturn(IdempotencyGuard.IN_PROGRESS);
+        assertEquals(Integer.valueOf(IdempotencyGuard.IN_PROGRESS), guard.begin(KEY));
+        verify(keyDao, times(1)).create(eq(KEY), anyLong());
+    }
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+}
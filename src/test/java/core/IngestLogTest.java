@@ -0,0 +1,197 @@
+package core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the write-ahead log for the incoming events.
+ *
+ * @author Jiri Mauritz
+ */
+public class IngestLogTest {
+
+    private static final String SEN1 = "{\"sen\":1}";
+    private static final String SEN2 = "{\"sen\":2}";
+    private static final String SEN3 = "{\"sen\":3}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private IngestLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.getRoot().toPath();
+        log = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.destroy();
+    }
+
+    @Test
+    public void recoverEmpty() throws Exception {
+        assertTrue(log.recover().isEmpty());
+    }
+
+    @Test
+    public void replayUnapplied() throws Exception {
+        log.recover();
+        long seq1 = log.append(SEN1);
+        long seq2 = log.append(SEN2);
+        long seq3 = log.append(SEN3);
+        assertTrue(seq1 < seq2 && seq2 < seq3);
+
+        // second record is applied out of order, the checkpoint stays behind the first one
+        log.markApplied(seq2);
+        assertEquals(3, log.getUnappliedCount());
+
+        // crash and restart
+        log.destroy();
+        log = open();
+        List<IngestLog.Record> records = log.recover();
+        assertEquals(Arrays.asList(SEN1, SEN2, SEN3), jsons(records));
+
+        // apply everything, nothing is replayed next time
+        for (IngestLog.Record record : records) {
+            log.markApplied(record.getSequence());
+        }
+        assertEquals(0, log.getUnappliedCount());
+        log.destroy();
+        log = open();
+        assertTrue(log.recover().isEmpty());
+    }
+
+    @Test
+    public void sequenceContinuesAfterRestart() throws Exception {
+        log.recover();
+        long seq1 = log.append(SEN1);
+        log.markApplied(seq1);
+        log.destroy();
+        log = open();
+        log.recover();
+        assertTrue(log.append(SEN2) > seq1);
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        log.recover();
+        log.append(SEN1);
+        log.destroy();
+
+        // simulate crash in the middle of the next write
+        try (FileChannel channel = FileChannel.open(directory.resolve("ingest.log"), StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(8);
+            torn.putInt(100).putInt(42).flip();
+            channel.write(torn);
+        }
+
+        log = open();
+        assertEquals(Collections.singletonList(SEN1), jsons(log.recover()));
+        long seq = log.append(SEN2);
+        log.destroy();
+        log = open();
+        List<IngestLog.Record> records = log.recover();
+        assertEquals(Arrays.asList(SEN1, SEN2), jsons(records));
+        assertEquals(seq, records.get(1).getSequence());
+    }
+
+    @Test
+    public void concurrentAppends() throws Exception {
+        log.recover();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final String json = "{\"sen\":" + i + "}";
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return log.append(json);
+                }
+            }));
+        }
+        Set<Long> sequences = new HashSet<>();
+        for (Future<Long> future : futures) {
+            sequences.add(future.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(200, sequences.size());
+        assertEquals(200, log.getUnappliedCount());
+    }
+
+    @Test
+    public void failedRecordIsDeadLettered() throws Exception {
+        log.recover();
+        long seq1 = log.append(SEN1);
+        long seq2 = log.append(SEN2);
+        long seq3 = log.append(SEN3);
+
+        // the failed record does not hold back the checkpoint
+        log.markApplied(seq1);
+        log.markFailed(seq2, SEN2.getBytes("UTF-8"));
+        log.markApplied(seq3);
+        assertEquals(0, log.getUnappliedCount());
+        assertEquals(1, log.getFailedCount());
+        assertEquals(Collections.singletonList(SEN2), jsons(log.readDeadLetters()));
+        assertEquals(seq2, log.readDeadLetters().get(0).getSequence());
+
+        // nothing is replayed, the dead letter is kept
+        log.destroy();
+        log = open();
+        assertTrue(log.recover().isEmpty());
+        assertEquals(Collections.singletonList(SEN2), jsons(log.readDeadLetters()));
+    }
+
+    @Test
+    public void appendBeforeRecover() throws Exception {
+        log.recover();
+        log.append(SEN1);
+        log.destroy();
+
+        // the append does not wait for the recovery and does not overwrite the unapplied record
+        log = open();
+        long seq = log.append(SEN2);
+        List<IngestLog.Record> records = log.recover();
+        assertEquals(Collections.singletonList(SEN1), jsons(records));
+        assertTrue(seq > records.get(0).getSequence());
+        log.markApplied(seq);
+        log.markApplied(records.get(0).getSequence());
+        log.destroy();
+        log = open();
+        assertTrue(log.recover().isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void appendNull() throws Exception {
+        log.recover();
+        log.append((String) null);
+    }
+
+    private IngestLog open() throws Exception {
+        IngestLog ingestLog = new IngestLog();
+        ingestLog.open(directory, 2, 16, 1024 * 1024);
+        return ingestLog;
+    }
+
+    private List<String> jsons(List<IngestLog.Record> records) {
+        List<String> jsons = new ArrayList<>();
+        for (IngestLog.Record record : records) {
+            jsons.add(record.getJson());
+        }
+        return jsons;
+    }
+}
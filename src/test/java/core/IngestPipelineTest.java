@@ -0,0 +1,146 @@
+package core;
+
+import dao.FeedDao;
+import dao.SubscriberDao;
+import dao.SubscriptionDao;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StringUtils;
+
+import javax.inject.Inject;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test of the asynchronous ingest pipeline.
+ *
+ * @author Jiri Mauritz
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = CoreTestConfig.class)
+@TestPropertySource(properties = "ingest.async=true")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class IngestPipelineTest {
+
+    @Inject
+    @InjectMocks
+    private IngestPipeline pipeline;
+
+    @Inject
+    @InjectMocks
+    private ManagerImpl manager;
+
+    @Mock
+    private FeedDao feedDao;
+
+    @Mock
+    private SubscriberDao subscriberDao;
+
+    @Mock
+    private SubscriptionDao subscriptionDao;
+
+    @Mock
+    private CallbackOutboxRelay outbox;
+
+    private static final String[] FILE_NAMES = new String[]{"sen1.json", "sen2.json"};
+    private static final String FEED1 = "https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman";
+    private static final String SBSC1_ID = "id";
+
+    private List<String> sens;
+
+    @Before
+    public void setUp() throws Exception {
+        sens = new ArrayList<>();
+        for (String fileName : FILE_NAMES) {
+            List<String> jsonLines = Files.readAllLines(Paths.get(ClassLoader.getSystemResource(fileName).toURI()), Charset.defaultCharset());
+            sens.add(StringUtils.collectionToDelimitedString(jsonLines, "\n"));
+        }
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void enabled() throws Exception {
+        assertTrue(pipeline.isEnabled());
+        assertEquals(new HashSet<>(Arrays.asList("apply", "dispatch")), pipeline.getQueueDepths().keySet());
+    }
+
+    @Test
+    public void submitIsAppliedInBackground() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
+        pipeline.submit(sens.get(0));
+        pipeline.submit(sens.get(1));
+
+        // feed1 is stored once for the subscription and once for each message
+        verify(feedDao).storeState(eq(new Feed(FEED1)));
+        verify(feedDao, timeout(5000).times(2)).storeStates(anyListOf(Feed.class), anyListOf(CallbackOutboxEntry.class));
+        Set<ScimEventNotification> polled = manager.poll(SBSC1_ID);
+        assertEquals(2, polled.size());
+    }
+
+    @Test
+    public void outboxIsRelayedInsteadOfDispatch() throws Exception {
+        when(outbox.isEnabled()).thenReturn(true);
+        ManagerImpl spy = spy(manager);
+        ReflectionTestUtils.setField(pipeline, "manager", spy);
+        spy.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        pipeline.submit(sens.get(0));
+
+        // the webCallback is stored in the outbox with the feeds and the relay is woken up
+        verify(feedDao, timeout(5000)).storeStates(anyListOf(Feed.class), anyListOf(CallbackOutboxEntry.class));
+        verify(outbox, timeout(5000)).wakeUp();
+        verify(spy, never()).notifySubscriptions(anySetOf(Subscription.class), any(ScimEventNotification.class));
+    }
+
+    @Test
+    public void failedBatchIsRetried() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
+        doThrow(new IllegalStateException("database is down")).doNothing().when(feedDao)
+                .storeStates(anyListOf(Feed.class), anyListOf(CallbackOutboxEntry.class));
+        pipeline.submit(sens.get(0));
+
+        // failed once, stored again on the retry
+        verify(feedDao, timeout(5000).times(2)).storeStates(anyListOf(Feed.class), anyListOf(CallbackOutboxEntry.class));
+        assertEquals(1, manager.poll(SBSC1_ID).size());
+        assertEquals(0, pipeline.getFailedCount());
+    }
+
+    @Test
+    public void failingEventIsDeadLettered() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
+        doThrow(new IllegalStateException("database is down")).when(feedDao)
+                .storeStates(anyListOf(Feed.class), anyListOf(CallbackOutboxEntry.class));
+        pipeline.submit(sens.get(0));
+
+        // the batch and the three attempts of the event
+        verify(feedDao, timeout(5000).times(4)).storeStates(anyListOf(Feed.class), anyListOf(CallbackOutboxEntry.class));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pipeline.getFailedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidJsonIsRejected() throws Exception {
+        pipeline.submit("invalid json (}");
+    }
+}
@@ -0,0 +1,56 @@
+package core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of the shared json helpers.
+ *
+ * @author Jiri Mauritz
+ */
+public class JsonTest {
+
+    @Test
+    public void splitArray() throws Exception {
+        String array = " [ {\"type\":\"CREATE\",\"values\":{\"name\":\"[}\"}} ,\n{\"type\":\"DELETE\"}, [1, 2], \"x\" ] ";
+        assertEquals(Arrays.asList("{\"type\":\"CREATE\",\"values\":{\"name\":\"[}\"}}", "{\"type\":\"DELETE\"}", "[1, 2]",
+                "\"x\""), strings(Json.splitArray(array.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void splitEmptyArray() throws Exception {
+        assertEquals(0, Json.splitArray("[]".getBytes(StandardCharsets.UTF_8)).size());
+    }
+
+    @Test
+    public void splitMultibyteElements() throws Exception {
+        String array = "[{\"name\":\"Jiří\"},{\"name\":\"Žofie\"}]";
+        assertEquals(Arrays.asList("{\"name\":\"Jiří\"}", "{\"name\":\"Žofie\"}"),
+                strings(Json.splitArray(array.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test(expected = IOException.class)
+    public void splitNotArray() throws Exception {
+        Json.splitArray("{\"type\":\"CREATE\"}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IOException.class)
+    public void splitTruncatedArray() throws Exception {
+        Json.splitArray("[{\"type\":\"CREATE\"},".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> strings(List<byte[]> elements) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] element : elements) {
+            strings.add(new String(element, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+}
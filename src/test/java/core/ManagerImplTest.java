@@ -7,10 +7,13 @@ import dao.SubscriptionDao;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -22,9 +25,21 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Test of the Manager class.
@@ -50,6 +65,12 @@ public class ManagerImplTest {
     @Mock
     private SubscriptionDao subscriptionDao;
 
+    @Mock
+    private CallbackOutboxRelay outbox;
+
+    @Inject
+    private Metrics metrics;
+
     private static final String[] FILE_NAMES = new String[]{"sen1.json", "sen2.json", "sen3.json"};
     private static final String FEED1 = "https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman";
     private static final String FEED2 = "https://perun.cesnet.cz/scim-notification/storage-fss.ics.muni.cz/openvpn";
@@ -94,6 +115,16 @@ public class ManagerImplTest {
         verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED1)), sen);
     }
 
+    @Test
+    public void webCallbackOneMsgFromBytes() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        manager.newMessage(sens.get(0).getBytes(Charset.forName("UTF-8")));
+
+        // verify
+        ScimEventNotification sen = new ObjectMapper().readValue(sens.get(0), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED1)), sen);
+    }
+
     @Test
     public void webCallbackComplicated() throws Exception {
         Subscriber sbcs1 = new Subscriber(SBSC1_ID);
@@ -119,6 +150,108 @@ public class ManagerImplTest {
         verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED1, FEED2)), sen2);
     }
 
+    @Test
+    public void webCallbackWildcard() throws Exception {
+        String wildcard = "https://perun.cesnet.cz/scim-notification/*";
+        String subscriberUri = "https://subscriber.com/Events";
+        manager.newSubscription(SBSC1_ID, wildcard, SubscriptionModeEnum.webCallback, subscriberUri);
+        manager.newSubscription(SBSC2_ID, FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        manager.newMessage(sens.get(0));
+
+        // verify
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(sens.get(0), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(subscriberUri, FEED1)), sen);
+
+        // not routed after the removal
+        manager.removeSubscription(SBSC1_ID, wildcard);
+        manager.newMessage(sens.get(1));
+        ScimEventNotification sen2 = mapper.readValue(sens.get(1), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED1)), sen2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void webCallbackWildcardOfOtherInstance() throws Exception {
+        String wildcard = "https://perun.cesnet.cz/scim-notification/*";
+        String subscriberUri = "https://subscriber.com/Events";
+        Subscriber subscriber = new Subscriber(SBSC1_ID);
+        subscriber.addSubscription(new Subscription(wildcard, SubscriptionModeEnum.webCallback, subscriberUri));
+        final Feed stored = new Feed(wildcard);
+        stored.addSubscriber(subscriber);
+        // the wildcard feed is created by another instance and loaded with the feed uris
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((Map<String, Feed>) invocation.getArguments()[0]).put(stored.getUri(), stored);
+                return null;
+            }
+        }).when(feedDao).updateIdentifiers(anyMap());
+        manager.newMessage(sens.get(0));
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(sens.get(0), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(subscriberUri)), sen);
+
+        // and removed by it again
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((Map<String, Feed>) invocation.getArguments()[0]).remove(stored.getUri());
+                return null;
+            }
+        }).when(feedDao).updateIdentifiers(anyMap());
+        manager.newMessage(sens.get(1));
+        ScimEventNotification sen2 = mapper.readValue(sens.get(1), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<String>(), sen2);
+    }
+
+    @Test
+    public void webCallbackBatched() throws Exception {
+        Subscription batched = new Subscription(FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        batched.setBatching(10, 100);
+        manager.newSubscription(SBSC1_ID, batched);
+        manager.newSubscription(SBSC2_ID, FEED1, SubscriptionModeEnum.webCallback, FEED2);
+        manager.newMessage(sens.get(0));
+
+        // verify
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(sens.get(0), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED2)), sen);
+        verify(manager).webCallbackBatch(new HashSet<>(Arrays.asList(batched)), sen);
+    }
+
+    @Test
+    public void webCallbackGzip() throws Exception {
+        Subscription gzip = new Subscription(FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        gzip.setGzip(true);
+        manager.newSubscription(SBSC1_ID, gzip);
+        manager.newSubscription(SBSC2_ID, FEED1, SubscriptionModeEnum.webCallback, FEED2);
+        manager.newMessage(sens.get(0));
+
+        // verify
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(sens.get(0), ScimEventNotification.class);
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED2)), sen);
+        verify(manager).webCallbackSendGzip(new HashSet<>(Arrays.asList(FEED1)), sen);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void webCallbackOutbox() throws Exception {
+        when(outbox.isEnabled()).thenReturn(true);
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        manager.newMessage(sens.get(0));
+
+        // callbacks are stored with the feeds instead of the delivery
+        ArgumentCaptor<List> callbacks = ArgumentCaptor.forClass(List.class);
+        verify(feedDao).storeStates(anyList(), callbacks.capture());
+        List<CallbackOutboxEntry> entries = callbacks.getValue();
+        assertEquals(1, entries.size());
+        assertEquals(FEED1, entries.get(0).getSubscription().getEventUri());
+        verify(outbox).wakeUp();
+        verify(manager, never()).webCallbackSend(anySet(), any(ScimEventNotification.class));
+    }
+
     @Test
     public void pollSimple() throws Exception {
         manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
@@ -127,6 +260,32 @@ public class ManagerImplTest {
         checkSens(toSend, FEED1);
     }
 
+    @Test
+    public void metrics() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
+        manager.newMessage(sens.get(0));
+        String lag = "hub_feed_max_lag{feed=\"" + FEED1 + "\"} ";
+        assertTrue(metrics.scrape().contains(lag + "1\n"));
+        manager.poll(SBSC1_ID);
+
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("hub_events_total{result=\"accepted\"} 1\n"));
+        assertTrue(scrape.contains("hub_new_message_phase_seconds_count{phase=\"persist\"} 1\n"));
+        assertTrue(scrape.contains("hub_poll_batch_size_count 1\n"));
+        assertTrue(scrape.contains("hub_poll_batch_size_sum 1\n"));
+        assertTrue(scrape.contains(lag + "0\n"));
+        try {
+            manager.newMessage("{");
+            fail("Invalid json must be rejected.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(metrics.scrape().contains("hub_events_total{result=\"rejected\"} 1\n"));
+        }
+
+        // the gauges of the removed feed are removed too
+        manager.removeSubscription(SBSC1_ID, FEED1);
+        assertFalse(metrics.scrape().contains(lag));
+    }
+
     @Test
     public void pollTwoSubscriptions() throws Exception {
         manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
@@ -227,6 +386,50 @@ public class ManagerImplTest {
         manager.poll(SBSC1_ID);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void batchLoadsEachFeedOnce() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
+        manager.newSubscription(SBSC1_ID, FEED2, SubscriptionModeEnum.poll, FEED2);
+        manager.newMessages(sens);
+
+        // feed1 is loaded once for the whole batch, both feeds are stored in one call for the batch
+        verify(feedDao, times(1)).update(new Feed(FEED1));
+        verify(feedDao, times(1)).storeState(new Feed(FEED1));
+        ArgumentCaptor<List> feeds = ArgumentCaptor.forClass(List.class);
+        verify(feedDao, times(1)).storeStates(feeds.capture(), eq(Collections.<CallbackOutboxEntry>emptyList()));
+        assertTrue(feeds.getValue().containsAll(Arrays.asList(new Feed(FEED1), new Feed(FEED2))));
+
+        // all messages are delivered
+        Set<ScimEventNotification> toSend = manager.poll(SBSC1_ID);
+        checkSens(toSend, FEED1, FEED2, FEED2);
+    }
+
+    @Test
+    public void batchWebCallback() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.webCallback, FEED1);
+        manager.newSubscription(SBSC2_ID, FEED2, SubscriptionModeEnum.webCallback, FEED2);
+        manager.newMessages(sens);
+
+        // verify each sen is sent once with all its uris
+        ObjectMapper mapper = new ObjectMapper();
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED1)), mapper.readValue(sens.get(0), ScimEventNotification.class));
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED1, FEED2)), mapper.readValue(sens.get(1), ScimEventNotification.class));
+        verify(manager).webCallbackSend(new HashSet<>(Arrays.asList(FEED2)), mapper.readValue(sens.get(2), ScimEventNotification.class));
+    }
+
+    @Test
+    public void batchWithInvalidJsonIsRejected() throws Exception {
+        manager.newSubscription(SBSC1_ID, FEED1, SubscriptionModeEnum.poll, FEED1);
+        try {
+            manager.newMessages(Arrays.asList(sens.get(0), "invalid json (}"));
+            fail("Batch with invalid json should be rejected.");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+        checkSens(manager.poll(SBSC1_ID));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void invalidJson() throws Exception {
         manager.newMessage("invalid json (}");
@@ -0,0 +1,105 @@
+package core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the metrics registry and its Prometheus text format.
+ *
+ * @author Jiri Mauritz
+ */
+public class MetricsTest {
+
+    private Metrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new Metrics();
+    }
+
+    @Test
+    public void counter() throws Exception {
+        Metrics.Counter counter = metrics.counter("test_total", "Test counter.", Metrics.labels("result", "ok"));
+        counter.increment();
+        counter.add(2);
+        assertSame(counter, metrics.counter("test_total", "Test counter.", Metrics.labels("result", "ok")));
+        assertEquals(3, counter.get());
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("# HELP test_total Test counter.\n# TYPE test_total counter\n"));
+        assertTrue(scrape.contains("test_total{result=\"ok\"} 3\n"));
+    }
+
+    @Test
+    public void timer() throws Exception {
+        Metrics.Histogram timer = metrics.timer("test_seconds", "Test timer.", "");
+        // 1ms, 20ms and 20s
+        timer.record(1000000L);
+        timer.record(20000000L);
+        timer.record(20000000000L);
+        assertEquals(3, timer.getCount());
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"5.0E-4\"} 0\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"0.001\"} 1\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"0.025\"} 2\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"10\"} 2\n"));
+        assertTrue(scrape.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(scrape.contains("test_seconds_sum 20.021\n"));
+        assertTrue(scrape.contains("test_seconds_count 3\n"));
+    }
+
+    @Test
+    public void histogramWithLabels() throws Exception {
+        Metrics.Histogram histogram = metrics.histogram("test_size", "Test sizes.", new long[]{1, 10}, Metrics.labels("feed", "a"));
+        histogram.record(0);
+        histogram.record(10);
+        histogram.record(11);
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("test_size_bucket{feed=\"a\",le=\"1\"} 1\n"));
+        assertTrue(scrape.contains("test_size_bucket{feed=\"a\",le=\"10\"} 2\n"));
+        assertTrue(scrape.contains("test_size_bucket{feed=\"a\",le=\"+Inf\"} 3\n"));
+        assertTrue(scrape.contains("test_size_sum{feed=\"a\"} 21\n"));
+    }
+
+    @Test
+    public void gauges() throws Exception {
+        metrics.gauge("test_pending", "Test gauge.", "", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return 7;
+            }
+        });
+        metrics.gauges("test_depth", "Test gauges.", new Metrics.GaugeFamily() {
+            @Override
+            public Map<String, Integer> values() {
+                return Collections.singletonMap(Metrics.labels("feed", "https://a.com/\"x\""), 4);
+            }
+        });
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("# TYPE test_pending gauge\ntest_pending 7\n"));
+        assertTrue(scrape.contains("test_depth{feed=\"https://a.com/\\\"x\\\"\"} 4\n"));
+    }
+
+    @Test
+    public void statementsOfOperation() throws Exception {
+        Metrics.Counter poll = metrics.statementCounter("poll");
+        Metrics.Counter previous = metrics.setOperation(poll);
+        metrics.statementPrepared();
+        metrics.statementPrepared();
+        metrics.setOperation(previous);
+        metrics.statementPrepared();
+        assertEquals(2, poll.get());
+        assertEquals(1, metrics.statementCounter("other").get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentType() throws Exception {
+        metrics.counter("test_metric", "Test counter.", "");
+        metrics.timer("test_metric", "Test timer.", "");
+    }
+}
@@ -1,14 +1,19 @@
 package core;
 
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Assert;
 import org.junit.Test;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Testing the serialization of the sen object to and from JSON.
@@ -43,4 +48,101 @@ public class ScimEventNotificationTest {
         String jsonOutput = mapper.writeValueAsString(sen);
     }
 
+    @Test
+    public void jsonBytesAreCached() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(loadJson(FILE_NAME), ScimEventNotification.class);
+        byte[] bytes = sen.toJsonBytes();
+        Assert.assertSame(bytes, sen.toJsonBytes());
+        Assert.assertEquals(sen, mapper.readValue(bytes, ScimEventNotification.class));
+        Assert.assertArrayEquals(mapper.writeValueAsBytes(sen), bytes);
+    }
+
+    @Test
+    public void jsonBytesChangeWithId() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(loadJson(FILE_NAME), ScimEventNotification.class);
+        byte[] bytes = sen.toJsonBytes();
+        sen.setId(42L);
+        Assert.assertNotSame(bytes, sen.toJsonBytes());
+        Assert.assertEquals(Long.valueOf(42L), mapper.readValue(sen.toJsonBytes(), ScimEventNotification.class).getId());
+    }
+
+    @Test
+    public void gzipJsonBytes() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen = mapper.readValue(loadJson(FILE_NAME), ScimEventNotification.class);
+        byte[] compressed = sen.toGzipJsonBytes();
+        Assert.assertSame(compressed, sen.toGzipJsonBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            StreamUtils.copy(in, out);
+        }
+        Assert.assertArrayEquals(sen.toJsonBytes(), out.toByteArray());
+        sen.setId(42L);
+        Assert.assertNotSame(compressed, sen.toGzipJsonBytes());
+    }
+
+    @Test
+    public void jsonArrayBytes() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ScimEventNotification sen1 = mapper.readValue(loadJson(FILE_NAME), ScimEventNotification.class);
+        ScimEventNotification sen2 = mapper.readValue(loadJson("sen2.json"), ScimEventNotification.class);
+        byte[] bytes = ScimEventNotification.toJsonArrayBytes(Arrays.asList(sen1, sen2));
+        ScimEventNotification[] parsed = mapper.readValue(bytes, ScimEventNotification[].class);
+        Assert.assertArrayEquals(new ScimEventNotification[]{sen1, sen2}, parsed);
+        Assert.assertEquals("[]", new String(ScimEventNotification.toJsonArrayBytes(Collections.<ScimEventNotification>emptyList()), "UTF-8"));
+    }
+
+    @Test
+    public void valuesArePassedThroughRaw() throws Exception {
+        ScimEventNotification sen = Json.SEN_READER.readValue("{\"schemas\":[\"" + ScimEventNotification.EVENT_SCHEMA + "\"],"
+                + "\"feedUris\":[\"https://feed\"],\"publisherUri\":\"https://idp\",\"resourceUris\":[\"https://idp/Users/1\"],"
+                + "\"type\":\"MODIFY\",\"attributes\":[\"name\"],\"values\": { \"name\" : \"John\", \"emails\": [ ] }}");
+        Assert.assertEquals("{\"name\":\"John\",\"emails\":[]}", sen.getValuesJson());
+        Assert.assertTrue(new String(sen.toJsonBytes(), "UTF-8").contains("\"values\":{\"name\":\"John\",\"emails\":[]}"));
+        // parsed on demand
+        Assert.assertEquals("John", sen.getValues().get("name"));
+        Assert.assertEquals(sen, Json.SEN_READER.readValue(sen.toJsonBytes()));
+    }
+
+    @Test(expected = JsonMappingException.class)
+    public void valuesMustBeObject() throws Exception {
+        Json.SEN_READER.readValue("{\"schemas\":[\"" + ScimEventNotification.EVENT_SCHEMA + "\"],\"feedUris\":[],"
+                + "\"publisherUri\":\"https://idp\",\"resourceUris\":[],\"type\":\"MODIFY\",\"attributes\":[],\"values\":[1]}");
+    }
+
+    private String loadJson(String fileName) throws Exception {
+        List<String> jsonList = Files.readAllLines(Paths.get(ClassLoader.getSystemResource(fileName).toURI()), Charset.defaultCharset());
+        return StringUtils.collectionToDelimitedString(jsonList, "\n");
+    }
+
+
+    @Test
+    public void coalesceModifications() throws Exception {
+        ScimEventNotification older = sen(ScimEventTypeEnum.CREATE, Arrays.asList("id", "name"), "name", "John");
+        ScimEventNotification newer = sen(ScimEventTypeEnum.MODIFY, Arrays.asList("name", "emails"), "name", "Johnny");
+        ScimEventNotification merged = ScimEventNotification.coalesce(older, newer);
+        Assert.assertEquals(ScimEventTypeEnum.CREATE, merged.getType());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("id", "name", "emails")), merged.getAttributes());
+        Assert.assertEquals("Johnny", merged.getValues().get("name"));
+        Assert.assertNull(merged.getId());
+    }
+
+    @Test
+    public void coalesceDelete() throws Exception {
+        ScimEventNotification older = sen(ScimEventTypeEnum.MODIFY, Arrays.asList("name"), "name", "John");
+        ScimEventNotification newer = sen(ScimEventTypeEnum.DELETE, Collections.<String>emptyList(), null, null);
+        Assert.assertEquals(ScimEventTypeEnum.DELETE, ScimEventNotification.coalesce(older, newer).getType());
+        // resource deleted before, not merged
+        Assert.assertNull(ScimEventNotification.coalesce(newer, older));
+    }
+
+    private ScimEventNotification sen(ScimEventTypeEnum type, List<String> attributes, String name, Object value) {
+        Map<String, Object> values = new HashMap<>();
+        if (name != null) values.put(name, value);
+        return new ScimEventNotification(Collections.singleton(ScimEventNotification.EVENT_SCHEMA),
+                Collections.singleton("https://perun.cesnet.cz/scim-notification/feed"), "https://perun.cesnet.cz",
+                Collections.singleton("https://perun.cesnet.cz/api/v2/Users/3104"), type.name(), new HashSet<>(attributes), values);
+    }
 }
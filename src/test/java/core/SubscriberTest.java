@@ -48,12 +48,23 @@ public class SubscriberTest {
         assertTrue(subscriptionSet.contains(sb1));
         assertTrue(subscriptionSet.contains(sb2));
 
+        // get by the feed
+        assertSame(sb2, sbsc.getSubscription(FEED2));
+        assertNull(sbsc.getSubscription("https://perun.cesnet.cz/scim-notification/other"));
+
         // remove subscriptions
         assertTrue(sbsc.removeSubscription(FEED2));
         assertFalse(sbsc.removeSubscription(FEED2));
 
         assertTrue(sbsc.getSubscriptions().size() == 1);
         assertTrue(sbsc.getSubscriptions().contains(sb1));
+        assertNull(sbsc.getSubscription(FEED2));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void subscriptionsAreReadOnly() throws Exception {
+        sbsc.addSubscription(new Subscription(FEED1, SubscriptionModeEnum.poll, FEED1));
+        sbsc.getSubscriptions().clear();
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -0,0 +1,110 @@
+package core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the index of the subscription filters.
+ *
+ * @author Jiri Mauritz
+ */
+public class SubscriptionIndexTest {
+
+    private static final String FEED = "https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman";
+    private static final String USERS = "https://perun.cesnet.cz/api/v2/Users/";
+    private static final String GROUPS = "https://perun.cesnet.cz/api/v2/Groups/";
+
+    @Test
+    public void matchesLikeFilters() throws Exception {
+        List<Subscriber> subscribers = new ArrayList<>();
+        subscribers.add(subscriber("all", null));
+        subscribers.add(subscriber("creates", new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.CREATE), null, null)));
+        subscribers.add(subscriber("users", new SubscriptionFilter(null, Collections.singleton(USERS), null)));
+        subscribers.add(subscriber("groupEmails", new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.MODIFY),
+                new HashSet<>(Arrays.asList(GROUPS, USERS + "1")), Collections.singleton("emails"))));
+        subscribers.add(subscriber("names", new SubscriptionFilter(null, null, new HashSet<>(Arrays.asList("name", "id")))));
+        SubscriptionIndex index = new SubscriptionIndex(FEED, subscribers);
+
+        List<ScimEventNotification> sens = Arrays.asList(
+                sen(ScimEventTypeEnum.CREATE, Arrays.asList(USERS + "3104"), Arrays.asList("emails")),
+                sen(ScimEventTypeEnum.MODIFY, Arrays.asList(GROUPS + "654"), Arrays.asList("emails", "id")),
+                sen(ScimEventTypeEnum.MODIFY, Arrays.asList("https://other.cz/" + USERS), Arrays.asList("name")),
+                sen(ScimEventTypeEnum.DELETE, Arrays.asList(USERS + "2891", GROUPS + "1"), Collections.<String>emptyList()),
+                sen(ScimEventTypeEnum.MODIFY, Arrays.asList(USERS + "15"), Arrays.asList("emails")));
+        for (ScimEventNotification sen : sens) {
+            Set<Subscriber> expected = new HashSet<>();
+            for (Subscriber subscriber : subscribers) {
+                SubscriptionFilter filter = subscriber.getSubscription(FEED).getFilter();
+                if (filter == null || filter.matches(sen)) expected.add(subscriber);
+            }
+            assertEquals(expected, index.match(sen));
+        }
+    }
+
+    @Test
+    public void unfilteredReturnsAll() throws Exception {
+        List<Subscriber> subscribers = Arrays.asList(subscriber("first", null),
+                subscriber("second", new SubscriptionFilter(null, null, null)));
+        SubscriptionIndex index = new SubscriptionIndex(FEED, subscribers);
+        assertEquals(new HashSet<>(subscribers),
+                index.match(sen(ScimEventTypeEnum.DELETE, Arrays.asList(USERS), Collections.<String>emptyList())));
+    }
+
+    @Test
+    public void routeSharesTableWithoutFilters() throws Exception {
+        List<Subscriber> subscribers = Arrays.asList(subscriber("first", null), subscriber("second", null));
+        SubscriptionIndex index = new SubscriptionIndex(FEED, subscribers);
+        ScimEventNotification sen = sen(ScimEventTypeEnum.CREATE, Arrays.asList(USERS), Collections.<String>emptyList());
+        Subscription[] routes = index.route(sen);
+        assertEquals(2, routes.length);
+        assertSame(routes, index.route(sen));
+    }
+
+    @Test
+    public void routeFiltered() throws Exception {
+        Subscriber creates = subscriber("creates", new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.CREATE), null, null));
+        SubscriptionIndex index = new SubscriptionIndex(FEED, Arrays.asList(subscriber("all", null), creates));
+        Subscription[] routes = index.route(sen(ScimEventTypeEnum.DELETE, Arrays.asList(USERS), Collections.<String>emptyList()));
+        assertEquals(1, routes.length);
+        assertEquals("https://all.com", routes[0].getEventUri());
+        assertEquals(2, index.route(sen(ScimEventTypeEnum.CREATE, Arrays.asList(USERS), Collections.<String>emptyList())).length);
+    }
+
+    @Test
+    public void isCurrent() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex(FEED, Arrays.asList(subscriber("first", null), subscriber("second", null)));
+        // reloaded subscribers with the same subscriptions
+        assertTrue(index.isCurrent(Arrays.asList(subscriber("first", null), subscriber("second", null))));
+        assertFalse(index.isCurrent(Arrays.asList(subscriber("first", null))));
+        assertFalse(index.isCurrent(Arrays.asList(subscriber("first", null), subscriber("third", null))));
+        assertFalse(index.isCurrent(Arrays.asList(subscriber("first", null),
+                subscriber("second", new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.CREATE), null, null)))));
+    }
+
+    @Test
+    public void filterJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        SubscriptionFilter filter = new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.CREATE, ScimEventTypeEnum.DELETE),
+                Collections.singleton(USERS), Collections.singleton("emails"));
+        assertEquals(filter, mapper.readValue(mapper.writeValueAsString(filter), SubscriptionFilter.class));
+        assertTrue(mapper.readValue("{}", SubscriptionFilter.class).isEmpty());
+    }
+
+    private Subscriber subscriber(String identifier, SubscriptionFilter filter) {
+        Subscriber subscriber = new Subscriber(identifier);
+        Subscription subscription = new Subscription(FEED, SubscriptionModeEnum.webCallback, "https://" + identifier + ".com");
+        subscription.setFilter(filter);
+        subscriber.addSubscription(subscription);
+        return subscriber;
+    }
+
+    private ScimEventNotification sen(ScimEventTypeEnum type, List<String> resourceUris, List<String> attributes) {
+        return new ScimEventNotification(Collections.singleton(ScimEventNotification.EVENT_SCHEMA), Collections.singleton(FEED),
+                "https://perun.cesnet.cz", new HashSet<>(resourceUris), type.name(), new HashSet<>(attributes),
+                Collections.<String, Object>emptyMap());
+    }
+}
@@ -3,6 +3,8 @@ package core;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Testing class Subscription.
@@ -30,4 +32,22 @@ public class SubscriptionTest {
         assertEquals(URI, subscription.getEventUri());
     }
 
+    @Test
+    public void batching() throws Exception {
+        assertFalse(subscription.isBatched());
+        Subscription webCallback = new Subscription(FEED, SubscriptionModeEnum.webCallback, URI);
+        webCallback.setBatching(20, 50);
+        assertTrue(webCallback.isBatched());
+        assertEquals(20, webCallback.getBatchSize());
+        assertEquals(50, webCallback.getBatchLingerMillis());
+        // poll subscriptions are never batched
+        subscription.setBatching(20, 50);
+        assertFalse(subscription.isBatched());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchingInvalidSize() throws Exception {
+        subscription.setBatching(0, 50);
+    }
+
 }
\ No newline at end of file
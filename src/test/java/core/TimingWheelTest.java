@@ -0,0 +1,94 @@
+package core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the hashed timing wheel.
+ *
+ * @author Jiri Mauritz
+ */
+public class TimingWheelTest {
+
+    private BlockingQueue<String> expired;
+    private TimingWheel<String> wheel;
+
+    @Before
+    public void setUp() throws Exception {
+        expired = new LinkedBlockingQueue<>();
+        // 8 buckets of 10 ms, one turn takes 80 ms
+        wheel = new TimingWheel<>("test-wheel", 10, 8, new TimingWheel.Listener<String>() {
+            @Override
+            public void expired(String item) {
+                expired.add(item);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        wheel.stop();
+    }
+
+    @Test
+    public void expiresInOrder() throws Exception {
+        wheel.schedule("c", 150);
+        wheel.schedule("a", 20);
+        wheel.schedule("b", 60);
+        assertEquals(3, wheel.size());
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            items.add(expired.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList("a", "b", "c"), items);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void doesNotExpireEarly() throws Exception {
+        long start = System.nanoTime();
+        // more than two turns of the wheel
+        wheel.schedule("late", 200);
+        assertEquals("late", expired.poll(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+    }
+
+    @Test
+    public void pastDeadlineExpiresImmediately() throws Exception {
+        wheel.schedule("due", -1000);
+        assertEquals("due", expired.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyItems() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule(String.valueOf(i), i % 100);
+        }
+        Set<String> items = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(expired.poll(5, TimeUnit.SECONDS));
+        }
+        assertFalse(items.contains(null));
+        assertEquals(1000, items.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void scheduleNull() throws Exception {
+        wheel.schedule(null, 10);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void scheduleStopped() throws Exception {
+        wheel.stop();
+        wheel.schedule("a", 10);
+    }
+}
@@ -0,0 +1,186 @@
+package daoImpl;
+
+import core.CallbackOutboxEntry;
+import core.EventFormat;
+import core.ScimEventNotification;
+import core.ScimEventTypeEnum;
+import core.Subscription;
+import core.SubscriptionModeEnum;
+import dao.CallbackOutboxDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the Callback outbox DAO implementation.
+ *
+ * @author Jiri Mauritz
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = DaoTestConfig.class)
+public class CallbackOutboxDaoImplTest {
+
+    @Inject
+    private DataSource dataSource;
+
+    @Inject
+    private CallbackOutboxDao outboxDao;
+
+    @Inject
+    private JdbcTemplate jdbcTemplate;
+
+    private static final String FEED = "https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman";
+    private static final String URI1 = "https://subscriber.com/Events";
+    private static final String URI2 = "https://subscriber2.com/Events";
+    private static final String SEN_JSON1 = "{\"feedUris\":[\"" + FEED + "\"],\"type\":\"CREATE\"}";
+    private static final String SEN_JSON2 = "{\"feedUris\":[\"" + FEED + "\"],\"type\":\"DELETE\"}";
+    private static final String RELAY1 = "relay1";
+    private static final String RELAY2 = "relay2";
+    private static final long LEASE = 60000;
+
+    @Before
+    public void setUp() throws Exception {
+        // load db schema
+        Resource create = new ClassPathResource("sql/createTablesDerby.sql");
+        ScriptUtils.executeSqlScript(dataSource.getConnection(), create);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Resource drop = new ClassPathResource("sql/dropTables.sql");
+        ScriptUtils.executeSqlScript(dataSource.getConnection(), drop);
+    }
+
+    @Test
+    public void createAndClaimTest() throws Exception {
+        Subscription batched = new Subscription(FEED, SubscriptionModeEnum.webCallback, URI2);
+        batched.setBatching(10, 500);
+        batched.setGzip(true);
+        batched.setFormat(EventFormat.SMILE);
+        outboxDao.create(Arrays.asList(
+                new CallbackOutboxEntry(new Subscription(FEED, SubscriptionModeEnum.webCallback, URI1), SEN_JSON1),
+                new CallbackOutboxEntry(batched, SEN_JSON1)));
+        assertEquals(2, outboxDao.count());
+
+        List<CallbackOutboxEntry> claimed = outboxDao.claim(10, RELAY1, LEASE);
+        assertEquals(2, claimed.size());
+        assertNotNull(claimed.get(0).getId());
+        assertNotNull(claimed.get(0).getSenId());
+        assertEquals(URI1, claimed.get(0).getSubscription().getEventUri());
+        assertEquals(FEED, claimed.get(0).getSubscription().getFeedUri());
+        assertFalse(claimed.get(0).getSubscription().isBatched());
+        assertEquals(SEN_JSON1, claimed.get(0).getSenJson());
+        Subscription returned = claimed.get(1).getSubscription();
+        assertTrue(returned.isBatched());
+        assertEquals(10, returned.getBatchSize());
+        assertEquals(500, returned.getBatchLingerMillis());
+        assertTrue(returned.isGzip());
+        assertFalse(claimed.get(0).getSubscription().isGzip());
+        assertEquals(EventFormat.SMILE, returned.getFormat());
+        assertEquals(EventFormat.JSON, claimed.get(0).getSubscription().getFormat());
+    }
+
+    @Test
+    public void claimLeasesEntries() throws Exception {
+        outboxDao.create(Arrays.asList(
+                new CallbackOutboxEntry(new Subscription(FEED, SubscriptionModeEnum.webCallback, URI1), SEN_JSON1)));
+        List<CallbackOutboxEntry> claimed = outboxDao.claim(10, RELAY1, LEASE);
+        assertEquals(1, claimed.size());
+        // the entry stays until it is delivered, but no other relay claims it
+        assertEquals(1, outboxDao.count());
+        assertTrue(outboxDao.claim(10, RELAY2, LEASE).isEmpty());
+        assertTrue(outboxDao.claim(10, RELAY1, LEASE).isEmpty());
+        outboxDao.remove(claimed);
+        assertEquals(0, outboxDao.count());
+        assertTrue(outboxDao.claim(10, RELAY1, LEASE).isEmpty());
+        assertEquals(0, countSens());
+    }
+
+    @Test
+    public void claimedEntrySurvivesRelayRestart() throws Exception {
+        outboxDao.create(Arrays.asList(
+                new CallbackOutboxEntry(new Subscription(FEED, SubscriptionModeEnum.webCallback, URI1), SEN_JSON1)));
+        // relay stops after the claim, before the delivery
+        assertEquals(1, outboxDao.claim(10, RELAY1, LEASE).size());
+        assertEquals(1, outboxDao.count());
+
+        // restarted relay with the same identifier releases its claims at once
+        assertEquals(1, outboxDao.release(RELAY1));
+        List<CallbackOutboxEntry> reclaimed = outboxDao.claim(10, RELAY1, LEASE);
+        assertEquals(1, reclaimed.size());
+        assertEquals(SEN_JSON1, reclaimed.get(0).getSenJson());
+    }
+
+    @Test
+    public void expiredLeaseIsClaimedAgain() throws Exception {
+        outboxDao.create(Arrays.asList(
+                new CallbackOutboxEntry(new Subscription(FEED, SubscriptionModeEnum.webCallback, URI1), SEN_JSON1)));
+        assertEquals(1, outboxDao.claim(10, RELAY1, LEASE).size());
+        assertTrue(outboxDao.claim(10, RELAY2, LEASE).isEmpty());
+        Thread.sleep(5);
+        // another relay takes over the entry of the stopped one
+        List<CallbackOutboxEntry> reclaimed = outboxDao.claim(10, RELAY2, 1);
+        assertEquals(1, reclaimed.size());
+        assertEquals(URI1, reclaimed.get(0).getSubscription().getEventUri());
+    }
+
+    @Test
+    public void senIsStoredOnce() throws Exception {
+        ScimEventNotification sen = new ScimEventNotification(Collections.singleton(ScimEventNotification.EVENT_SCHEMA),
+                Collections.singleton(FEED), "https://perun.cesnet.cz", Collections.singleton("https://perun.cesnet.cz/groups/1"),
+                ScimEventTypeEnum.CREATE.name(), Collections.<String>emptySet(), Collections.<String, Object>emptyMap());
+        outboxDao.create(Arrays.asList(
+                new CallbackOutboxEntry(new Subscription(FEED, SubscriptionModeEnum.webCallback, URI1), sen),
+                new CallbackOutboxEntry(new Subscription(FEED, SubscriptionModeEnum.webCallback, URI2), sen)));
+        assertEquals(2, outboxDao.count());
+        assertEquals(1, countSens());
+
+        List<CallbackOutboxEntry> claimed = outboxDao.claim(10, RELAY1, LEASE);
+        assertEquals(claimed.get(0).getSenId(), claimed.get(1).getSenId());
+        assertEquals(claimed.get(0).getSenJson(), claimed.get(1).getSenJson());
+        // the sen is removed after its last entry
+        outboxDao.remove(claimed.subList(0, 1));
+        outboxDao.claim(10, RELAY1, LEASE);
+        assertEquals(1, countSens());
+        outboxDao.remove(claimed.subList(1, 2));
+        outboxDao.claim(10, RELAY1, LEASE);
+        assertEquals(0, countSens());
+    }
+
+    @Test
+    public void claimIsOrderedAndLimited() throws Exception {
+        Subscription subscription = new Subscription(FEED, SubscriptionModeEnum.webCallback, URI1);
+        outboxDao.create(Arrays.asList(new CallbackOutboxEntry(subscription, SEN_JSON1),
+                new CallbackOutboxEntry(subscription, SEN_JSON2)));
+        List<CallbackOutboxEntry> first = outboxDao.claim(1, RELAY1, LEASE);
+        assertEquals(1, first.size());
+        assertEquals(SEN_JSON1, first.get(0).getSenJson());
+        List<CallbackOutboxEntry> second = outboxDao.claim(1, RELAY1, LEASE);
+        assertEquals(1, second.size());
+        assertEquals(SEN_JSON2, second.get(0).getSenJson());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void claimInvalidLimit() throws Exception {
+        outboxDao.claim(0, RELAY1, LEASE);
+    }
+
+    private int countSens() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM scim_callback_outbox_sen", Integer.class);
+    }
+}
@@ -0,0 +1,231 @@
+package daoImpl;
+
+import core.CallbackOutboxEntry;
+import core.CallbackRetry;
+import core.EventFormat;
+import core.Subscription;
+import core.SubscriptionModeEnum;
+import dao.CallbackOutboxDao;
+import dao.CallbackRetryDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the Callback retry DAO implementation.
+ *
+ * @author Jiri Mauritz
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = DaoTestConfig.class)
+public class CallbackRetryDaoImplTest {
+
+    @Inject
+    private DataSource dataSource;
+
+    @Inject
+    private JdbcTemplate jdbcTemplate;
+
+    @Inject
+    private CallbackRetryDao retryDao;
+
+    @Inject
+    private CallbackOutboxDao outboxDao;
+
+    private static final String URI = "https://subscriber.com/Events";
+    private static final String QUEUE1 = "queue1";
+    private static final String QUEUE2 = "queue2";
+    private static final long LEASE = 60000;
+    private static final String SEN_JSON = "{\"feedUris\":[\"https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman\"]}";
+
+    private CallbackRetry retry;
+
+    @Before
+    public void setUp() throws Exception {
+        // load db schema
+        Resource create = new ClassPathResource("sql/createTablesDerby.sql");
+        ScriptUtils.executeSqlScript(dataSource.getConnection(), create);
+
+        retry = new CallbackRetry(URI, SEN_JSON);
+        retry.setAttempts(1);
+        retry.setNextAttempt(2000L);
+        retry.setLastError("Connection refused");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Resource drop = new ClassPathResource("sql/dropTables.sql");
+        ScriptUtils.executeSqlScript(dataSource.getConnection(), drop);
+    }
+
+    @Test
+    public void createTest() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        assertNotNull(retry.getId());
+        List<CallbackRetry> pending = retryDao.getAllPending();
+        assertEquals(1, pending.size());
+        CallbackRetry returned = pending.get(0);
+        assertEquals(retry.getId(), returned.getId());
+        assertEquals(URI, returned.getEventUri());
+        assertEquals(SEN_JSON, returned.getSenJson());
+        assertFalse(returned.isGzip());
+        assertEquals(EventFormat.JSON, returned.getFormat());
+        assertEquals(1, returned.getAttempts());
+        assertEquals(2000L, returned.getNextAttempt());
+        assertEquals("Connection refused", returned.getLastError());
+    }
+
+    @Test
+    public void createWithGzipAndFormat() throws Exception {
+        retry.setGzip(true);
+        retry.setFormat(EventFormat.CBOR);
+        retryDao.create(retry, QUEUE1);
+        CallbackRetry returned = retryDao.getAllPending().get(0);
+        assertTrue(returned.isGzip());
+        assertEquals(EventFormat.CBOR, returned.getFormat());
+    }
+
+    @Test
+    public void createReplacesOutboxEntries() throws Exception {
+        Subscription subscription = new Subscription("https://perun.cesnet.cz/scim-notification/storage-fi.ics.muni.cz/mailman",
+                SubscriptionModeEnum.webCallback, URI);
+        outboxDao.create(Collections.singletonList(new CallbackOutboxEntry(subscription, SEN_JSON)));
+        List<CallbackOutboxEntry> claimed = outboxDao.claim(10, "relay", 60000);
+        assertEquals(1, claimed.size());
+
+        retryDao.create(retry, claimed, QUEUE1);
+        assertNotNull(retry.getId());
+        assertEquals(1, retryDao.getAllPending().size());
+        assertEquals(0, outboxDao.count());
+    }
+
+    @Test
+    public void updateTest() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        retry.setAttempts(2);
+        retry.setNextAttempt(5000L);
+        retry.setLastError("Read timed out");
+        assertTrue(retryDao.update(retry, QUEUE1));
+        CallbackRetry returned = retryDao.getAllPending().get(0);
+        assertEquals(2, returned.getAttempts());
+        assertEquals(5000L, returned.getNextAttempt());
+        assertEquals("Read timed out", returned.getLastError());
+    }
+
+    @Test
+    public void markDeadTest() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        retry.setAttempts(10);
+        retryDao.markDead(retry);
+        assertTrue(retryDao.getAllPending().isEmpty());
+        assertEquals(0, retryDao.count(false));
+        assertEquals(1, retryDao.count(true));
+        int attempts = jdbcTemplate.queryForObject("SELECT attempts FROM scim_callback_retry WHERE id=?", Integer.class, retry.getId());
+        assertEquals(10, attempts);
+    }
+
+    @Test
+    public void removeTest() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        retryDao.remove(retry.getId());
+        assertTrue(retryDao.getAllPending().isEmpty());
+        assertEquals(0, retryDao.count(true));
+    }
+
+    @Test
+    public void getAllPendingIsOrdered() throws Exception {
+        CallbackRetry earlier = new CallbackRetry(URI, SEN_JSON);
+        earlier.setNextAttempt(1000L);
+        retryDao.create(retry, QUEUE1);
+        retryDao.create(earlier, QUEUE1);
+        List<CallbackRetry> pending = retryDao.getAllPending();
+        assertEquals(2, pending.size());
+        assertEquals(earlier.getId(), pending.get(0).getId());
+        assertEquals(retry.getId(), pending.get(1).getId());
+    }
+
+    @Test
+    public void createdRetryIsClaimed() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        // the creating queue attempts the retry, no other one claims it
+        assertTrue(retryDao.claim(10, QUEUE2, LEASE).isEmpty());
+        assertTrue(retryDao.claim(10, QUEUE1, LEASE).isEmpty());
+        assertEquals(1, retryDao.renew(QUEUE1));
+        assertEquals(0, retryDao.renew(QUEUE2));
+    }
+
+    @Test
+    public void releasedRetryIsClaimed() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        assertEquals(1, retryDao.release(QUEUE1));
+        List<CallbackRetry> claimed = retryDao.claim(10, QUEUE2, LEASE);
+        assertEquals(1, claimed.size());
+        assertEquals(retry.getId(), claimed.get(0).getId());
+        assertEquals(SEN_JSON, claimed.get(0).getSenJson());
+        assertTrue(retryDao.claim(10, QUEUE1, LEASE).isEmpty());
+        // the previous owner lost the retry
+        assertFalse(retryDao.update(retry, QUEUE1));
+        assertTrue(retryDao.update(retry, QUEUE2));
+    }
+
+    @Test
+    public void expiredLeaseIsClaimedAgain() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        Thread.sleep(5);
+        // the owner itself does not claim its retry twice
+        assertTrue(retryDao.claim(10, QUEUE1, 1).isEmpty());
+        assertEquals(1, retryDao.claim(10, QUEUE2, 1).size());
+        assertTrue(retryDao.claim(10, QUEUE1, LEASE).isEmpty());
+    }
+
+    @Test
+    public void claimIsLimitedAndOrdered() throws Exception {
+        CallbackRetry earlier = new CallbackRetry(URI, SEN_JSON);
+        earlier.setNextAttempt(1000L);
+        retryDao.create(retry, QUEUE1);
+        retryDao.create(earlier, QUEUE1);
+        retryDao.release(QUEUE1);
+        List<CallbackRetry> claimed = retryDao.claim(1, QUEUE2, LEASE);
+        assertEquals(1, claimed.size());
+        assertEquals(earlier.getId(), claimed.get(0).getId());
+        assertEquals(1, retryDao.claim(1, QUEUE2, LEASE).size());
+    }
+
+    @Test
+    public void deadRetryIsNotClaimed() throws Exception {
+        retryDao.create(retry, QUEUE1);
+        retryDao.markDead(retry);
+        assertEquals(0, retryDao.release(QUEUE1));
+        assertTrue(retryDao.claim(10, QUEUE2, 1).isEmpty());
+    }
+
+    @Test
+    public void longErrorIsTruncated() throws Exception {
+        StringBuilder error = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            error.append('x');
+        }
+        retry.setLastError(error.toString());
+        retryDao.create(retry, QUEUE1);
+        assertEquals(1024, retryDao.getAllPending().get(0).getLastError().length());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void updateNotStored() throws Exception {
+        retryDao.update(retry, QUEUE1);
+    }
+}
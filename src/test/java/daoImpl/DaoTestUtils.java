@@ -41,6 +41,7 @@ public class DaoTestUtils {
     public void createFeedInDb(Feed feed) {
         Map<String, Object> params = new HashMap<>();
         params.put("uri", feed.getUri());
+        params.put("subscriptions_version", 0L);
         SimpleJdbcInsert jdbcInsert = new SimpleJdbcInsert(jdbcTemplate).withTableName("scim_feed").usingGeneratedKeyColumns("id");
         Number id = jdbcInsert.executeAndReturnKey(params);
         feed.setId(id.longValue());
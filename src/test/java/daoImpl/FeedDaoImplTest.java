@@ -192,6 +192,30 @@ public class FeedDaoImplTest {
         assertEquals(subscriber, feedMail.getSlowestPollSubscriber());
     }
 
+    @Test
+    public void updateReloadsCallbackSubscribersOnNewVersion() throws Exception {
+        testUtils.createFeedInDb(feedMail);
+        Subscriber sbsc = new Subscriber("second");
+        testUtils.createSubscriberInDb(sbsc);
+        Subscription sub = new Subscription(feedMail.getUri(), SubscriptionModeEnum.webCallback, URImail);
+        testUtils.createSubscriptionInDb(sub, feedMail, sbsc, null);
+
+        feedDao.update(feedMail);
+        Subscription[] routes = feedMail.routeMsg(sens.get(0));
+        assertEquals(1, routes.length);
+
+        // the same version keeps the subscribers and their routing table
+        jdbcTemplate.update("DELETE FROM scim_subscription WHERE id=?", sub.getId());
+        feedDao.update(feedMail);
+        assertSame(routes, feedMail.routeMsg(sens.get(1)));
+
+        // changed subscriptions are reloaded
+        jdbcTemplate.update("UPDATE scim_feed SET subscriptions_version=subscriptions_version+1 WHERE id=?", feedMail.getId());
+        feedDao.update(feedMail);
+        assertTrue(feedMail.getCallbackSubscribers().isEmpty());
+        assertEquals(0, feedMail.routeMsg(sens.get(3)).length);
+    }
+
     @Test
     public void updateWithRemovals() throws Exception {
         testUtils.createFeedInDb(feedMail);
@@ -393,6 +417,23 @@ public class FeedDaoImplTest {
         feedDao.create(null);
     }
 
+    @Test
+    public void storeStatesIsAtomic() throws Exception {
+        testUtils.createFeedInDb(feedMail);
+        testUtils.createSubscriberInDb(subscriber);
+        feedMail.setSlowestPollSubscriber(subscriber);
+        try {
+            // feed edu is not created, it fails after feed mail is stored
+            feedDao.storeStates(Arrays.asList(feedMail, feedEdu), Collections.<CallbackOutboxEntry>emptyList());
+            fail("Storing the feed that is not created should fail.");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        // feed mail is rolled back
+        String SQL = "SELECT slowest_subscriber_id FROM scim_feed WHERE id=?";
+        assertNull(jdbcTemplate.queryForObject(SQL, Long.class, feedMail.getId()));
+    }
+
     @Test(expected = NullPointerException.class)
     public void removeWithNullFeed() throws Exception {
         feedDao.remove(null);
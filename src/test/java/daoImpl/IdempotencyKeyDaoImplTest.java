@@ -0,0 +1,107 @@
+package daoImpl;
+
+import dao.IdempotencyKeyDao;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of the idempotency key DAO implementation.
+ *
+ * @author Jiri Mauritz
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = DaoTestConfig.class)
+public class IdempotencyKeyDaoImplTest {
+
+    @Inject
+    private DataSource dataSource;
+
+    @Inject
+    private IdempotencyKeyDao keyDao;
+
+    private static final String KEY = "key:8e2d0c1c-0a4f-4bde-9c43-5f1bd8e07a27";
+
+    @Before
+    public void setUp() throws Exception {
+        // load db schema
+        Resource create = new ClassPathResource("sql/createTablesDerby.sql");
+        ScriptUtils.executeSqlScript(dataSource.getConnection(), create);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Resource drop = new ClassPathResource("sql/dropTables.sql");
+        ScriptUtils.executeSqlScript(dataSource.getConnection(), drop);
+    }
+
+    @Test
+    public void createAndCompleteTest() throws Exception {
+        assertNull(keyDao.getStatus(KEY));
+        keyDao.create(KEY, 1000L);
+        assertEquals(Integer.valueOf(0), keyDao.getStatus(KEY));
+        keyDao.complete(KEY, 204);
+        assertEquals(Integer.valueOf(204), keyDao.getStatus(KEY));
+    }
+
+    @Test(expected = DuplicateKeyException.class)
+    public void createDuplicateTest() throws Exception {
+        keyDao.create(KEY, 1000L);
+        keyDao.create(KEY, 2000L);
+    }
+
+    @Test
+    public void removeTest() throws Exception {
+        keyDao.create(KEY, 1000L);
+        keyDao.remove(KEY);
+        assertNull(keyDao.getStatus(KEY));
+        // can be created again
+        keyDao.create(KEY, 2000L);
+    }
+
+    @Test
+    public void takeOverTest() throws Exception {
+        keyDao.create(KEY, 1000L);
+        // still within the lease
+        assertFalse(keyDao.takeOver(KEY, 2000L, 1000L));
+        assertTrue(keyDao.takeOver(KEY, 2000L, 1500L));
+        // the new request has its own lease
+        assertFalse(keyDao.takeOver(KEY, 3000L, 1500L));
+        // the finished request is not taken over
+        keyDao.complete(KEY, 202);
+        assertFalse(keyDao.takeOver(KEY, 4000L, 3500L));
+        assertEquals(Integer.valueOf(202), keyDao.getStatus(KEY));
+    }
+
+    @Test
+    public void restartTest() throws Exception {
+        keyDao.create(KEY, 1000L);
+        // the request in progress is not started again
+        assertFalse(keyDao.restart(KEY, 2000L, 1500L));
+        keyDao.complete(KEY, 202);
+        assertFalse(keyDao.restart(KEY, 2000L, 1000L));
+        assertTrue(keyDao.restart(KEY, 2000L, 1500L));
+        assertEquals(Integer.valueOf(0), keyDao.getStatus(KEY));
+    }
+
+    @Test
+    public void removeOlderThanTest() throws Exception {
+        keyDao.create(KEY, 1000L);
+        keyDao.create("key:newer", 3000L);
+        assertEquals(1, keyDao.removeOlderThan(2000L));
+        assertNull(keyDao.getStatus(KEY));
+        assertNotNull(keyDao.getStatus("key:newer"));
+    }
+}
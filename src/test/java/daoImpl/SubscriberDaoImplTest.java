@@ -51,6 +51,9 @@ public class SubscriberDaoImplTest {
     @Inject
     private DaoTestUtils testUtils;
 
+    @Inject
+    private Metrics metrics;
+
     @Inject
     @InjectMocks
     private SubscriberDao subscriberDao;
@@ -125,6 +128,18 @@ public class SubscriberDaoImplTest {
         assertEquals(subscriber, returned);
     }
 
+    @Test
+    public void statementsAreCounted() throws Exception {
+        Metrics.Counter statements = metrics.statementCounter("test");
+        Metrics.Counter previous = metrics.setOperation(statements);
+        try {
+            subscriberDao.create(subscriber);
+        } finally {
+            metrics.setOperation(previous);
+        }
+        assertTrue(statements.get() > 0);
+    }
+
     @Test(expected = EmptyResultDataAccessException.class)
     public void removeTest() throws Exception {
         subscriber.addSubscription(subscription);
@@ -1,9 +1,6 @@
 package daoImpl;
 
-import core.Feed;
-import core.Subscriber;
-import core.Subscription;
-import core.SubscriptionModeEnum;
+import core.*;
 import dao.SubscriptionDao;
 import org.junit.After;
 import org.junit.Before;
@@ -22,6 +19,8 @@ import javax.inject.Inject;
 import javax.sql.DataSource;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -83,6 +82,83 @@ public class SubscriptionDaoImplTest {
         assertEquals(subscription, returned);
     }
 
+    @Test
+    public void createBatchedTest() throws Exception {
+        Subscription batched = new Subscription(URI, SubscriptionModeEnum.webCallback, URI);
+        batched.setBatching(50, 200);
+        subscriptionDao.create(batched, subscriber, feed);
+        String SQL = "SELECT " + SubscriptionDaoImpl.FIELDS + " FROM scim_subscription JOIN scim_feed ON " +
+                "scim_subscription.feed_id=scim_feed.id WHERE scim_subscription.id=?";
+        Subscription returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), batched.getId());
+        assertTrue(returned.isBatched());
+        assertEquals(50, returned.getBatchSize());
+        assertEquals(200, returned.getBatchLingerMillis());
+    }
+
+    @Test
+    public void createNotBatchedTest() throws Exception {
+        subscriptionDao.create(subscription, subscriber, feed);
+        String SQL = "SELECT " + SubscriptionDaoImpl.FIELDS + " FROM scim_subscription JOIN scim_feed ON " +
+                "scim_subscription.feed_id=scim_feed.id WHERE scim_subscription.id=?";
+        Subscription returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), subscription.getId());
+        assertFalse(returned.isBatched());
+        assertEquals(1, returned.getBatchSize());
+    }
+
+    @Test
+    public void createGzipTest() throws Exception {
+        subscription.setGzip(true);
+        subscriptionDao.create(subscription, subscriber, feed);
+        String SQL = "SELECT " + SubscriptionDaoImpl.FIELDS + " FROM scim_subscription JOIN scim_feed ON " +
+                "scim_subscription.feed_id=scim_feed.id WHERE scim_subscription.id=?";
+        Subscription returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), subscription.getId());
+        assertTrue(returned.isGzip());
+    }
+
+    @Test
+    public void createFormatTest() throws Exception {
+        subscription.setFormat(EventFormat.CBOR);
+        subscriptionDao.create(subscription, subscriber, feed);
+        String SQL = "SELECT " + SubscriptionDaoImpl.FIELDS + " FROM scim_subscription JOIN scim_feed ON " +
+                "scim_subscription.feed_id=scim_feed.id WHERE scim_subscription.id=?";
+        Subscription returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), subscription.getId());
+        assertEquals(EventFormat.CBOR, returned.getFormat());
+    }
+
+    @Test
+    public void createFilterTest() throws Exception {
+        SubscriptionFilter filter = new SubscriptionFilter(EnumSet.of(ScimEventTypeEnum.CREATE),
+                Collections.singleton("https://perun.cesnet.cz/api/v2/Users/"), Collections.singleton("emails"));
+        subscription.setFilter(filter);
+        subscriptionDao.create(subscription, subscriber, feed);
+        String SQL = "SELECT " + SubscriptionDaoImpl.FIELDS + " FROM scim_subscription JOIN scim_feed ON " +
+                "scim_subscription.feed_id=scim_feed.id WHERE scim_subscription.id=?";
+        Subscription returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), subscription.getId());
+        assertEquals(filter, returned.getFilter());
+    }
+
+    @Test
+    public void createFilterWithoutTypesTest() throws Exception {
+        // the empty types are stored as an empty array
+        SubscriptionFilter prefixes = new SubscriptionFilter(EnumSet.noneOf(ScimEventTypeEnum.class),
+                Collections.singleton("https://perun.cesnet.cz/api/v2/Users/"), null);
+        SubscriptionFilter attributes = new SubscriptionFilter(null, null, Collections.singleton("emails"));
+        Subscription other = new Subscription(URI, SubscriptionModeEnum.webCallback, "https://other.link.com");
+        Subscriber otherSubscriber = new Subscriber("other");
+        testUtils.createSubscriberInDb(otherSubscriber);
+        subscription.setFilter(prefixes);
+        other.setFilter(attributes);
+        subscriptionDao.create(subscription, subscriber, feed);
+        subscriptionDao.create(other, otherSubscriber, feed);
+        String SQL = "SELECT " + SubscriptionDaoImpl.FIELDS + " FROM scim_subscription JOIN scim_feed ON " +
+                "scim_subscription.feed_id=scim_feed.id WHERE scim_subscription.id=?";
+        Subscription returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), subscription.getId());
+        assertEquals(prefixes, returned.getFilter());
+        assertTrue(returned.getFilter().getTypes().isEmpty());
+        returned = jdbcTemplate.queryForObject(SQL, new SubscriptionDaoImpl.SubscriptionMapper(), other.getId());
+        assertEquals(attributes, returned.getFilter());
+    }
+
     @Test(expected = EmptyResultDataAccessException.class)
     public void removeTest() throws Exception {
         testUtils.createSubscriptionInDb(subscription, feed, subscriber, null);
@@ -103,6 +179,21 @@ public class SubscriptionDaoImplTest {
         getByIdFromDb(subscription.getId());
     }
 
+    @Test
+    public void subscriptionsVersionTest() throws Exception {
+        assertEquals(0, getSubscriptionsVersion());
+        subscriptionDao.create(subscription, subscriber, feed);
+        assertEquals(1, getSubscriptionsVersion());
+        subscriptionDao.remove(SBSC_ID, URI);
+        assertEquals(2, getSubscriptionsVersion());
+        // nothing removed
+        subscriptionDao.remove(SBSC_ID, URI);
+        assertEquals(2, getSubscriptionsVersion());
+        testUtils.createSubscriptionInDb(subscription, feed, subscriber, null);
+        subscriptionDao.remove(subscription.getId());
+        assertEquals(3, getSubscriptionsVersion());
+    }
+
     @Test
     public void getAllIdsForSubscriberTest() throws Exception {
         Feed feed1 = new Feed("other");
@@ -217,4 +308,9 @@ public class SubscriptionDaoImplTest {
                 "WHERE scim_subscription.id=" + id;
         return jdbcTemplate.queryForObject(SQL, new SubscriptionMapper());
     }
+
+    private long getSubscriptionsVersion() {
+        String SQL = "SELECT subscriptions_version FROM scim_feed WHERE id=?";
+        return jdbcTemplate.queryForObject(SQL, Long.class, feed.getId());
+    }
 }
\ No newline at end of file